@@ -0,0 +1,124 @@
+package com.haprer.blogger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks, writes the results as JMH JSON and compares them with a baseline from an earlier run.
+ * Exits with 1 if a benchmark got more than benchmark.max-regression worse, so the build fails. It also fails if
+ * there is no baseline or a benchmark that ran is not in it - nothing was checked, and a run that checks nothing
+ * must not look like one that passed.
+ * Run by the benchmarks maven profile, see pom.xml for the properties.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        Path result = Path.of(System.getProperty("benchmark.result", "target/jmh-result.json"));
+        Path baseline = Path.of(System.getProperty("benchmark.baseline", "src/jmh/baseline.json"));
+        double maxRegression = Double.parseDouble(System.getProperty("benchmark.max-regression", "0.15"));
+
+        Files.createDirectories(result.toAbsolutePath().getParent());
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", "com.haprer.blogger.*Benchmark"))
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString())
+                .build();
+        new Runner(options).run();
+
+        if (Boolean.getBoolean("benchmark.update-baseline")) {
+            Files.copy(result, baseline, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Saved the results as the new baseline " + baseline);
+            return;
+        }
+        if (!Files.exists(baseline)) {
+            System.out.println("No baseline at " + baseline + " - nothing to compare with. Run with "
+                    + "-Dbenchmark.update-baseline=true on the machine the checks run on to keep these results as one");
+            System.exit(1);
+        }
+
+        Map<String, Score> current = scores(result.toFile());
+        Map<String, Score> before = scores(baseline.toFile());
+        List<String> missing = missing(current, before);
+        if (!missing.isEmpty()) {
+            System.out.println("Benchmarks with no score in the baseline " + baseline + " - run with "
+                    + "-Dbenchmark.update-baseline=true to add them:");
+            missing.forEach(name -> System.out.println("  " + name));
+            System.exit(1);
+        }
+        List<String> regressions = compare(current, before, maxRegression);
+        if (!regressions.isEmpty()) {
+            System.out.println("Benchmarks more than " + Math.round(maxRegression * 100) + "% worse than the baseline:");
+            regressions.forEach(regression -> System.out.println("  " + regression));
+            System.exit(1);
+        }
+        System.out.println("No benchmark is more than " + Math.round(maxRegression * 100) + "% worse than the baseline");
+    }
+
+    /**
+     * @return the benchmarks that ran but have no score of the same mode in the baseline
+     */
+    static List<String> missing(Map<String, Score> current, Map<String, Score> baseline) {
+        return current.entrySet().stream()
+                .filter(entry -> baseline.get(entry.getKey()) == null
+                        || !baseline.get(entry.getKey()).mode().equals(entry.getValue().mode()))
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * @return a line for each benchmark that got worse by more than maxRegression - benchmarks that are
+     *          only in one of the two are skipped, see missing
+     */
+    static List<String> compare(Map<String, Score> current, Map<String, Score> baseline, double maxRegression) {
+        List<String> regressions = new ArrayList<>();
+        current.forEach((name, score) -> {
+            Score before = baseline.get(name);
+            if (before == null || !before.mode().equals(score.mode())) {
+                return;
+            }
+            //throughput is better when higher, every other mode measures time
+            double change = score.mode().equals("thrpt")
+                    ? (before.value() - score.value()) / before.value()
+                    : (score.value() - before.value()) / before.value();
+            if (change > maxRegression) {
+                regressions.add(String.format("%s: %.3f -> %.3f %s (%.0f%% worse)",
+                        name, before.value(), score.value(), score.unit(), change * 100));
+            }
+        });
+        return regressions;
+    }
+
+    /**
+     * @return benchmark name with its params -> score, from a JMH JSON result file
+     */
+    static Map<String, Score> scores(File file) throws Exception {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file)) {
+            StringBuilder name = new StringBuilder(run.get("benchmark").asText());
+            JsonNode params = run.get("params");
+            if (params != null) {
+                params.fields().forEachRemaining(param ->
+                        name.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            }
+            JsonNode metric = run.get("primaryMetric");
+            scores.put(name.toString(), new Score(run.get("mode").asText(), metric.get("score").asDouble(),
+                    metric.get("scoreUnit").asText()));
+        }
+        return scores;
+    }
+
+    record Score(String mode, double value, String unit) {}
+}
@@ -0,0 +1,104 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BlogService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * Requests through the whole app - filters, controller, caches, services and a local mongo - with MockMvc,
+ * so the numbers leave out the network and the servlet container.
+ * The app runs against the blogger_benchmark_mvc database, which is filled with POSTS posts on the first run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ControllerBenchmark {
+
+    private static final int POSTS = 10_000;
+
+    private ConfigurableApplicationContext context;
+    private MockMvc mockMvc;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(BloggerApplication.class)
+                .properties("spring.data.mongodb.uri=" + System.getProperty("benchmark.mongo-uri", "mongodb://localhost:27017"),
+                        "spring.data.mongodb.database=blogger_benchmark_mvc",
+                        "server.port=0",
+                        "blogger.search.snapshot-path=",
+                        "logging.level.root=warn")
+                .run();
+        BlogService blogService = context.getBean(BlogService.class);
+        if (blogService.count() != POSTS) {
+            blogService.deleteAll();
+            List<BlogPost> posts = new ArrayList<>();
+            for (int i = 0; i < POSTS; i++) {
+                posts.add(new BlogPost("title " + i, "author", "word ".repeat(500),
+                        new ArrayList<>(List.of("tag" + i % 50, "tag" + i % 7))));
+                if (posts.size() == 1000) {
+                    blogService.insertBatch(posts, i);
+                    posts = new ArrayList<>();
+                }
+            }
+        }
+        mockMvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    //a different post every time, most come from the post and response caches once they are warm
+    @Benchmark
+    public MvcResult find() throws Exception {
+        next = (next + 1) % POSTS;
+        return mockMvc.perform(get("/find").param("title", "title " + next).param("author", "author")).andReturn();
+    }
+
+    @Benchmark
+    public MvcResult feedFirstPage() throws Exception {
+        return mockMvc.perform(get("/blogposts").param("cursor", "")).andReturn();
+    }
+
+    @Benchmark
+    public MvcResult feedByTags() throws Exception {
+        return mockMvc.perform(get("/blogposts").param("tags", "tag1,tag3").param("mode", "any")).andReturn();
+    }
+
+    @Benchmark
+    public MvcResult popularTags() throws Exception {
+        return mockMvc.perform(get("/populartags").param("limit", "10")).andReturn();
+    }
+
+    @Benchmark
+    public MvcResult search() throws Exception {
+        return mockMvc.perform(get("/search").param("q", "title word")).andReturn();
+    }
+}
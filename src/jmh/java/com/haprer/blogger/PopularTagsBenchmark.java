@@ -0,0 +1,121 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.PopularTagIndex;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ways of getting every tag most used first, against a local mongo:
+ * the findMostPopularTags aggregation over every post, the tag_counts collection TagCountService keeps,
+ * and the PopularTagIndex that answers /populartags while it is loaded.
+ *
+ * Each size gets its own database, blogger_benchmark_<posts>, which is filled on the first run and reused after.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PopularTagsBenchmark {
+
+    private static final int TAGS = 1000;
+    private static final int TAGS_PER_POST = 3;
+
+    @Param({"1000", "100000", "1000000"})
+    private int posts;
+
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private BlogPostRepository repository;
+    private final PopularTagIndex index = new PopularTagIndex();
+
+    @Setup
+    public void setup() {
+        client = MongoClients.create(System.getProperty("benchmark.mongo-uri", "mongodb://localhost:27017"));
+        mongoTemplate = new MongoTemplate(client, "blogger_benchmark_" + posts);
+        repository = new MongoRepositoryFactory(mongoTemplate).getRepository(BlogPostRepository.class);
+        if (mongoTemplate.count(new Query(), BlogPost.class) != posts) {
+            fill();
+        }
+
+        List<TagCount> counts = repository.findMostPopularTags();
+        mongoTemplate.dropCollection(TagCount.class);
+        mongoTemplate.insertAll(counts);
+        mongoTemplate.indexOps(TagCount.class).ensureIndex(new Index().on("count", Sort.Direction.DESC).named("count"));
+        index.load(counts);
+    }
+
+    //posts with a few tags each, some tags much more common than others like on a real blog
+    private void fill() {
+        mongoTemplate.dropCollection(BlogPost.class);
+        MongoCollection<Document> collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(BlogPost.class));
+        Random random = new Random(42);
+        List<Document> batch = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            Set<String> tags = new LinkedHashSet<>();
+            while (tags.size() < TAGS_PER_POST) {
+                tags.add("tag" + (int) (TAGS * Math.pow(random.nextDouble(), 3)));
+            }
+            batch.add(new Document("title", "title " + i).append("author", "author " + i % 100)
+                    .append("content", "content " + i).append("tags", List.copyOf(tags))
+                    .append("timestamp", new Date()).append("version", 0L));
+            if (batch.size() == 10_000) {
+                collection.insertMany(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            collection.insertMany(batch);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public List<TagCount> aggregation() {
+        return repository.findMostPopularTags();
+    }
+
+    @Benchmark
+    public List<TagCount> tagCountsCollection() {
+        Query query = new Query().with(Sort.by(Sort.Order.desc("count"), Sort.Order.asc("_id")));
+        return mongoTemplate.find(query, TagCount.class);
+    }
+
+    @Benchmark
+    public List<TagCount> inMemoryIndex() {
+        return index.top(Integer.MAX_VALUE, null);
+    }
+}
@@ -0,0 +1,103 @@
+package com.haprer.blogger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haprer.blogger.configurations.JacksonConfig;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostSummary;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson (de)serialization of posts and pages of posts with the mapper from JacksonConfig - what every
+ * request and response of the API goes through. No database needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SerializationBenchmark {
+
+    //posts on a page
+    @Param({"10", "100"})
+    private int pageSize;
+
+    //words in the content of each post
+    @Param({"300", "3000"})
+    private int words;
+
+    private final ObjectMapper mapper = new JacksonConfig().objectMapper();
+    private BlogPost post;
+    private String postJson;
+    private Page<BlogPost> page;
+    private Page<BlogPostSummary> summaryPage;
+    private String pageContentJson;
+
+    @Setup
+    public void setup() throws Exception {
+        List<BlogPost> posts = new ArrayList<>();
+        List<BlogPostSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < pageSize; i++) {
+            BlogPost p = new BlogPost("title " + i, "author", "word ".repeat(words), List.of("java", "spring", "tag" + i));
+            ReflectionTestUtils.setField(p, "id", new ObjectId().toHexString());
+            ReflectionTestUtils.setField(p, "version", 3L);
+            p.setUpdated(Instant.now());
+            posts.add(p);
+            summaries.add(new BlogPostSummary(p.getId(), p.getTitle(), p.getAuthor(), p.getTags(), p.getTimestamp(),
+                    p.getExcerpt(), p.getWordCount()));
+        }
+        post = posts.getFirst();
+        postJson = mapper.writeValueAsString(post);
+        page = new PageImpl<>(posts, PageRequest.of(0, pageSize), 10_000);
+        summaryPage = new PageImpl<>(summaries, PageRequest.of(0, pageSize), 10_000);
+        pageContentJson = mapper.writeValueAsString(posts);
+    }
+
+    @Benchmark
+    public byte[] serializePost() throws Exception {
+        return mapper.writeValueAsBytes(post);
+    }
+
+    @Benchmark
+    public BlogPost deserializePost() throws Exception {
+        return mapper.readValue(postJson, BlogPost.class);
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws Exception {
+        return mapper.writeValueAsBytes(page);
+    }
+
+    //what /blogposts sends by default
+    @Benchmark
+    public byte[] serializeSummaryPage() throws Exception {
+        return mapper.writeValueAsBytes(summaryPage);
+    }
+
+    //PageImpl can't be read back, clients read the content of a page
+    @Benchmark
+    public List<BlogPost> deserializePageContent() throws Exception {
+        return mapper.readValue(pageContentJson, new TypeReference<List<BlogPost>>() {});
+    }
+}
@@ -2,10 +2,16 @@ package com.haprer.blogger;
 
 
 import com.haprer.blogger.data.BlogPost;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
@@ -19,6 +25,44 @@ public interface BlogPostRepository extends MongoRepository<BlogPost, String> {
 
     void deleteByTitleAndAuthor(String title, String author);
 
+    /**
+     * Sort order of the feed, newest first. _id breaks ties between posts with the same timestamp.
+     * Backed by the timestamp_id index on BlogPost.
+     */
+    Sort FEED_SORT = Sort.by(Sort.Order.desc("timestamp"), Sort.Order.desc("_id"));
+
+    /**
+     * Sort order of page number pagination, oldest first - the order the posts were saved in.
+     * Backed by the _id index, without a sort mongo would have to scan the whole collection.
+     */
+    Sort PAGE_SORT = Sort.by(Sort.Order.asc("_id"));
+
+    /*
+     * The feed queries below take the type to return - BlogPost for whole posts or BlogPostSummary to leave
+     * out the content. For a DTO like BlogPostSummary spring data only asks mongo for the DTO's fields.
+     */
+
+    /**
+     * A page of posts by page number. Runs a count query like findAll(Pageable).
+     * @param pageable should be sorted by PAGE_SORT
+     */
+    @Query("{}")
+    <T> Page<T> findPage(Pageable pageable, Class<T> type);
+
+    /**
+     * First page of the feed. Returns a Slice so no count query is run.
+     * @param pageable should be sorted by FEED_SORT
+     */
+    @Query("{}")
+    <T> Slice<T> findFeed(Pageable pageable, Class<T> type);
+
+    /**
+     * Keyset page of the feed - the posts that come after (timestamp, id) in FEED_SORT order.
+     * @param pageable should be sorted by FEED_SORT and always be on page 0
+     */
+    @Query("{ $or: [ { timestamp: { $lt: ?0 } }, { timestamp: ?0, _id: { $lt: ?1 } } ] }")
+    <T> Slice<T> findFeedAfter(Instant timestamp, ObjectId id, Pageable pageable, Class<T> type);
+
 
     /**
      * This is mongoDB query code for getting the tags sorted by number of appearances;
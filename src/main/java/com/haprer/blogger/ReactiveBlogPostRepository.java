@@ -0,0 +1,66 @@
+package com.haprer.blogger;
+
+
+import com.haprer.blogger.data.BlogPost;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.Aggregation;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * Non-blocking counterpart of BlogPostRepository, used by the reactive profile.
+ * Same queries, but results are streamed from the driver's cursor as they are requested instead of
+ * being collected into lists, and there is no Page/Slice - ask for one more post than the page size
+ * to know if there is a next page.
+ */
+public interface ReactiveBlogPostRepository extends ReactiveMongoRepository<BlogPost, String> {
+
+    Mono<BlogPost> findByTitleAndAuthor(String title, String author);
+
+    Mono<Void> deleteByTitleAndAuthor(String title, String author);
+
+    /**
+     * A page of posts by page number.
+     * @param pageable should be sorted by BlogPostRepository.PAGE_SORT
+     */
+    @Query("{}")
+    <T> Flux<T> findPage(Pageable pageable, Class<T> type);
+
+    /**
+     * First page of the feed.
+     * @param pageable should be sorted by BlogPostRepository.FEED_SORT
+     */
+    @Query("{}")
+    <T> Flux<T> findFeed(Pageable pageable, Class<T> type);
+
+    /**
+     * Keyset page of the feed - the posts that come after (timestamp, id) in FEED_SORT order.
+     * @param pageable should be sorted by BlogPostRepository.FEED_SORT and always be on page 0
+     */
+    @Query("{ $or: [ { timestamp: { $lt: ?0 } }, { timestamp: ?0, _id: { $lt: ?1 } } ] }")
+    <T> Flux<T> findFeedAfter(Instant timestamp, ObjectId id, Pageable pageable, Class<T> type);
+
+    /**
+     * Every post in the given order. The driver fetches the next batch from the cursor only once
+     * the subscriber has asked for it, so a slow client slows down the query instead of filling memory.
+     */
+    @Query("{}")
+    <T> Flux<T> streamAll(Sort sort, Class<T> type);
+
+    /**
+     * The tags sorted by number of appearances, aggregated over every post
+     */
+    @Aggregation(pipeline = {
+            "{ $unwind: '$tags' }",
+            "{ $group: { _id: '$tags', count: { $sum: 1 } } }",
+            "{ $sort: { count: -1 } }"
+    })
+    Flux<TagCount> findMostPopularTags();
+
+}
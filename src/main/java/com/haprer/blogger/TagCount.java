@@ -3,15 +3,22 @@ package com.haprer.blogger;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
+/**
+ * Number of posts with a tag.
+ * Stored in the tag_counts collection, which TagCountService keeps up to date as posts are written,
+ * and also the output of the findMostPopularTags aggregation used to rebuild that collection.
+ */
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@Document("tag_counts")
 public class TagCount {
 
 
     @Field("_id")       //"_id" is assigned the tag value in the unwind process in blogpostrepository.java
     private String tag;
     private long count;
-}
\ No newline at end of file
+}
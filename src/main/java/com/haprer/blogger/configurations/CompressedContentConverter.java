@@ -0,0 +1,121 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.data.PostContent;
+import org.bson.BsonBinarySubType;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.convert.MongoConversionContext;
+import org.springframework.data.mongodb.core.convert.MongoValueConverter;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Converts BlogPost.content and Revision.content to and from mongo, registered for them by ContentCompressionConfig.
+ *
+ * When compression is on, content of at least min-size UTF-8 bytes is stored deflated as binary (user defined
+ * subtype) and smaller content as a string - deflate doesn't win much on a few hundred bytes. Both are always
+ * read, so compression can be turned on and off without touching the stored posts. Binary content is read into
+ * a PostContent that is only inflated when the text is used.
+ *
+ * Content that ContentChunkStore stored as chunks is written as its manifest - { chunks: [hashes], length } - and
+ * read back into a PostContent that is put together from the chunks when the text is used.
+ *
+ * The value written is a PostContent when a post is saved, and a String or PostContent when content is set by an update.
+ */
+public class CompressedContentConverter implements MongoValueConverter<Object, Object> {
+
+    private final boolean enabled;
+    private final int minSize;
+    private final int level;
+    private final Function<List<String>, String> chunkLoader;
+
+    public CompressedContentConverter(boolean enabled, int minSize, int level) {
+        this(enabled, minSize, level, chunks -> {
+            throw new IllegalStateException("Content is stored in chunks but there is no chunk store");
+        });
+    }
+
+    /**
+     * @param chunkLoader - puts chunked content back together, see ContentChunkStore.assemble
+     */
+    public CompressedContentConverter(boolean enabled, int minSize, int level, Function<List<String>, String> chunkLoader) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be 1 to 9, not " + level);
+        }
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.level = level;
+        this.chunkLoader = chunkLoader;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public Object read(Object value, MongoConversionContext context) {
+        if (value instanceof Binary binary) {
+            return PostContent.ofCompressed(binary.getData());
+        }
+        if (value instanceof byte[] bytes) {
+            return PostContent.ofCompressed(bytes);
+        }
+        if (value instanceof Document manifest) {
+            return PostContent.ofChunks(manifest.getList("chunks", String.class), manifest.getInteger("length"), chunkLoader);
+        }
+        return PostContent.of(value.toString());
+    }
+
+    @Override
+    public Object write(Object value, MongoConversionContext context) {
+        if (value instanceof PostContent content) {
+            if (content.chunks() != null) {
+                return new Document("chunks", content.chunks()).append("length", content.chunkedLength());
+            }
+            //content read compressed and never used is written back as it was read
+            if (enabled && content.compressed() != null) {
+                return new Binary(BsonBinarySubType.USER_DEFINED, content.compressed());
+            }
+            return write(content.text());
+        }
+        return write(value.toString());
+    }
+
+    /**
+     * @return the text as it is stored - compressed binary, or the text itself
+     */
+    public Object write(String text) {
+        //a char is at most 3 UTF-8 bytes, so shorter text never reaches min-size
+        if (!enabled || text.length() < minSize / 3 || utf8Length(text) < minSize) {
+            return text;
+        }
+        return new Binary(BsonBinarySubType.USER_DEFINED, PostContent.compress(text, level));
+    }
+
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
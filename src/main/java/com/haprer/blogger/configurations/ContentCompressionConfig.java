@@ -0,0 +1,40 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.Revision;
+import com.haprer.blogger.services.ContentChunkStore;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+/**
+ * Compression of the content of posts in mongo, turned on by blogger.content-compression.enabled - see
+ * CompressedContentConverter. Posts saved before it was turned on are compressed by MongoMigrationConfig.
+ * The same converter reads and writes the manifests of content stored as chunks by the ContentChunkStore.
+ *
+ * The bytes mongo sends back for each command are in mongodb.driver.commands.reply.size, by command - the find
+ * of /find is what gets smaller.
+ */
+@Configuration
+public class ContentCompressionConfig {
+
+    @Bean
+    public CompressedContentConverter compressedContentConverter(
+            @Value("${blogger.content-compression.enabled:false}") boolean enabled,
+            @Value("${blogger.content-compression.min-size:1024}") int minSize,
+            @Value("${blogger.content-compression.level:6}") int level,
+            ObjectProvider<ContentChunkStore> chunkStore) {
+        //the chunk store needs the mongo template, which needs this - it is looked up when content is first put together
+        return new CompressedContentConverter(enabled, minSize, level, chunks -> chunkStore.getObject().assemble(chunks));
+    }
+
+    //replaces spring boot's, which has no conversions
+    @Bean
+    public MongoCustomConversions mongoCustomConversions(CompressedContentConverter converter) {
+        return MongoCustomConversions.create(conversions -> conversions.configurePropertyConversions(
+                properties -> properties.registerConverter(BlogPost.class, "content", converter)
+                        .registerConverter(Revision.class, "content", converter)));
+    }
+}
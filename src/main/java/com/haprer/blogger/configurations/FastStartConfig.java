@@ -0,0 +1,61 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.BloggerApplication;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Fast start mode - run with --spring.profiles.active=fast-start, see application-fast-start.properties
+ * and the fast-start maven profile for the AOT and CDS archive.
+ *
+ * Every bean is created lazily except the app's own (controllers, services, configs) and what they need,
+ * so springdoc, the actuator endpoints and the rest of boot's auto-configuration are only created when
+ * something first asks for them. The app's own beans stay eager because they serve /blogposts and hold the
+ * @Scheduled jobs, which a lazy bean would never schedule.
+ */
+@Slf4j
+@Configuration
+@Profile("fast-start")
+public class FastStartConfig {
+
+    private final MongoTemplate mongoTemplate;
+
+    public FastStartConfig(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    //static so it is there before the bean definitions are made lazy
+    @Bean
+    public static LazyInitializationExcludeFilter eagerApplicationBeans() {
+        return (beanName, beanDefinition, beanType) ->
+                beanType.getPackageName().startsWith(BloggerApplication.class.getPackageName());
+    }
+
+    /**
+     * The driver connects to mongo in the background, but the first query still waits for a pooled connection
+     * to be opened and authenticated. This opens one on another thread as soon as the server is started,
+     * instead of on the first request.
+     */
+    @EventListener(ApplicationStartedEvent.class)
+    public void warmUpMongo() {
+        Thread.ofVirtual().name("mongo-warm-up").start(() -> {
+            Instant start = Instant.now();
+            try {
+                mongoTemplate.getDb().runCommand(new Document("ping", 1));
+                log.info("Connected to mongo in {} ms", Duration.between(start, Instant.now()).toMillis());
+            } catch (RuntimeException e) {
+                log.warn("Could not warm up the mongo connection", e);
+            }
+        });
+    }
+}
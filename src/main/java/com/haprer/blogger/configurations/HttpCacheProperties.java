@@ -0,0 +1,29 @@
+package com.haprer.blogger.configurations;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache-Control header of each GET endpoint, e.g.
+ * blogger.http.cache-control.find=max-age=60, must-revalidate
+ *
+ * Endpoints that are not listed get the default, which lets clients and the CDN keep a copy
+ * but makes them check it with the ETag before using it.
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "blogger.http")
+public class HttpCacheProperties {
+
+    private String defaultCacheControl = "no-cache";
+
+    private Map<String, String> cacheControl = new HashMap<>();
+
+    public String cacheControlFor(String endpoint) {
+        return cacheControl.getOrDefault(endpoint, defaultCacheControl);
+    }
+}
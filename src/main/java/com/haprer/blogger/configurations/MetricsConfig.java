@@ -0,0 +1,37 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.services.SlowQueryProfiler;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics on top of what spring boot records by itself. Everything is scraped from /actuator/prometheus.
+ *
+ * From spring boot, with histograms turned on in application.properties:
+ *  http.server.requests - every endpoint, tagged by uri and outcome
+ *  spring.data.repository.invocations - every BlogPostRepository method, tagged by method and state
+ *  mongodb.driver.commands - every mongo command, mongodb.driver.pool.* - the connection pool
+ * Added here and by PayloadMetricsFilter:
+ *  mongodb.driver.commands.documents and .reply.size - see MongoCommandMetrics
+ *  http.server.request.size and http.server.response.size - body sizes by uri and outcome
+ * The SlowQueryProfiler listens to the mongo commands here too.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MongoClientSettingsBuilderCustomizer commandMetricsCustomizer(MeterRegistry registry,
+            @Value("${blogger.metrics.mongo-reply-bytes:false}") boolean countBytes) {
+        return settings -> settings.addCommandListener(new MongoCommandMetrics(registry, countBytes));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "blogger.slow-query.enabled", matchIfMissing = true)
+    public MongoClientSettingsBuilderCustomizer slowQueryCustomizer(SlowQueryProfiler slowQueryProfiler) {
+        return settings -> settings.addCommandListener(slowQueryProfiler);
+    }
+}
@@ -0,0 +1,83 @@
+package com.haprer.blogger.configurations;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Records how many documents and how many bytes each mongo command returns, by command name.
+ * The latency of each command and the connection pool gauges come from spring boot's own mongo metrics
+ * (mongodb.driver.commands, mongodb.driver.pool.*) - this adds what those leave out.
+ *
+ * The driver hands over the reply already decoded, so counting its bytes means encoding it again -
+ * that is off unless blogger.metrics.mongo-reply-bytes=true.
+ */
+public class MongoCommandMetrics implements CommandListener {
+
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    private final MeterRegistry registry;
+    private final boolean countBytes;
+
+    public MongoCommandMetrics(MeterRegistry registry, boolean countBytes) {
+        this.registry = registry;
+        this.countBytes = countBytes;
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        BsonDocument reply = event.getResponse();
+        String command = event.getCommandName();
+        DistributionSummary.builder("mongodb.driver.commands.documents")
+                .description("Documents returned or written by a mongo command")
+                .tag("command", command)
+                .register(registry)
+                .record(documents(reply));
+        if (countBytes) {
+            DistributionSummary.builder("mongodb.driver.commands.reply.size")
+                    .description("Size of the reply to a mongo command")
+                    .baseUnit("bytes")
+                    .tag("command", command)
+                    .register(registry)
+                    .record(size(reply));
+        }
+    }
+
+    /**
+     * @return the documents in a cursor batch (find, aggregate, getMore), the n of a write or count,
+     *          and whether findAndModify found a document
+     */
+    public static int documents(BsonDocument reply) {
+        BsonValue cursor = reply.get("cursor");
+        if (cursor != null && cursor.isDocument()) {
+            BsonValue batch = cursor.asDocument().containsKey("firstBatch")
+                    ? cursor.asDocument().get("firstBatch")
+                    : cursor.asDocument().get("nextBatch");
+            return batch instanceof BsonArray array ? array.size() : 0;
+        }
+        BsonValue n = reply.get("n");
+        if (n != null && n.isNumber()) {
+            return n.asNumber().intValue();
+        }
+        BsonValue value = reply.get("value");
+        return value != null && value.isDocument() ? 1 : 0;
+    }
+
+    static int size(BsonDocument reply) {
+        if (reply instanceof RawBsonDocument raw) {
+            return raw.getByteBuffer().remaining();
+        }
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(buffer), reply, EncoderContext.builder().build());
+        return buffer.getPosition();
+    }
+}
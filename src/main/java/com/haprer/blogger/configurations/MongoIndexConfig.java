@@ -0,0 +1,273 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.BlogPostRepository;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.Revision;
+import com.mongodb.MongoException;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.repository.query.parser.Part;
+import org.springframework.data.repository.query.parser.PartTree;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates the indexes declared on the documents (@CompoundIndex, @Indexed), then checks that the queries
+ * of BlogPostRepository use them.
+ * Spring's auto-index-creation does this while the context is starting and blocks startup until mongo answers,
+ * so instead this runs once the app is ready and only logs a warning if mongo is not reachable.
+ *
+ * The check asks mongo to explain() each query and looks for a COLLSCAN - a scan of the whole collection - in
+ * the plan it would use. The queries are made from the repository's methods themselves - the @Query filter, or
+ * the filter spring data derives from the method name - with made up values. A method whose query can't be made
+ * that way needs a reason in UNCHECKED for why it isn't checked. A query that scans is logged as a warning, or
+ * stops the app from starting if blogger.indexes.fail-on-collection-scan is set.
+ *
+ * A unique index that can't be created because documents already break it leaves the "indexes" health DOWN
+ * until it is created - without it nothing stops more duplicates from being written.
+ */
+@Slf4j
+@Configuration
+public class MongoIndexConfig {
+
+    //repository methods that are expected to read the whole collection
+    private static final Map<String, String> UNCHECKED = Map.of(
+            "findMostPopularTags", "counts every tag of every post - only run when the tag counts are rebuilt");
+
+    //the sorts the callers of the paged methods use - a Pageable's sort isn't part of the method
+    private static final Map<String, Sort> CALLER_SORTS = Map.of(
+            "findPage", BlogPostRepository.PAGE_SORT,
+            "findFeed", BlogPostRepository.FEED_SORT,
+            "findFeedAfter", BlogPostRepository.FEED_SORT);
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\?(\\d+)");
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean failOnCollectionScan;
+    private final List<String> missingUniqueIndexes = new CopyOnWriteArrayList<>();
+
+    public MongoIndexConfig(MongoTemplate mongoTemplate,
+                            @Value("${blogger.indexes.fail-on-collection-scan:false}") boolean failOnCollectionScan) {
+        this.mongoTemplate = mongoTemplate;
+        this.failOnCollectionScan = failOnCollectionScan;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        List<String> problems;
+        try {
+            createIndexes();
+            problems = findCollectionScans();
+        } catch (DataAccessException | MongoException e) {
+            log.warn("Could not create or check indexes for {}", BlogPost.class.getSimpleName(), e);
+            return;
+        }
+
+        if (problems.isEmpty()) {
+            log.info("Every {} query uses an index", BlogPostRepository.class.getSimpleName());
+        } else if (failOnCollectionScan) {
+            throw new IllegalStateException("Queries without an index: " + problems);
+        } else {
+            problems.forEach(problem -> log.warn("Query without an index: {}", problem));
+        }
+    }
+
+    /**
+     * Create the missing indexes. On mongo before 4.2 they are built in the background so the collection is
+     * not locked while they are built - later versions always do that.
+     */
+    private void createIndexes() {
+        for (Class<?> document : new Class<?>[]{BlogPost.class, Revision.class}) {
+            IndexOperations indexOps = mongoTemplate.indexOps(document);
+            for (IndexDefinition index : new MongoPersistentEntityIndexResolver(mongoTemplate.getConverter().getMappingContext())
+                    .resolveIndexFor(document)) {
+                String name = document.getSimpleName() + "." + index.getIndexOptions().get("name");
+                try {
+                    indexOps.ensureIndex(index);
+                    missingUniqueIndexes.remove(name);
+                } catch (DuplicateKeyException e) {
+                    log.error("Could not create the unique index {} - documents that share its keys {} have to be removed first",
+                            name, index.getIndexKeys().keySet(), e);
+                    if (!missingUniqueIndexes.contains(name)) {
+                        missingUniqueIndexes.add(name);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * DOWN while a unique index could not be created
+     */
+    @Bean
+    public HealthIndicator indexesHealthIndicator() {
+        return () -> missingUniqueIndexes.isEmpty()
+                ? Health.up().build()
+                : Health.down().withDetail("missingUniqueIndexes", List.copyOf(missingUniqueIndexes)).build();
+    }
+
+    /**
+     * @return the repository methods whose query would scan the whole collection or that are not checked,
+     *          with the reason
+     */
+    public List<String> findCollectionScans() {
+        String collection = mongoTemplate.getCollectionName(BlogPost.class);
+        Map<String, Document> plans = new LinkedHashMap<>();
+        List<String> problems = new ArrayList<>();
+        for (Method method : queryMethods()) {
+            Document command = command(collection, method);
+            if (command != null) {
+                plans.put(method.getName(), command);
+            } else if (!UNCHECKED.containsKey(method.getName())) {
+                problems.add(method.getName() + " is not checked");
+            }
+        }
+        //not a repository method - BlogService.getFeed with tags before the tag index is loaded
+        plans.put("getFeed with tags", find(collection,
+                new Document("tags", new Document("$all", List.of("a", "b"))), sort(BlogPostRepository.FEED_SORT)));
+
+        plans.forEach((method, command) -> {
+            Document explained = mongoTemplate.getDb().runCommand(
+                    new Document("explain", command).append("verbosity", "queryPlanner"));
+            Object winningPlan = explained.get("queryPlanner", Document.class).get("winningPlan");
+            if (containsStage(winningPlan, "COLLSCAN")) {
+                problems.add(method + " scans the collection: " + command.toJson());
+            }
+        });
+        return problems;
+    }
+
+    /**
+     * @return the command the repository method sends, with made up values - null if it can't be made
+     */
+    private static Document command(String collection, Method method) {
+        if (UNCHECKED.containsKey(method.getName())) {
+            return null;
+        }
+        Query query = method.getAnnotation(Query.class);
+        Document sort = CALLER_SORTS.containsKey(method.getName()) ? sort(CALLER_SORTS.get(method.getName())) : null;
+        if (query != null) {
+            Document filter = bind(query.value(), method.getParameterTypes());
+            return filter == null ? null : find(collection, filter, sort);
+        }
+
+        PartTree tree;
+        try {
+            tree = new PartTree(method.getName(), BlogPost.class);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        List<Document> or = new ArrayList<>();
+        for (PartTree.OrPart orPart : tree) {
+            Document and = new Document();
+            for (Part part : orPart) {
+                if (part.getType() != Part.Type.SIMPLE_PROPERTY) {
+                    return null;
+                }
+                and.append(part.getProperty().toDotPath(), "value");
+            }
+            or.add(and);
+        }
+        Document filter = or.size() == 1 ? or.getFirst() : new Document("$or", or);
+        if (tree.isDelete()) {
+            return new Document("delete", collection)
+                    .append("deletes", List.of(new Document("q", filter).append("limit", 0)));
+        }
+        return find(collection, filter, sort);
+    }
+
+    //the @Query filter with a made up value of the parameter's type for each ?n - null for a type without one
+    private static Document bind(String json, Class<?>[] parameterTypes) {
+        Map<Integer, String> values = new HashMap<>();     //the same value each time a parameter is used
+        Matcher matcher = PLACEHOLDER.matcher(json);
+        StringBuilder bound = new StringBuilder();
+        while (matcher.find()) {
+            String value = values.computeIfAbsent(Integer.parseInt(matcher.group(1)), i -> sample(parameterTypes[i]));
+            if (value == null) {
+                return null;
+            }
+            matcher.appendReplacement(bound, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(bound);
+        return Document.parse(bound.toString());
+    }
+
+    private static String sample(Class<?> type) {
+        if (type == String.class) {
+            return "'value'";
+        }
+        if (type == Instant.class || type == Date.class) {
+            return "{ $date: " + System.currentTimeMillis() + " }";
+        }
+        if (type == ObjectId.class) {
+            return "{ $oid: '" + new ObjectId().toHexString() + "' }";
+        }
+        if (Number.class.isAssignableFrom(type) || type.isPrimitive()) {
+            return "0";
+        }
+        return null;
+    }
+
+    private static Document sort(Sort sort) {
+        Document document = new Document();
+        sort.forEach(order -> document.append(order.getProperty(), order.isAscending() ? 1 : -1));
+        return document;
+    }
+
+    private static Document find(String collection, Document filter, Document sort) {
+        Document find = new Document("find", collection).append("filter", filter).append("limit", 11);
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        return find;
+    }
+
+    //the query methods declared on the repository itself, not the ones inherited from MongoRepository
+    private static List<Method> queryMethods() {
+        return Arrays.stream(BlogPostRepository.class.getDeclaredMethods())
+                .filter(method -> !method.isDefault() && !Modifier.isStatic(method.getModifiers()))
+                .sorted(Comparator.comparing(Method::getName))
+                .toList();
+    }
+
+    //plans are trees of stages - inputStage, inputStages, and shards on a sharded cluster
+    private static boolean containsStage(Object plan, String stage) {
+        if (plan instanceof Document document) {
+            return stage.equals(document.get("stage"))
+                    || document.values().stream().anyMatch(value -> containsStage(value, stage));
+        }
+        if (plan instanceof List<?> list) {
+            return list.stream().anyMatch(value -> containsStage(value, stage));
+        }
+        return false;
+    }
+}
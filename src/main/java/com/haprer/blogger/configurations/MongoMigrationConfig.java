@@ -0,0 +1,145 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.data.BlogPost;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Brings posts saved by older versions of the app up to date with the current BlogPost document.
+ * Finding the posts a step still has to touch is a scan of the whole collection, so a finished step leaves a
+ * marker in the migrations collection and later startups skip it.
+ */
+@Slf4j
+@Configuration
+public class MongoMigrationConfig {
+
+    public static final String COLLECTION = "migrations";
+    private static final String ADD_VERSIONS = "add-versions";
+    private static final String COMPRESS_CONTENT = "compress-content";
+    private static final int COMPRESS_BATCH_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+    private final CompressedContentConverter contentConverter;
+
+    public MongoMigrationConfig(MongoTemplate mongoTemplate, CompressedContentConverter contentConverter) {
+        this.mongoTemplate = mongoTemplate;
+        this.contentConverter = contentConverter;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        try {
+            addVersions();
+            compressContent();
+        } catch (RuntimeException e) {
+            log.warn("Could not migrate {} documents", BlogPost.class.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * BlogPost.version is a @Version field - spring data treats a post without one as new and would insert it again.
+     * Every post saved since has a version, so this only has to run once.
+     */
+    private void addVersions() {
+        if (migrations().find(Filters.eq("_id", ADD_VERSIONS)).first() != null) {
+            return;
+        }
+        UpdateResult result = mongoTemplate.updateMulti(new Query(where("version").exists(false)),
+                new Update().set("version", 0L), BlogPost.class);
+        if (result.getModifiedCount() > 0) {
+            log.info("Added a version to {} posts", result.getModifiedCount());
+        }
+        markDone(ADD_VERSIONS, new Document());
+    }
+
+    /**
+     * When content compression is on, compresses the content that was saved as a string before it was.
+     * The version and updated time are left alone - it is the same post, only stored differently.
+     * Turning compression off again doesn't need a step, compressed content is still read - but it drops the marker,
+     * posts saved while it is off are compressed when it is turned back on.
+     * It also runs again when the min size changes, a smaller one compresses content that was left alone before.
+     */
+    private void compressContent() {
+        if (!contentConverter.isEnabled()) {
+            migrations().deleteOne(Filters.eq("_id", COMPRESS_CONTENT));
+            return;
+        }
+        Document done = migrations().find(Filters.eq("_id", COMPRESS_CONTENT)).first();
+        if (done != null && Objects.equals(done.get("minSize"), contentConverter.getMinSize())) {
+            return;
+        }
+        MongoCollection<Document> posts = mongoTemplate.getCollection(mongoTemplate.getCollectionName(BlogPost.class));
+        //string content of at least min-size bytes - $and stops at the $type, so $strLenBytes only sees strings
+        Document uncompressed = new Document("$expr", new Document("$and", List.of(
+                new Document("$eq", List.of(new Document("$type", "$content"), "string")),
+                new Document("$gte", List.of(new Document("$strLenBytes", "$content"), contentConverter.getMinSize())))));
+
+        List<UpdateOneModel<Document>> updates = new ArrayList<>();
+        long compressed = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        try (MongoCursor<Document> cursor = posts.find(uncompressed).projection(Projections.include("content"))
+                .batchSize(COMPRESS_BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                Document post = cursor.next();
+                String text = post.getString("content");
+                if (!(contentConverter.write(text) instanceof Binary stored)) {
+                    continue;
+                }
+                //only if the content wasn't changed since it was read
+                updates.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", post.get("_id")), Filters.eq("content", text)),
+                        Updates.set("content", stored)));
+                bytesBefore += text.getBytes(StandardCharsets.UTF_8).length;
+                bytesAfter += stored.length();
+                if (updates.size() == COMPRESS_BATCH_SIZE) {
+                    compressed += posts.bulkWrite(updates).getModifiedCount();
+                    updates.clear();
+                }
+            }
+        }
+        if (!updates.isEmpty()) {
+            compressed += posts.bulkWrite(updates).getModifiedCount();
+        }
+        if (compressed > 0) {
+            log.info("Compressed the content of {} posts from {} to {} bytes ({}% smaller)", compressed, bytesBefore,
+                    bytesAfter, 100 - bytesAfter * 100 / Math.max(1, bytesBefore));
+        }
+        markDone(COMPRESS_CONTENT, new Document("minSize", contentConverter.getMinSize()));
+    }
+
+    /**
+     * Records that a step went through all posts, with the settings it ran with
+     */
+    private void markDone(String step, Document settings) {
+        Document marker = new Document("_id", step).append("done", new Date());
+        marker.putAll(settings);
+        migrations().replaceOne(Filters.eq("_id", step), marker, new ReplaceOptions().upsert(true));
+    }
+
+    private MongoCollection<Document> migrations() {
+        return mongoTemplate.getCollection(COLLECTION);
+    }
+}
@@ -0,0 +1,30 @@
+package com.haprer.blogger.configurations;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size of the mongo connection pool. The defaults are the driver's own,
+ * application-virtual.properties raises them for virtual thread mode.
+ */
+@Configuration
+public class MongoPoolConfig {
+
+    @Bean
+    public MongoClientSettingsBuilderCustomizer connectionPoolCustomizer(
+            @Value("${blogger.mongo.max-pool-size:100}") int maxPoolSize,
+            @Value("${blogger.mongo.min-pool-size:0}") int minPoolSize,
+            @Value("${blogger.mongo.max-connecting:2}") int maxConnecting,
+            @Value("${blogger.mongo.max-wait-time:2m}") Duration maxWaitTime) {
+        return settings -> settings.applyToConnectionPoolSettings(pool -> pool
+                .maxSize(maxPoolSize)
+                .minSize(minPoolSize)
+                .maxConnecting(maxConnecting)
+                .maxWaitTime(maxWaitTime.toMillis(), TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,71 @@
+package com.haprer.blogger.configurations;
+
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.datatype.jsr310.deser.InstantDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.InstantSerializer;
+import com.haprer.blogger.BlogPostRepository;
+import com.haprer.blogger.TagCount;
+import com.haprer.blogger.data.BatchItemResult;
+import com.haprer.blogger.data.BatchSaveResult;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostPatch;
+import com.haprer.blogger.data.BlogPostSummary;
+import com.haprer.blogger.data.CacheStatistics;
+import com.haprer.blogger.data.CursorPage;
+import com.haprer.blogger.data.Revision;
+import com.haprer.blogger.data.SearchResult;
+import com.haprer.blogger.data.SlowQuery;
+import com.haprer.blogger.data.SlowQueryTotal;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.data.mongodb.repository.Aggregation;
+
+/**
+ * What the native image needs to know about that Spring's AOT processing can't find by itself - see the
+ * native maven profile. Without the native image these hints do nothing.
+ *
+ * Some controllers return ResponseEntity<Object> and the response cache serializes bodies itself, so AOT can't see
+ * which types Jackson writes and they are listed here. BlogPost and TagCount are also read and written by spring
+ * data through their fields and no-arg constructors (BlogPost's and Revision's are private), and TagCount's tag is
+ * mapped from _id by its @Field annotation.
+ */
+@Configuration
+@ImportRuntimeHints(NativeHints.Registrar.class)
+public class NativeHints {
+
+    //request and response bodies of the controllers
+    private static final Class<?>[] JSON_TYPES = {
+            BlogPost.class, BlogPostSummary.class, BlogPostPatch.class, CursorPage.class, TagCount.class,
+            BatchSaveResult.class, BatchItemResult.class, SearchResult.class, CacheStatistics.class,
+            SlowQuery.class, SlowQueryTotal.class, Revision.class
+    };
+
+    public static class Registrar implements RuntimeHintsRegistrar {
+
+        @Override
+        public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+            //getters, setters, fields and constructors of each type and the types of its properties
+            new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(), JSON_TYPES);
+
+            //spring data's mapping reads and writes the fields directly
+            for (Class<?> document : new Class<?>[]{BlogPost.class, TagCount.class, Revision.class}) {
+                hints.reflection().registerType(document, MemberCategory.DECLARED_FIELDS,
+                        MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_METHODS);
+            }
+
+            //findMostPopularTags' pipeline is read from its @Aggregation when the repository is created
+            hints.reflection().registerType(BlogPostRepository.class, MemberCategory.INTROSPECT_PUBLIC_METHODS);
+            hints.reflection().registerType(Aggregation.class, MemberCategory.INVOKE_PUBLIC_METHODS);
+
+            //JacksonConfig registers the java.time module itself, Instant is the only java.time type the app uses
+            for (Class<?> type : new Class<?>[]{JavaTimeModule.class, InstantSerializer.class, InstantDeserializer.class}) {
+                hints.reflection().registerType(type, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS,
+                        MemberCategory.INVOKE_PUBLIC_METHODS);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.haprer.blogger.configurations;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.boot.actuate.metrics.http.Outcome;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+
+/**
+ * Records the size of request and response bodies, tagged like http.server.requests by method, uri and outcome.
+ * The bytes are counted as they go through the streams, so streamed responses like /export are measured
+ * without being buffered - an async response is recorded when it completes.
+ * Only the servlet stack - the reactive profile only gets boot's http.server.requests.
+ */
+@Component
+@Profile("!reactive")
+public class PayloadMetricsFilter extends OncePerRequestFilter {
+
+    private final MeterRegistry registry;
+
+    public PayloadMetricsFilter(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        CountingRequest countingRequest = new CountingRequest(request);
+        CountingResponse countingResponse = new CountingResponse(response);
+        try {
+            chain.doFilter(countingRequest, countingResponse);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        record(request, response, countingRequest.count, countingResponse.count);
+                    }
+                    @Override
+                    public void onTimeout(AsyncEvent event) {}
+                    @Override
+                    public void onError(AsyncEvent event) {}
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+            } else {
+                record(request, response, countingRequest.count, countingResponse.count);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, HttpServletResponse response, Counter requestBytes, Counter responseBytes) {
+        //the mapping's pattern, not the path, so ids and query strings don't each get their own series
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        Tags tags = Tags.of("method", request.getMethod(),
+                "uri", pattern == null ? "UNKNOWN" : pattern.toString(),
+                "outcome", Outcome.forStatus(response.getStatus()).name());
+        if (requestBytes.bytes > 0) {
+            DistributionSummary.builder("http.server.request.size")
+                    .description("Size of request bodies")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry)
+                    .record(requestBytes.bytes);
+        }
+        DistributionSummary.builder("http.server.response.size")
+                .description("Size of response bodies")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry)
+                .record(responseBytes.bytes);
+    }
+
+    private static final class Counter {
+        long bytes;
+    }
+
+    private static final class CountingRequest extends HttpServletRequestWrapper {
+        final Counter count = new Counter();
+        private ServletInputStream stream;
+
+        CountingRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (stream == null) {
+                ServletInputStream in = super.getInputStream();
+                stream = new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        int read = in.read();
+                        if (read >= 0) {
+                            count.bytes++;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = in.read(buffer, offset, length);
+                        if (read > 0) {
+                            count.bytes += read;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return in.isFinished();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return in.isReady();
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener listener) {
+                        in.setReadListener(listener);
+                    }
+                };
+            }
+            return stream;
+        }
+    }
+
+    //bodies written through getWriter() are not counted - spring's message converters all use the stream
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+        final Counter count = new Counter();
+        private ServletOutputStream stream;
+
+        CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                ServletOutputStream out = super.getOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        count.bytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException {
+                        out.write(buffer, offset, length);
+                        count.bytes += length;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        out.close();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return out.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener listener) {
+                        out.setWriteListener(listener);
+                    }
+                };
+            }
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.haprer.blogger.configurations;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostContent;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.mapping.event.ReactiveAfterConvertCallback;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Content stored as chunks is put together the first time it is used, which for the reactive endpoints would be
+ * while the post is written out on the event loop - with a blocking read of the chunks (see ContentChunkStore).
+ * This does it on boundedElastic instead, as each post with chunked content is read.
+ */
+@Component
+@Profile("reactive")
+public class ReactiveContentCallback implements ReactiveAfterConvertCallback<BlogPost> {
+
+    @Override
+    public Publisher<BlogPost> onAfterConvert(BlogPost post, Document document, String collection) {
+        PostContent content = post.getStoredContent();
+        if (content == null || content.chunks() == null || content.isLoaded()) {
+            return Mono.just(post);
+        }
+        return Mono.fromCallable(() -> {
+            content.text();
+            return post;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+}
@@ -0,0 +1,31 @@
+package com.haprer.blogger.configurations;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long requests wait for an identical read already in flight, by the read's group - see SingleFlight, e.g.
+ * blogger.single-flight.timeout.populartags=10s
+ *
+ * Groups that are not listed get the default.
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "blogger.single-flight")
+public class SingleFlightProperties {
+
+    private boolean enabled = true;
+
+    private Duration defaultTimeout = Duration.ofSeconds(5);
+
+    private Map<String, Duration> timeout = new HashMap<>();
+
+    public Duration timeoutFor(String group) {
+        return timeout.getOrDefault(group, defaultTimeout);
+    }
+}
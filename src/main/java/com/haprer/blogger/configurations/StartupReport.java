@@ -0,0 +1,105 @@
+package com.haprer.blogger.configurations;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.metrics.buffering.StartupTimeline;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Logs where the startup time went once the app is ready, and how long after the JVM started the first
+ * request was answered. Turned on by blogger.startup.report, which the fast-start profile sets.
+ *
+ * The phases come from the steps BloggerApplication's BufferingApplicationStartup records - the same timeline
+ * /actuator/startup returns. Bean times include the beans they need, so a slow bean shows up in its
+ * dependents too.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "blogger.startup.report")
+public class StartupReport {
+
+    private static final int SLOWEST_BEANS = 10;
+
+    private final AtomicBoolean firstRequest = new AtomicBoolean(true);
+
+    //before the other ready listeners, which may wait on mongo
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationReadyEvent.class)
+    public void report(ApplicationReadyEvent event) {
+        Instant jvmStart = Instant.ofEpochMilli(ManagementFactory.getRuntimeMXBean().getStartTime());
+        StringBuilder report = new StringBuilder("Startup report - ready ")
+                .append(Duration.between(jvmStart, Instant.now()).toMillis()).append(" ms after the JVM started");
+
+        if (!(event.getApplicationContext().getApplicationStartup() instanceof BufferingApplicationStartup startup)) {
+            log.info("{} (no startup steps recorded)", report);
+            return;
+        }
+        StartupTimeline timeline = startup.getBufferedTimeline();
+        List<StartupTimeline.TimelineEvent> events = timeline.getEvents();
+        line(report, "jvm", Duration.between(jvmStart, timeline.getStartTime()));
+
+        //the top level phases, and under each what it is made of
+        Map<Long, Map<String, Duration>> children = new HashMap<>();
+        for (StartupTimeline.TimelineEvent step : events) {
+            if (step.getStartupStep().getParentId() != null) {
+                children.computeIfAbsent(step.getStartupStep().getParentId(), id -> new LinkedHashMap<>())
+                        .merge(step.getStartupStep().getName(), step.getDuration(), Duration::plus);
+            }
+        }
+        for (StartupTimeline.TimelineEvent step : events) {
+            if (step.getStartupStep().getParentId() == null) {
+                line(report, step.getStartupStep().getName(), step.getDuration());
+                children.getOrDefault(step.getStartupStep().getId(), Map.of())
+                        .forEach((name, duration) -> line(report, "  " + name, duration));
+            }
+        }
+
+        report.append("\n  slowest beans:");
+        events.stream()
+                .filter(step -> step.getStartupStep().getName().equals("spring.beans.instantiate"))
+                .sorted(Comparator.comparing(StartupTimeline.TimelineEvent::getDuration).reversed())
+                .limit(SLOWEST_BEANS)
+                .forEach(step -> line(report, "  " + tag(step.getStartupStep(), "beanName"), step.getDuration()));
+        log.info("{}", report);
+    }
+
+    //the servlet stack publishes one of these after each request
+    @EventListener
+    public void firstRequest(ServletRequestHandledEvent event) {
+        if (firstRequest.compareAndSet(true, false)) {
+            long sinceJvmStart = event.getTimestamp() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            log.info("First request {} {} answered {} in {} ms, {} ms after the JVM started", event.getMethod(),
+                    event.getRequestUrl(), event.getStatusCode(), event.getProcessingTimeMillis(), sinceJvmStart);
+        }
+    }
+
+    private static void line(StringBuilder report, String phase, Duration duration) {
+        report.append(String.format("%n  %-60s %6d ms", phase, duration.toMillis()));
+    }
+
+    private static String tag(StartupStep step, String key) {
+        for (StartupStep.Tag tag : step.getTags()) {
+            if (tag.getKey().equals(key)) {
+                return tag.getValue();
+            }
+        }
+        return step.getName();
+    }
+}
@@ -0,0 +1,67 @@
+package com.haprer.blogger.controllers;
+
+import com.haprer.blogger.data.CacheStatistics;
+import com.haprer.blogger.data.SlowQuery;
+import com.haprer.blogger.data.SlowQueryTotal;
+import com.haprer.blogger.services.ContentChunkStore;
+import com.haprer.blogger.services.PostCache;
+import com.haprer.blogger.services.SlowQueryProfiler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Endpoints for looking at how the service is running - not used by the front end
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+
+    @Autowired
+    private PostCache postCache;
+
+    @Autowired
+    private JsonResponseCache jsonResponseCache;
+
+    @Autowired
+    private SlowQueryProfiler slowQueryProfiler;
+
+    @Autowired
+    private ContentChunkStore contentChunkStore;
+
+
+    /**
+     * @return hit, miss and eviction counts of the post, response and content chunk caches
+     */
+    @GetMapping("/cache")
+    public List<CacheStatistics> getCacheStatistics() {
+        List<CacheStatistics> stats = new ArrayList<>(postCache.stats());
+        stats.add(jsonResponseCache.stats());
+        stats.add(contentChunkStore.stats());
+        return stats;
+    }
+
+    /**
+     * @param limit - the most to return
+     * @return the mongo commands slower than blogger.slow-query.threshold, most recent first
+     */
+    @GetMapping("/slow-queries")
+    public List<SlowQuery> getSlowQueries(@RequestParam(defaultValue = "100") int limit) {
+        return slowQueryProfiler.recent(limit);
+    }
+
+    /**
+     * @param limit - the most to return
+     * @return the slow mongo commands added up by shape, the most total time first
+     */
+    @GetMapping("/slow-queries/top")
+    public List<SlowQueryTotal> getTopSlowQueries(@RequestParam(defaultValue = "10") int limit) {
+        return slowQueryProfiler.top(limit);
+    }
+}
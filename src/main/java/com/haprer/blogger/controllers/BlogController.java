@@ -1,75 +1,462 @@
 package com.haprer.blogger.controllers;
 
+import com.haprer.blogger.BlogPostRepository;
 import com.haprer.blogger.TagCount;
+import com.haprer.blogger.configurations.HttpCacheProperties;
+import com.haprer.blogger.services.BatchIngestService;
 import com.haprer.blogger.services.BlogService;
+import com.haprer.blogger.services.ContentVersions;
+import com.haprer.blogger.services.ExportService;
+import com.haprer.blogger.services.RevisionService;
+import com.haprer.blogger.services.SearchService;
+import com.haprer.blogger.services.WriteBehindService;
+import com.haprer.blogger.data.BatchSaveResult;
 import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostPatch;
+import com.haprer.blogger.data.BlogPostSummary;
+import com.haprer.blogger.data.CursorPage;
+import com.haprer.blogger.data.FeedItem;
+import com.haprer.blogger.data.Revision;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 @RestController
+@Profile("!reactive")
 public class BlogController {
 
 
     @Autowired
     private BlogService blogService;
 
+    @Autowired
+    private BatchIngestService batchIngestService;
+
+    @Autowired
+    private ExportService exportService;
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private RevisionService revisionService;
+
+    @Autowired
+    private ContentVersions contentVersions;
+
+    @Autowired
+    private HttpCacheProperties httpCacheProperties;
+
+    @Autowired
+    private JsonResponseCache jsonResponseCache;
+
+    //only there in write-behind mode
+    @Autowired
+    private ObjectProvider<WriteBehindService> writeBehindService;
+
+    //pages of /blogposts below this number are served from the response cache
+    @Value("${blogger.response-cache.pages:3}")
+    private int cachedPages;
+
+    @Value("${blogger.feed.max-page-size:100}")
+    private int maxPageSize;
+
 
     /**
      * create a new blog request
      * @param blogPost blog post
      * @return the saved blog post
+     *          ResponseEntity HttpStatus CONFLICT if the author already has a post with the title
+     *          In write-behind mode (blogger.write-behind.enabled):
+     *          ResponseEntity HttpStatus ACCEPTED with the post and the id it will be saved with - a duplicate
+     *          title and author is not reported
+     *          ResponseEntity HttpStatus SERVICE UNAVAILABLE if too many posts are waiting to be saved
      */
     @PostMapping("/save")
-    public ResponseEntity<BlogPost> save (@RequestBody BlogPost blogPost) {
+    public ResponseEntity<Object> save (@RequestBody BlogPost blogPost) {
         blogPost.setTimestamp(Instant.now());
-        BlogPost createdPost = blogService.save(blogPost);
-        return new ResponseEntity<>(createdPost, HttpStatus.CREATED);
+        WriteBehindService writeBehind = writeBehindService.getIfAvailable();
+        if (writeBehind != null) {
+            if (!writeBehind.submit(blogPost)) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "1")
+                        .body("Too many posts are waiting to be saved, try again later");
+            }
+            return new ResponseEntity<>(blogPost, HttpStatus.ACCEPTED);
+        }
+        try {
+            BlogPost createdPost = blogService.save(blogPost);
+            return new ResponseEntity<>(createdPost, HttpStatus.CREATED);
+        } catch (DuplicateKeyException e) {
+            return new ResponseEntity<>("A post with this title and author already exists", HttpStatus.CONFLICT);
+        }
+    }
+
+    /**
+     * Save many new blog posts at once, e.g. to import an archive
+     * The body is read as a stream and written in chunks, so it can be any size.
+     * @param body a JSON array of posts, or NDJSON - one post per line
+     * @return the result of every post and how long the batch took
+     *          HttpStatus BAD REQUEST if the body could not be read to the end - the posts before the error are saved
+     */
+    @PostMapping(value = "/save/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<BatchSaveResult> saveBatch(InputStream body) {
+        BatchSaveResult result = batchIngestService.save(body);
+        return new ResponseEntity<>(result, result.getError() == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
     }
 
     /**
      * Get a blog post by title and author
+     * The ETag is built from the post's id and version, so a matching If-None-Match gets a 304 without
+     * the post being serialized. Otherwise the serialized post comes from the response cache.
      * @param title
      * @param author
      * @return ResponseEntity containing the blog if it exists
      *          ResponseEntity HttpStatus NOT FOUND if it does not exist. 
+     *          HttpStatus NOT MODIFIED if the client's copy is current
+     *          HttpStatus SERVICE UNAVAILABLE if the same read by another request took too long
      */
     @GetMapping("/find")
-    public ResponseEntity<Object> findByTitleAndAuthor(@RequestParam String title, @RequestParam String author) {
-        Optional<BlogPost> blog = blogService.findByTitleAndAuthor(title, author);
-        return blog.<ResponseEntity<Object>>map(blogPost -> new ResponseEntity<>(blogPost, HttpStatus.FOUND))
-                .orElseGet(() -> new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND));
+    public ResponseEntity<Object> findByTitleAndAuthor(@RequestParam String title, @RequestParam String author,
+                                                       ServletWebRequest request) {
+        Optional<BlogPost> blog;
+        try {
+            blog = blogService.findByTitleAndAuthor(title, author);
+        } catch (QueryTimeoutException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        if (blog.isEmpty()) {
+            return new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND);
+        }
+        BlogPost blogPost = blog.get();
+        String etag = ContentVersions.postETag(blogPost.getId(), blogPost.getVersion());
+        if (notModified(request, "find", etag, null)) {
+            return null;
+        }
+        if (etag == null) {
+            return new ResponseEntity<>(blogPost, HttpStatus.FOUND);
+        }
+        return jsonResponseCache.respond("find " + etag, HttpStatus.FOUND, request, () -> blogPost);
     }
 
 
     /**
-     * Get a set of blog posts - most recent first
+     * Change some fields of a post - see BlogPostPatch. Only the changed fields are sent to mongo and the post
+     * is changed in a single update, so patches of different fields don't overwrite each other.
+     * Send the post's ETag in If-Match to only change it if nobody else has since it was read - a version in the
+     * patch does the same.
+     * @param id - the id of the post
+     * @param patch - the fields to change
+     * @param ifMatch - the ETag the post was read with
+     * @return ResponseEntity containing the post after the patch
+     *          ResponseEntity HttpStatus NOT FOUND if there is no such post
+     *          HttpStatus BAD REQUEST if the patch or If-Match is not valid
+     *          HttpStatus PRECONDITION FAILED if the post no longer matches If-Match
+     *          HttpStatus CONFLICT if the post no longer has the patch's version or the author already has a post with the new title
+     */
+    @PatchMapping(value = "/update", params = "id")
+    public ResponseEntity<Object> patchById(@RequestParam String id, @RequestBody BlogPostPatch patch,
+                                            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return patched(ifMatch, () -> blogService.patchById(id, ifMatch(patch, ifMatch)));
+    }
+
+    /**
+     * Change some fields of the post with the title and author - see patchById
+     */
+    @PatchMapping(value = "/update", params = {"title", "author"})
+    public ResponseEntity<Object> patchByTitleAndAuthor(@RequestParam String title, @RequestParam String author,
+                                                        @RequestBody BlogPostPatch patch,
+                                                        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return patched(ifMatch, () -> blogService.patchByTitleAndAuthor(title, author, ifMatch(patch, ifMatch)));
+    }
+
+    private ResponseEntity<Object> patched(String ifMatch, Supplier<Optional<BlogPost>> patch) {
+        try {
+            Optional<BlogPost> post = patch.get();
+            if (post.isEmpty()) {
+                return new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND);
+            }
+            return ResponseEntity.ok()
+                    .eTag(ContentVersions.postETag(post.get().getId(), post.get().getVersion()))
+                    .body(post.get());
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        } catch (OptimisticLockingFailureException e) {
+            return new ResponseEntity<>(e.getMessage(), ifMatch == null ? HttpStatus.CONFLICT : HttpStatus.PRECONDITION_FAILED);
+        } catch (DuplicateKeyException e) {
+            return new ResponseEntity<>("A post with this title and author already exists", HttpStatus.CONFLICT);
+        }
+    }
+
+    //the post to patch is the one the client read, by the ETag it was read with
+    private static BlogPostPatch ifMatch(BlogPostPatch patch, String ifMatch) {
+        ContentVersions.PostVersion expected = ContentVersions.parsePostETag(ifMatch);
+        if (expected != null) {
+            patch.expect(expected.id(), expected.version());
+        }
+        return patch;
+    }
+
+    /**
+     * Get a set of blog posts by page number, in the order they are stored
+     * Every request runs a count query and deep pages skip over all earlier posts - prefer the cursor version below
      * TODO: create tests
      * @param page
      * @param size
-     * @return
+     * @param full - true to get whole posts, by default posts are summaries without the content
+     * @return the page, or nothing with HttpStatus NOT MODIFIED if no post changed since the client's copy
+     *          the first few pages come from the response cache
+     *          HttpStatus BAD REQUEST if the page or size is not valid
      */
     @GetMapping("/blogposts")
-    public Page<BlogPost> getBlogPosts( @RequestParam(defaultValue = "0") int page,
-                                    @RequestParam(defaultValue = "10") int size) {
+    public ResponseEntity<Page<? extends FeedItem>> getBlogPosts( @RequestParam(defaultValue = "0") int page,
+                                    @RequestParam(defaultValue = "10") int size,
+                                    @RequestParam(defaultValue = "false") boolean full,
+                                    ServletWebRequest request) {
+        if (page < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "page must not be negative");
+        }
+        checkSize(size);
 
-        Pageable pageable = PageRequest.of(page, size);
-        return blogService.findAll(pageable);
+        String etag = contentVersions.postsETag();
+        if (notModified(request, "blogposts", etag, contentVersions.postsLastModified())) {
+            return null;
+        }
+        Pageable pageable = PageRequest.of(page, size, BlogPostRepository.PAGE_SORT);
+        if (page < cachedPages) {
+            String key = "blogposts " + page + " " + size + " " + full + " " + etag;
+            return jsonResponseCache.respond(key, HttpStatus.OK, request, () -> blogService.findPage(pageable, feedType(full)));
+        }
+        return new ResponseEntity<>(blogService.findPage(pageable, feedType(full)), HttpStatus.OK);
+    }
+
+    /**
+     * Get a set of blog posts - most recent first - using keyset pagination
+     * Pass an empty cursor for the first page and the returned nextCursor for each page after that
+     * @param cursor - nextCursor from the previous page
+     * @param size
+     * @param full - true to get whole posts, by default posts are summaries without the content
+     * @return ResponseEntity containing the page
+     *          ResponseEntity HttpStatus BAD REQUEST if the cursor or size is not valid
+     *          HttpStatus NOT MODIFIED if no post changed since the client's copy
+     */
+    @GetMapping(value = "/blogposts", params = {"cursor", "!tags"})
+    public ResponseEntity<CursorPage<? extends FeedItem>> getBlogPostsByCursor(@RequestParam(defaultValue = "") String cursor,
+                                                      @RequestParam(defaultValue = "10") int size,
+                                                      @RequestParam(defaultValue = "false") boolean full,
+                                                      ServletWebRequest request) {
+        checkSize(size);
+        String etag = contentVersions.postsETag();
+        if (notModified(request, "blogposts", etag, contentVersions.postsLastModified())) {
+            return null;
+        }
+        try {
+            if (cursor.isEmpty()) {
+                //the first page is the hot one
+                String key = "feed " + size + " " + full + " " + etag;
+                return jsonResponseCache.respond(key, HttpStatus.OK, request, () -> blogService.getFeed(cursor, size, feedType(full)));
+            }
+            CursorPage<? extends FeedItem> page = blogService.getFeed(cursor, size, feedType(full));
+            return new ResponseEntity<>(page, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
     }
 
 
+    /**
+     * Get the blog posts with some tags - most recent first - using keyset pagination like the cursor version above
+     * @param tags - comma separated tags
+     * @param mode - all for posts with every tag, any for posts with at least one of them
+     * @param cursor - nextCursor from the previous page, empty for the first page
+     * @param size
+     * @param full - true to get whole posts, by default posts are summaries without the content
+     * @return ResponseEntity containing the page
+     *          ResponseEntity HttpStatus BAD REQUEST if the mode, cursor, size or tags are not valid
+     *          HttpStatus NOT MODIFIED if no post changed since the client's copy
+     */
+    @GetMapping(value = "/blogposts", params = "tags")
+    public ResponseEntity<CursorPage<? extends FeedItem>> getBlogPostsByTags(@RequestParam List<String> tags,
+                                                     @RequestParam(defaultValue = "all") String mode,
+                                                     @RequestParam(defaultValue = "") String cursor,
+                                                     @RequestParam(defaultValue = "10") int size,
+                                                     @RequestParam(defaultValue = "false") boolean full,
+                                                     ServletWebRequest request) {
+        if (!mode.equals("all") && !mode.equals("any")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "mode must be all or any");
+        }
+        if (tags.isEmpty() || tags.stream().anyMatch(String::isBlank)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "tags must not be empty");
+        }
+        checkSize(size);
+        if (notModified(request, "blogposts", contentVersions.postsETag(), contentVersions.postsLastModified())) {
+            return null;
+        }
+        try {
+            CursorPage<? extends FeedItem> page = blogService.getFeed(cursor, size, feedType(full), tags, mode.equals("all"));
+            return new ResponseEntity<>(page, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Get the most used tags, most used first
+     * @param limit - the most tags to return, all tags by default
+     * @param prefix - only tags starting with this, e.g. for autocomplete
+     * @return the tags, or nothing with HttpStatus NOT MODIFIED if no tag count changed since the client's copy
+     *          HttpStatus SERVICE UNAVAILABLE if the same read by another request took too long
+     */
     @GetMapping("/populartags")
-    public List<TagCount> getPopularTags(){
-        return blogService.findMostPopularTags();
+    public ResponseEntity<List<TagCount>> getPopularTags(@RequestParam(defaultValue = "" + Integer.MAX_VALUE) int limit,
+                                         @RequestParam(defaultValue = "") String prefix,
+                                         ServletWebRequest request){
+        String etag = contentVersions.tagsETag();
+        if (notModified(request, "populartags", etag, contentVersions.tagsLastModified())) {
+            return null;
+        }
+        String key = "populartags " + limit + " " + prefix + " " + etag;
+        try {
+            return jsonResponseCache.respond(key, HttpStatus.OK, request, () -> blogService.findMostPopularTags(limit, prefix));
+        } catch (QueryTimeoutException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    /**
+     * Full text search over the titles, tags and content of the posts
+     * Answered from the in memory search index - ranked with BM25, a post matches if it has any of the words
+     * @param q - the words to look for
+     * @param limit - the most results to return, at most 100
+     * @return ResponseEntity containing the matching posts, best match first
+     *          ResponseEntity HttpStatus BAD REQUEST if the limit is not valid
+     *          ResponseEntity HttpStatus SERVICE UNAVAILABLE if the index is still being loaded
+     */
+    @GetMapping("/search")
+    public ResponseEntity<Object> search(@RequestParam String q, @RequestParam(defaultValue = "10") int limit) {
+        if (limit < 1 || limit > 100) {
+            return new ResponseEntity<>("limit must be between 1 and 100", HttpStatus.BAD_REQUEST);
+        }
+        try {
+            return new ResponseEntity<>(searchService.search(q, limit), HttpStatus.OK);
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * The versions of a post, one for every time it was saved - see RevisionService
+     * @param id - the id of the post
+     * @return ResponseEntity containing the revisions without their content, newest first
+     *          ResponseEntity HttpStatus NOT FOUND if there is no such post
+     */
+    @GetMapping("/posts/{id}/revisions")
+    public ResponseEntity<Object> getRevisions(@PathVariable String id) {
+        List<Revision> revisions = revisionService.findAll(id);
+        if (revisions.isEmpty() && blogService.findById(id).isEmpty()) {
+            return new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(revisions, HttpStatus.OK);
+    }
+
+    /**
+     * A post as it was at one of its versions, content included
+     * @param id - the id of the post
+     * @param version - the version, from /posts/{id}/revisions
+     * @return ResponseEntity containing the revision
+     *          ResponseEntity HttpStatus NOT FOUND if the post has no such revision
+     */
+    @GetMapping("/posts/{id}/revisions/{version}")
+    public ResponseEntity<Object> getRevision(@PathVariable String id, @PathVariable long version) {
+        Optional<Revision> revision = revisionService.find(id, version);
+        if (revision.isEmpty()) {
+            return new ResponseEntity<>("Revision Not Found", HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(revision.get(), HttpStatus.OK);
+    }
+
+    /**
+     * Download every blog post as NDJSON - one post per line
+     * The posts are streamed from the database, so this works for any number of posts.
+     * The X-Export-Time header is the time to pass as since in the next incremental export.
+     * @param since - only posts saved at or after this time (ISO-8601), all posts by default
+     * @param gzip - true to get a gzipped file
+     * @return the posts
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam(required = false) Instant since,
+                                                        @RequestParam(defaultValue = "false") boolean gzip) {
+        Instant exportTime = Instant.now();
+        StreamingResponseBody body = out -> exportService.export(out, since, gzip);
+
+        String filename = "blogposts-" + exportTime.getEpochSecond() + (gzip ? ".ndjson.gz" : ".ndjson");
+        return ResponseEntity.ok()
+                .contentType(gzip ? MediaType.parseMediaType("application/gzip") : MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(filename).build().toString())
+                .header("X-Export-Time", exportTime.toString())
+                .body(body);
+    }
+
+    /**
+     * Adds the endpoint's Cache-Control and the validators to the response, and checks them against the request's
+     * If-None-Match / If-Modified-Since. When this returns true the response status is already 304 and the
+     * handler should return null.
+     * @param endpoint - key of the endpoint in HttpCacheProperties
+     * @param etag - strong ETag of the current version, null if there isn't one
+     * @param lastModified - when the current version was written, null if not known
+     */
+    private boolean notModified(ServletWebRequest request, String endpoint, String etag, Instant lastModified) {
+        request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, httpCacheProperties.cacheControlFor(endpoint));
+        if (etag == null) {
+            return false;
+        }
+        if (lastModified == null) {
+            return request.checkNotModified(etag);
+        }
+        return request.checkNotModified(etag, lastModified.toEpochMilli());
     }
 
+    /**
+     * list endpoints return summaries unless the whole post is asked for
+     */
+    private static Class<? extends FeedItem> feedType(boolean full) {
+        return full ? BlogPost.class : BlogPostSummary.class;
+    }
+
+    private void checkSize(int size) {
+        if (size < 1 || size > maxPageSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size must be between 1 and " + maxPageSize);
+        }
+    }
+
+    /**
+     * The typed endpoints report errors with a ResponseStatusException - the body is the reason, like the others
+     */
+    @ExceptionHandler(ResponseStatusException.class)
+    public ResponseEntity<String> statusException(ResponseStatusException e) {
+        return new ResponseEntity<>(e.getReason(), e.getStatusCode());
+    }
 
 }
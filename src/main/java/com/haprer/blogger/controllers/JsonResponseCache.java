@@ -0,0 +1,110 @@
+package com.haprer.blogger.controllers;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.haprer.blogger.data.CacheStatistics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of response bodies that are already serialized to JSON, for the hot GET endpoints.
+ *
+ * A hit skips both the database and Jackson - the bytes go straight to the output stream through
+ * spring's ByteArrayHttpMessageConverter. The gzipped copy is made once when the entry is created,
+ * so compressing is not repeated per request either. (No brotli copy - the JDK has no brotli encoder.)
+ *
+ * Keys include the ETag of what was serialized (see ContentVersions), so a write makes the old entries
+ * unreachable and they age out. The cache is bounded by the bytes it holds.
+ */
+@Component
+public class JsonResponseCache {
+
+    private final ObjectMapper objectMapper;
+    private final Cache<String, EncodedJson> cache;
+
+    public JsonResponseCache(ObjectMapper objectMapper,
+                             @Value("${blogger.response-cache.max-weight:32MB}") DataSize maxWeight) {
+        this.objectMapper = objectMapper;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight.toBytes())
+                .weigher((String key, EncodedJson json) -> json.identity.length + json.gzip.length + key.length())
+                .recordStats()
+                .build();
+    }
+
+    private record EncodedJson(byte[] identity, byte[] gzip) {}
+
+    /**
+     * @param key - identifies the body, including its version
+     * @param status - status of the response
+     * @param body - creates the body on a miss
+     * @return the serialized body, gzipped if the client accepts it. It is typed as the body it was serialized from,
+     *          so endpoints keep their response type for the api docs - spring picks the converter by the bytes.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ResponseEntity<T> respond(String key, HttpStatus status, ServletWebRequest request, Supplier<? extends T> body) {
+        //the body is built outside the cache - inside cache.get(key, loader) the query would run in a synchronized
+        //block and pin a virtual thread
+        EncodedJson json = cache.getIfPresent(key);
+        if (json == null) {
+            json = encode(body.get());
+            cache.put(key, json);
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip(request)) {
+            return (ResponseEntity<T>) response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body((Object) json.gzip);
+        }
+        return (ResponseEntity<T>) response.body((Object) json.identity);
+    }
+
+    public CacheStatistics stats() {
+        long weight = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        return CacheStatistics.of("responses", cache.estimatedSize(), weight, cache.stats());
+    }
+
+    private EncodedJson encode(Object body) {
+        try {
+            byte[] identity = objectMapper.writeValueAsBytes(body);
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(identity.length / 4 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+                out.write(identity);
+            }
+            return new EncodedJson(identity, gzip.toByteArray());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize response", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean acceptsGzip(ServletWebRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].replace(" ", "").equals("q=0");
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,377 @@
+package com.haprer.blogger.controllers;
+
+import com.haprer.blogger.BlogPostRepository;
+import com.haprer.blogger.ReactiveBlogPostRepository;
+import com.haprer.blogger.TagCount;
+import com.haprer.blogger.configurations.HttpCacheProperties;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostPatch;
+import com.haprer.blogger.data.BlogPostSummary;
+import com.haprer.blogger.data.CursorPage;
+import com.haprer.blogger.data.FeedCursor;
+import com.haprer.blogger.data.FeedItem;
+import com.haprer.blogger.data.Revision;
+import com.haprer.blogger.services.BlogService;
+import com.haprer.blogger.services.ContentVersions;
+import com.haprer.blogger.services.PopularTagIndex;
+import com.haprer.blogger.services.RevisionService;
+import com.haprer.blogger.services.SearchService;
+import com.haprer.blogger.services.SingleFlight;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The blog API on WebFlux, used instead of BlogController when the reactive profile is active.
+ * Reads go straight to mongo through the ReactiveBlogPostRepository - no request thread is held while
+ * waiting for the database, and identical reads at the same time share one query (see SingleFlight).
+ * Writes still go through BlogService so the tag counts, caches and versions stay right, and run on the
+ * boundedElastic scheduler because BlogService blocks.
+ */
+@RestController
+@Profile("reactive")
+public class ReactiveBlogController {
+
+
+    @Autowired
+    private ReactiveBlogPostRepository reactiveBlogPostRepository;
+
+    @Autowired
+    private BlogService blogService;
+
+    @Autowired
+    private PopularTagIndex popularTagIndex;
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private RevisionService revisionService;
+
+    @Autowired
+    private ContentVersions contentVersions;
+
+    @Autowired
+    private HttpCacheProperties httpCacheProperties;
+
+    @Autowired
+    private SingleFlight singleFlight;
+
+    //how many posts /blogposts/stream asks the driver's cursor for at a time
+    @Value("${blogger.reactive.batch-size:100}")
+    private int batchSize;
+
+    @Value("${blogger.feed.max-page-size:100}")
+    private int maxPageSize;
+
+
+    /**
+     * create a new blog request
+     * @param blogPost blog post
+     * @return the saved blog post
+     *          ResponseEntity HttpStatus CONFLICT if the author already has a post with the title
+     */
+    @PostMapping("/save")
+    public Mono<ResponseEntity<Object>> save(@RequestBody BlogPost blogPost) {
+        blogPost.setTimestamp(Instant.now());
+        return Mono.fromCallable(() -> blogService.save(blogPost))
+                .subscribeOn(Schedulers.boundedElastic())
+                .<ResponseEntity<Object>>map(createdPost -> new ResponseEntity<>(createdPost, HttpStatus.CREATED))
+                .onErrorResume(DuplicateKeyException.class,
+                        e -> Mono.just(new ResponseEntity<>("A post with this title and author already exists", HttpStatus.CONFLICT)));
+    }
+
+    /**
+     * Get a blog post by title and author
+     * @return ResponseEntity containing the blog if it exists
+     *          ResponseEntity HttpStatus NOT FOUND if it does not exist.
+     *          HttpStatus NOT MODIFIED if the client's copy is current
+     *          HttpStatus SERVICE UNAVAILABLE if the same read by another request took too long
+     */
+    @GetMapping("/find")
+    public Mono<ResponseEntity<Object>> findByTitleAndAuthor(@RequestParam String title, @RequestParam String author,
+                                                             ServerWebExchange exchange) {
+        List<String> key = List.of(title, author, contentVersions.postsETag());
+        return Mono.fromFuture(() -> singleFlight.submit("reactive-find", key,
+                        () -> reactiveBlogPostRepository.findByTitleAndAuthor(title, author).toFuture()))
+                .map(blogPost -> {
+                    String etag = ContentVersions.postETag(blogPost.getId(), blogPost.getVersion());
+                    if (notModified(exchange, "find", etag, null)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+                    }
+                    return new ResponseEntity<Object>(blogPost, HttpStatus.FOUND);
+                })
+                .defaultIfEmpty(new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND))
+                .onErrorResume(QueryTimeoutException.class,
+                        e -> Mono.just(new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE)));
+    }
+
+    /**
+     * Change some fields of a post - see BlogController.patchById. The update goes through BlogService
+     * on boundedElastic so the tag counts, the cache and the indexes see it.
+     */
+    @PatchMapping(value = "/update", params = "id")
+    public Mono<ResponseEntity<Object>> patchById(@RequestParam String id, @RequestBody BlogPostPatch patch,
+                                                  @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return patched(ifMatch, Mono.fromCallable(() -> blogService.patchById(id, ifMatch(patch, ifMatch))));
+    }
+
+    @PatchMapping(value = "/update", params = {"title", "author"})
+    public Mono<ResponseEntity<Object>> patchByTitleAndAuthor(@RequestParam String title, @RequestParam String author,
+                                                              @RequestBody BlogPostPatch patch,
+                                                              @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return patched(ifMatch, Mono.fromCallable(() -> blogService.patchByTitleAndAuthor(title, author, ifMatch(patch, ifMatch))));
+    }
+
+    private Mono<ResponseEntity<Object>> patched(String ifMatch, Mono<Optional<BlogPost>> patch) {
+        return patch.subscribeOn(Schedulers.boundedElastic())
+                .map(post -> post.<ResponseEntity<Object>>map(p -> ResponseEntity.ok()
+                                .eTag(ContentVersions.postETag(p.getId(), p.getVersion()))
+                                .body(p))
+                        .orElseGet(() -> new ResponseEntity<>("Blog Not Found", HttpStatus.NOT_FOUND)))
+                .onErrorResume(IllegalArgumentException.class,
+                        e -> Mono.just(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST)))
+                .onErrorResume(OptimisticLockingFailureException.class,
+                        e -> Mono.just(new ResponseEntity<>(e.getMessage(),
+                                ifMatch == null ? HttpStatus.CONFLICT : HttpStatus.PRECONDITION_FAILED)))
+                .onErrorResume(DuplicateKeyException.class,
+                        e -> Mono.just(new ResponseEntity<>("A post with this title and author already exists", HttpStatus.CONFLICT)));
+    }
+
+    //see BlogController.ifMatch
+    private static BlogPostPatch ifMatch(BlogPostPatch patch, String ifMatch) {
+        ContentVersions.PostVersion expected = ContentVersions.parsePostETag(ifMatch);
+        if (expected != null) {
+            patch.expect(expected.id(), expected.version());
+        }
+        return patch;
+    }
+
+    /**
+     * Get a set of blog posts by page number, in the order they are stored
+     * Like BlogController this runs a count query - prefer the cursor version below
+     * @param full - true to get whole posts, by default posts are summaries without the content
+     */
+    @GetMapping("/blogposts")
+    public Mono<ResponseEntity<Object>> getBlogPosts(@RequestParam(defaultValue = "0") int page,
+                                                     @RequestParam(defaultValue = "10") int size,
+                                                     @RequestParam(defaultValue = "false") boolean full,
+                                                     ServerWebExchange exchange) {
+        if (page < 0) {
+            return Mono.just(new ResponseEntity<>("page must not be negative", HttpStatus.BAD_REQUEST));
+        }
+        if (size < 1 || size > maxPageSize) {
+            return Mono.just(new ResponseEntity<>(invalidSize(), HttpStatus.BAD_REQUEST));
+        }
+        if (notModified(exchange, "blogposts", contentVersions.postsETag(), contentVersions.postsLastModified())) {
+            return Mono.empty();
+        }
+        Pageable pageable = PageRequest.of(page, size, BlogPostRepository.PAGE_SORT);
+        return Mono.zip(reactiveBlogPostRepository.findPage(pageable, feedType(full)).collectList(),
+                        reactiveBlogPostRepository.count())
+                .map(result -> new ResponseEntity<>(new PageImpl<>(result.getT1(), pageable, result.getT2()), HttpStatus.OK));
+    }
+
+    /**
+     * Get a set of blog posts - most recent first - using keyset pagination
+     * Pass an empty cursor for the first page and the returned nextCursor for each page after that
+     * @return ResponseEntity containing the page
+     *          ResponseEntity HttpStatus BAD REQUEST if the cursor or size is not valid
+     */
+    @GetMapping(value = "/blogposts", params = {"cursor", "!tags"})
+    public Mono<ResponseEntity<Object>> getBlogPostsByCursor(@RequestParam(defaultValue = "") String cursor,
+                                                             @RequestParam(defaultValue = "10") int size,
+                                                             @RequestParam(defaultValue = "false") boolean full,
+                                                             ServerWebExchange exchange) {
+        if (size < 1 || size > maxPageSize) {
+            return Mono.just(new ResponseEntity<>(invalidSize(), HttpStatus.BAD_REQUEST));
+        }
+        if (notModified(exchange, "blogposts", contentVersions.postsETag(), contentVersions.postsLastModified())) {
+            return Mono.empty();
+        }
+        //one extra post tells if there is a next page
+        Pageable pageable = PageRequest.of(0, size + 1, BlogPostRepository.FEED_SORT);
+        Flux<? extends FeedItem> posts;
+        if (cursor.isEmpty()) {
+            posts = reactiveBlogPostRepository.findFeed(pageable, feedType(full));
+        } else {
+            FeedCursor after;
+            try {
+                after = FeedCursor.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                return Mono.just(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST));
+            }
+            posts = reactiveBlogPostRepository.findFeedAfter(after.getTimestamp(), after.getId(), pageable, feedType(full));
+        }
+        return posts.collectList().map(list -> {
+            boolean hasNext = list.size() > size;
+            List<? extends FeedItem> content = hasNext ? list.subList(0, size) : list;
+            String nextCursor = hasNext ? FeedCursor.after(content.getLast()).encode() : null;
+            return new ResponseEntity<>(new CursorPage<>(content, content.size(), hasNext, nextCursor), HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Get the blog posts with some tags - see BlogController.getBlogPostsByTags.
+     * The ids come from the in memory TagBitmapIndex, the posts from one blocking $in query on boundedElastic.
+     */
+    @GetMapping(value = "/blogposts", params = "tags")
+    public Mono<ResponseEntity<Object>> getBlogPostsByTags(@RequestParam List<String> tags,
+                                                           @RequestParam(defaultValue = "all") String mode,
+                                                           @RequestParam(defaultValue = "") String cursor,
+                                                           @RequestParam(defaultValue = "10") int size,
+                                                           @RequestParam(defaultValue = "false") boolean full,
+                                                           ServerWebExchange exchange) {
+        if (!mode.equals("all") && !mode.equals("any")) {
+            return Mono.just(new ResponseEntity<>("mode must be all or any", HttpStatus.BAD_REQUEST));
+        }
+        if (tags.isEmpty() || tags.stream().anyMatch(String::isBlank)) {
+            return Mono.just(new ResponseEntity<>("tags must not be empty", HttpStatus.BAD_REQUEST));
+        }
+        if (size < 1 || size > maxPageSize) {
+            return Mono.just(new ResponseEntity<>(invalidSize(), HttpStatus.BAD_REQUEST));
+        }
+        if (notModified(exchange, "blogposts", contentVersions.postsETag(), contentVersions.postsLastModified())) {
+            return Mono.empty();
+        }
+        return Mono.fromCallable(() -> blogService.getFeed(cursor, size, feedType(full), tags, mode.equals("all")))
+                .subscribeOn(Schedulers.boundedElastic())
+                .<ResponseEntity<Object>>map(page -> new ResponseEntity<>(page, HttpStatus.OK))
+                .onErrorResume(IllegalArgumentException.class,
+                        e -> Mono.just(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST)));
+    }
+
+    /**
+     * Every blog post, most recent first, as NDJSON - one post per line
+     * Posts are written as they come off the cursor, and the cursor is only read as fast as the client takes them.
+     * @param full - true to get whole posts, by default posts are summaries without the content
+     */
+    @GetMapping(value = "/blogposts/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<? extends FeedItem> streamBlogPosts(@RequestParam(defaultValue = "false") boolean full) {
+        return reactiveBlogPostRepository.streamAll(BlogPostRepository.FEED_SORT, feedType(full))
+                .limitRate(batchSize);
+    }
+
+    /**
+     * Get the most used tags, most used first
+     * Answered from the PopularTagIndex, or by aggregating over the posts if the index could not be loaded
+     * @param limit - the most tags to return, all tags by default
+     * @param prefix - only tags starting with this, e.g. for autocomplete
+     */
+    @GetMapping("/populartags")
+    public Mono<List<TagCount>> getPopularTags(@RequestParam(defaultValue = "" + Integer.MAX_VALUE) int limit,
+                                               @RequestParam(defaultValue = "") String prefix,
+                                               ServerWebExchange exchange) {
+        if (notModified(exchange, "populartags", contentVersions.tagsETag(), contentVersions.tagsLastModified())) {
+            return Mono.empty();
+        }
+        //no tags, like the index - take() throws on a negative count
+        if (limit <= 0) {
+            return Mono.just(List.of());
+        }
+        if (popularTagIndex.isLoaded()) {
+            return Mono.just(popularTagIndex.top(limit, prefix));
+        }
+        List<Object> key = List.of(limit, prefix, contentVersions.tagsETag());
+        return Mono.fromFuture(() -> singleFlight.submit("reactive-populartags", key,
+                        () -> reactiveBlogPostRepository.findMostPopularTags()
+                                .filter(tagCount -> tagCount.getTag().startsWith(prefix))
+                                .take(limit)
+                                .collectList()
+                                .toFuture()))
+                .onErrorMap(QueryTimeoutException.class,
+                        e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage()));
+    }
+
+    /**
+     * Full text search - see BlogController.search. The index is in memory so this never blocks.
+     */
+    @GetMapping("/search")
+    public Mono<ResponseEntity<Object>> search(@RequestParam String q, @RequestParam(defaultValue = "10") int limit) {
+        if (limit < 1 || limit > 100) {
+            return Mono.just(new ResponseEntity<>("limit must be between 1 and 100", HttpStatus.BAD_REQUEST));
+        }
+        try {
+            return Mono.just(new ResponseEntity<>(searchService.search(q, limit), HttpStatus.OK));
+        } catch (IllegalStateException e) {
+            return Mono.just(new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE));
+        }
+    }
+
+    /**
+     * The revisions of a post - see BlogController.getRevisions. RevisionService blocks, so on boundedElastic.
+     */
+    @GetMapping("/posts/{id}/revisions")
+    public Mono<ResponseEntity<Object>> getRevisions(@PathVariable String id) {
+        return Mono.fromCallable(() -> {
+            List<Revision> revisions = revisionService.findAll(id);
+            if (revisions.isEmpty() && blogService.findById(id).isEmpty()) {
+                return new ResponseEntity<Object>("Blog Not Found", HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<Object>(revisions, HttpStatus.OK);
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * A post as it was at one of its versions - see BlogController.getRevision. The content is put together
+     * on boundedElastic too, before the response is written.
+     */
+    @GetMapping("/posts/{id}/revisions/{version}")
+    public Mono<ResponseEntity<Object>> getRevision(@PathVariable String id, @PathVariable long version) {
+        return Mono.fromCallable(() -> {
+            Optional<Revision> revision = revisionService.find(id, version);
+            if (revision.isEmpty()) {
+                return new ResponseEntity<Object>("Revision Not Found", HttpStatus.NOT_FOUND);
+            }
+            revision.get().getContent();
+            return new ResponseEntity<Object>(revision.get(), HttpStatus.OK);
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Same as BlogController.notModified - sets Cache-Control and checks the validators.
+     * When this returns true the response status is already 304 and the handler should return an empty Mono.
+     */
+    private boolean notModified(ServerWebExchange exchange, String endpoint, String etag, Instant lastModified) {
+        exchange.getResponse().getHeaders().set(HttpHeaders.CACHE_CONTROL, httpCacheProperties.cacheControlFor(endpoint));
+        if (etag == null) {
+            return false;
+        }
+        if (lastModified == null) {
+            return exchange.checkNotModified(etag);
+        }
+        return exchange.checkNotModified(etag, lastModified);
+    }
+
+    /**
+     * list endpoints return summaries unless the whole post is asked for
+     */
+    private static Class<? extends FeedItem> feedType(boolean full) {
+        return full ? BlogPost.class : BlogPostSummary.class;
+    }
+
+    private String invalidSize() {
+        return "size must be between 1 and " + maxPageSize;
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * What happened to one post of a /save/batch request
+ */
+@Data
+@AllArgsConstructor
+public class BatchItemResult {
+
+    private int index;          //position of the post in the request
+    private String id;          //null if the post was not saved
+    private boolean saved;
+    private String error;       //null if the post was saved
+
+    public static BatchItemResult saved(int index, String id) {
+        return new BatchItemResult(index, id, true, null);
+    }
+
+    public static BatchItemResult failed(int index, String error) {
+        return new BatchItemResult(index, null, false, error);
+    }
+}
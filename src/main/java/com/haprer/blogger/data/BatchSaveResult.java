@@ -0,0 +1,36 @@
+package com.haprer.blogger.data;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response of /save/batch - the result of every post and how long the whole batch took
+ */
+@Data
+public class BatchSaveResult {
+
+    private int received;
+    private int saved;
+    private int failed;
+    private long millis;
+    private double postsPerSecond;
+    private String error;       //set if the request body could not be read to the end
+    private List<BatchItemResult> items = new ArrayList<>();
+
+    public void add(BatchItemResult item) {
+        items.add(item);
+        received++;
+        if (item.isSaved()) {
+            saved++;
+        } else {
+            failed++;
+        }
+    }
+
+    public void finish(long startNanos) {
+        millis = (System.nanoTime() - startNanos) / 1_000_000;
+        postsPerSecond = millis == 0 ? saved : saved * 1000.0 / millis;
+    }
+}
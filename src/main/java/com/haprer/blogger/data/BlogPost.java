@@ -7,11 +7,16 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.io.IOException;
 import java.time.Instant;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -21,26 +26,53 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 @Getter
 @Document()
-public class BlogPost {
+//the indexes are created and checked against the repository's queries by MongoIndexConfig
+@CompoundIndex(name = "title_author", def = "{ 'title': 1, 'author': 1 }", unique = true, background = true)     //find, delete and update by title and author
+@CompoundIndex(name = "timestamp_id", def = "{ 'timestamp': -1, '_id': -1 }", background = true)    //keyset pagination of the feed
+@CompoundIndex(name = "tags_timestamp_id", def = "{ 'tags': 1, 'timestamp': -1, '_id': -1 }", background = true)     //the feed filtered by tag - multikey, a post has an entry per tag
+public class BlogPost implements FeedItem {
 
+    //length of the excerpt shown in the feed
+    public static final int EXCERPT_LENGTH = 200;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    //set before the post is written only by the write-behind queue, which has to answer with the id
     @Id
-    private String id;
+    @Setter private String id;
 
     @Setter private String title;
     @Setter private String author;
     @Setter private List<String> tags;
-    @Setter private String content;
+    //stored compressed when blogger.content-compression is on, see ContentCompressionConfig, or as chunks, see ContentChunkStore
+    private PostContent content;
+
+    //these are computed from the content when it is set - they are what the feed shows instead of the content
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private String excerpt;
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private Integer wordCount;
 
 
     //this property is always set on the server side
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     @Setter private Instant timestamp;
 
+    //set by spring data auditing on every save - incremental exports find changed posts by it
+    @LastModifiedDate
+    @Indexed(name = "updated", background = true)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    @Setter private Instant updated;
+
+    //incremented by spring data on every save - the post's ETag is built from it
+    @Version
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    @Setter private Long version;
+
     private BlogPost(){}  //just in case for serialization rules
     public BlogPost(String title, String author, String content, List<String> tags, Instant timestamp) {
         this.title = title;
         this.author = author;
-        this.content = content;
+        setContent(content);
         this.tags = tags;
         this.timestamp = Instant.now(); // Always set to current time
     }
@@ -52,4 +84,68 @@ public class BlogPost {
         this(title, author, content, tags, Instant.now());
     }
 
+    /**
+     * @return the content - inflated here the first time if it was read compressed
+     */
+    public String getContent() {
+        return content == null ? null : content.text();
+    }
+
+    /**
+     * @return the length of the content, without inflating it
+     */
+    public int contentLength() {
+        return content == null ? 0 : content.length();
+    }
+
+    /**
+     * @return the content as it is kept - for ContentChunkStore and revisions, which store it without reading it
+     */
+    @JsonIgnore
+    public PostContent getStoredContent() {
+        return content;
+    }
+
+    /**
+     * Replaces the content with the same text kept another way, e.g. chunked - the excerpt and word count stay
+     */
+    @JsonIgnore
+    public void setStoredContent(PostContent content) {
+        this.content = content;
+    }
+
+    /**
+     * Sets the content and recomputes the excerpt and word count
+     */
+    public void setContent(String content) {
+        this.content = content == null ? null : PostContent.of(content);
+        this.excerpt = excerptOf(content);
+        this.wordCount = wordCountOf(content);
+    }
+
+    /**
+     * @return the start of the content with whitespace collapsed, cut at a word boundary
+     */
+    public static String excerptOf(String content) {
+        if (content == null) {
+            return null;
+        }
+        String text = WHITESPACE.matcher(content.strip()).replaceAll(" ");
+        if (text.length() <= EXCERPT_LENGTH) {
+            return text;
+        }
+        int end = text.lastIndexOf(' ', EXCERPT_LENGTH);
+        if (end <= 0) {
+            end = EXCERPT_LENGTH;
+        }
+        return text.substring(0, end) + "...";
+    }
+
+    public static int wordCountOf(String content) {
+        if (content == null || content.isBlank()) {
+            return 0;
+        }
+        return WHITESPACE.split(content.strip()).length;
+    }
+
 }
@@ -0,0 +1,84 @@
+package com.haprer.blogger.data;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields to change on a post with PATCH - fields left null are not changed.
+ * tags replaces all the tags, addTags and removeTags change some of them - only one of the three can be given.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlogPostPatch {
+
+    private String title;
+    private String content;
+    private List<String> tags;
+    private List<String> addTags;       //added if the post doesn't have them yet
+    private List<String> removeTags;
+    private Long version;               //if given the post is only changed if it still has this version
+    @JsonIgnore
+    private String id;                  //from If-Match, with the version - the post is only changed if it has this id
+
+    public static BlogPostPatch title(String title) {
+        BlogPostPatch patch = new BlogPostPatch();
+        patch.setTitle(title);
+        return patch;
+    }
+
+    /**
+     * Only change the post if it is still the one in the ETag sent in If-Match, see ContentVersions.parsePostETag
+     * @throws IllegalArgumentException if the patch has a different version in it
+     */
+    public void expect(String id, long version) {
+        if (this.version != null && this.version != version) {
+            throw new IllegalArgumentException("The patch has version " + this.version + ", If-Match has " + version);
+        }
+        this.id = id;
+        this.version = version;
+    }
+
+    /**
+     * @throws IllegalArgumentException if nothing would change or the tag changes can't be combined
+     */
+    public void validate() {
+        int tagChanges = (tags != null ? 1 : 0) + (addTags != null ? 1 : 0) + (removeTags != null ? 1 : 0);
+        if (title == null && content == null && tagChanges == 0) {
+            throw new IllegalArgumentException("The patch does not change anything");
+        }
+        if (tagChanges > 1) {
+            throw new IllegalArgumentException("Only one of tags, addTags and removeTags can be given");
+        }
+    }
+
+    /**
+     * Apply the patch to a copy of the post read from mongo, the way mongo applied it to the stored post
+     */
+    public void applyTo(BlogPost post) {
+        if (title != null) {
+            post.setTitle(title);
+        }
+        if (content != null) {
+            post.setContent(content);
+        }
+        if (tags != null) {
+            post.setTags(tags);
+        }
+        if (addTags != null) {
+            //$addToSet with $each - new tags go on the end, once each
+            List<String> merged = new ArrayList<>(post.getTags() == null ? List.of() : post.getTags());
+            addTags.stream().filter(tag -> !merged.contains(tag)).forEach(merged::add);
+            post.setTags(merged);
+        }
+        if (removeTags != null && post.getTags() != null) {
+            //$pull with $in - every copy of the tag goes
+            post.setTags(post.getTags().stream().filter(tag -> !removeTags.contains(tag)).toList());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * What the feed shows for a post - everything but the content body.
+ * Used as a Spring Data DTO projection, so mongo only returns the fields below and the body is never read.
+ * excerpt and wordCount are computed from the content when the post is saved.
+ */
+@Getter
+@AllArgsConstructor
+public class BlogPostSummary implements FeedItem {
+
+    private String id;
+    private String title;
+    private String author;
+    private List<String> tags;
+    private Instant timestamp;
+    private String excerpt;
+    private Integer wordCount;     //null for posts saved before word counts were added
+}
@@ -0,0 +1,27 @@
+package com.haprer.blogger.data;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Snapshot of a cache's counters, as returned by /admin/cache
+ */
+@Data
+@AllArgsConstructor
+public class CacheStatistics {
+
+    private String name;
+    private long entries;
+    private long weight;        //estimated bytes held
+    private long hits;
+    private long misses;
+    private double hitRate;
+    private long evictions;
+    private long evictionWeight;
+
+    public static CacheStatistics of(String name, long entries, long weight, CacheStats stats) {
+        return new CacheStatistics(name, entries, weight, stats.hitCount(), stats.missCount(), stats.hitRate(),
+                stats.evictionCount(), stats.evictionWeight());
+    }
+}
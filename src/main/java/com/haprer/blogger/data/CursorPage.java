@@ -0,0 +1,20 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A slice of the feed returned by keyset pagination.
+ * There is no total count - pass nextCursor back to get the following page.
+ */
+@Data
+@AllArgsConstructor
+public class CursorPage<T> {
+
+    private List<T> content;
+    private int size;
+    private boolean hasNext;
+    private String nextCursor;     //null on the last page
+}
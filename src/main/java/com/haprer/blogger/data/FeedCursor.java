@@ -0,0 +1,60 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Opaque position in the feed for keyset pagination.
+ * The feed is ordered by (timestamp desc, _id desc) so the last post of a page is enough to find the next one
+ * without skipping over the earlier pages.
+ */
+@Getter
+@AllArgsConstructor
+public class FeedCursor {
+
+    private final Instant timestamp;
+    private final ObjectId id;
+
+    /**
+     * @param post the last post of a page
+     * @return a cursor pointing just after the post
+     *          posts saved with an id that is not an ObjectId get the lowest ObjectId, so the next page starts at
+     *          the next timestamp - other such posts with the same timestamp are skipped, like TagBitmapIndex does
+     */
+    public static FeedCursor after(FeedItem post) {
+        ObjectId id = ObjectId.isValid(post.getId()) ? new ObjectId(post.getId()) : new ObjectId(new byte[12]);
+        return new FeedCursor(post.getTimestamp(), id);
+    }
+
+    /**
+     * @return url safe token handed out to clients as nextCursor
+     */
+    public String encode() {
+        String raw = timestamp.toEpochMilli() + ":" + id.toHexString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token a token created by encode()
+     * @return the cursor
+     * @throws IllegalArgumentException if the token was not created by encode()
+     */
+    public static FeedCursor decode(String token) {
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        int split = raw.indexOf(':');
+        if (split < 0 || !ObjectId.isValid(raw.substring(split + 1))) {
+            throw new IllegalArgumentException("Invalid cursor: " + token);
+        }
+        try {
+            Instant timestamp = Instant.ofEpochMilli(Long.parseLong(raw.substring(0, split)));
+            return new FeedCursor(timestamp, new ObjectId(raw.substring(split + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+}
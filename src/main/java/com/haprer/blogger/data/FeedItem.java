@@ -0,0 +1,14 @@
+package com.haprer.blogger.data;
+
+import java.time.Instant;
+
+/**
+ * Anything that can be listed in the feed - a full BlogPost or a BlogPostSummary.
+ * The feed is ordered by timestamp and id so these are all that is needed to make a FeedCursor.
+ */
+public interface FeedItem {
+
+    String getId();
+
+    Instant getTimestamp();
+}
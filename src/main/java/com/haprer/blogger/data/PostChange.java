@@ -0,0 +1,31 @@
+package com.haprer.blogger.data;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A post that another node wrote or deleted, from the change stream - see PostChangeStream
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class PostChange {
+
+    public enum Type { WRITTEN, DELETED }
+
+    private Type type;
+    private String id;
+    private BlogPost post;      //the post as it is now, null if it was deleted
+
+    public static PostChange written(BlogPost post) {
+        return new PostChange(Type.WRITTEN, post.getId(), post);
+    }
+
+    public static PostChange deleted(String id) {
+        return new PostChange(Type.DELETED, id, null);
+    }
+
+    public boolean isDeleted() {
+        return type == Type.DELETED;
+    }
+}
@@ -0,0 +1,217 @@
+package com.haprer.blogger.data;
+
+import org.springframework.data.annotation.Transient;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The content of a post in memory - its text, the compressed bytes it was stored as in mongo, or the manifest of
+ * the chunks it was stored as (see ContentChunkStore).
+ * Compressed and chunked content is only inflated or put back together the first time the text is needed (the
+ * post is written as JSON, indexed for search...), so a post that is read and never shows its content never pays
+ * for it.
+ *
+ * The compressed form is the length of the UTF-8 text as 4 bytes, then the text deflated.
+ */
+public final class PostContent {
+
+    private volatile String text;
+    private volatile byte[] compressed;     //dropped once inflated, the text is what is used from then on
+    private final List<String> chunks;      //kept once loaded, so the content is written back without chunking it again
+    private final int chunkedLength;
+    private final Function<List<String>, String> chunkLoader;
+    //not synchronized - loading chunks queries mongo, see application-virtual.properties
+    @Transient
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private PostContent(String text, byte[] compressed, List<String> chunks, int chunkedLength,
+                        Function<List<String>, String> chunkLoader) {
+        this.text = text;
+        this.compressed = compressed;
+        this.chunks = chunks;
+        this.chunkedLength = chunkedLength;
+        this.chunkLoader = chunkLoader;
+    }
+
+    public static PostContent of(String text) {
+        return new PostContent(text, null, null, 0, null);
+    }
+
+    /**
+     * @param compressed - as stored by compress, not inflated until the text is asked for
+     */
+    public static PostContent ofCompressed(byte[] compressed) {
+        if (compressed.length < Integer.BYTES) {
+            throw new IllegalArgumentException("Compressed content has no length");
+        }
+        return new PostContent(null, compressed, null, 0, null);
+    }
+
+    /**
+     * @param chunks - hashes of the chunks, in order
+     * @param length - the length of the UTF-8 text
+     * @param loader - puts the text back together from the chunks, not called until the text is asked for
+     */
+    public static PostContent ofChunks(List<String> chunks, int length, Function<List<String>, String> loader) {
+        return new PostContent(null, null, List.copyOf(chunks), length, loader);
+    }
+
+    /**
+     * @param chunks - hashes of the chunks the text was just stored as
+     */
+    public static PostContent chunked(List<String> chunks, int length, String text) {
+        return new PostContent(text, null, List.copyOf(chunks), length, null);
+    }
+
+    public String text() {
+        String text = this.text;
+        return text != null ? text : load();
+    }
+
+    /**
+     * @return the bytes the content was read as, or null if it was not compressed or has been inflated since
+     */
+    public byte[] compressed() {
+        return compressed;
+    }
+
+    /**
+     * @return the hashes of the chunks the content is stored as, null if it is stored whole
+     */
+    public List<String> chunks() {
+        return chunks;
+    }
+
+    /**
+     * @return true if the text is in memory
+     */
+    public boolean isLoaded() {
+        return text != null;
+    }
+
+    /**
+     * @return the length of the text, without inflating it - for compressed and chunked content it is the UTF-8 length
+     */
+    public int length() {
+        String text = this.text;
+        if (text != null) {
+            return text.length();
+        }
+        if (chunks != null) {
+            return chunkedLength;
+        }
+        byte[] compressed = this.compressed;
+        return compressed == null ? text().length() : ByteBuffer.wrap(compressed).getInt();
+    }
+
+    /**
+     * @return the length of the UTF-8 text of chunked content
+     */
+    public int chunkedLength() {
+        return chunkedLength;
+    }
+
+    /**
+     * Put chunked content back together with the given loader instead of its own, if it is not loaded yet -
+     * for loading the chunks of many posts at once, see ContentChunkStore.assembleAll
+     */
+    public void load(Function<List<String>, String> loader) {
+        lock.lock();
+        try {
+            if (text == null && chunks != null) {
+                text = loader.apply(chunks);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //two threads can both get here, only one loads
+    private String load() {
+        lock.lock();
+        try {
+            if (text != null) {
+                return text;
+            }
+            if (chunks != null) {
+                text = chunkLoader.apply(chunks);
+                return text;
+            }
+            text = new String(inflate(compressed), StandardCharsets.UTF_8);
+            compressed = null;
+            return text;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param level - 1 (fastest) to 9 (smallest), see Deflater
+     * @return the text in the compressed form
+     */
+    public static byte[] compress(String text, int level) {
+        return compress(text.getBytes(StandardCharsets.UTF_8), level);
+    }
+
+    /**
+     * @return the bytes in the compressed form
+     */
+    public static byte[] compress(byte[] bytes, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Integer.BYTES + bytes.length / 2);
+            out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+            byte[] chunk = new byte[Math.min(64 * 1024, Math.max(64, bytes.length))];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param compressed - from compress
+     * @return the bytes that were compressed
+     */
+    public static byte[] inflate(byte[] compressed) {
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        byte[] bytes = new byte[buffer.getInt()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer);
+            int read = 0;
+            while (read < bytes.length && !inflater.finished()) {
+                int n = inflater.inflate(bytes, read, bytes.length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != bytes.length) {
+                throw new IllegalStateException("Compressed content is " + read + " bytes, not " + bytes.length);
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed content is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text();
+    }
+}
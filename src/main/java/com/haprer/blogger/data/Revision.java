@@ -0,0 +1,69 @@
+package com.haprer.blogger.data;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * A version of a post as it was saved, kept by RevisionService in the revisions collection.
+ * The content is kept the way the post kept it - for long posts the hashes of its chunks (see ContentChunkStore),
+ * so a revision costs little more than the chunks that changed.
+ * Without its content (content is left out of the JSON) when listed.
+ */
+@Getter
+@Document("revisions")
+@CompoundIndex(name = "postId_version", def = "{ 'postId': 1, 'version': -1 }", unique = true, background = true)     //the revisions of a post, newest first
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Revision {
+
+    @Id
+    @JsonIgnore
+    private String id;
+
+    private String postId;
+    private Long version;
+    private Instant updated;
+    private String title;
+    private String author;
+    private List<String> tags;
+    private String excerpt;
+    private Integer wordCount;
+    private PostContent content;
+
+    private Revision() {}
+
+    /**
+     * @param post - a post as it was just saved, with its content stored the way it should be kept
+     */
+    public static Revision of(BlogPost post) {
+        Revision revision = new Revision();
+        revision.postId = post.getId();
+        revision.version = post.getVersion();
+        revision.updated = post.getUpdated();
+        revision.title = post.getTitle();
+        revision.author = post.getAuthor();
+        revision.tags = post.getTags();
+        revision.excerpt = post.getExcerpt();
+        revision.wordCount = post.getWordCount();
+        revision.content = post.getStoredContent();
+        return revision;
+    }
+
+    /**
+     * @return the content - put back together from its chunks here the first time
+     */
+    public String getContent() {
+        return content == null ? null : content.text();
+    }
+
+    @JsonIgnore
+    public PostContent getStoredContent() {
+        return content;
+    }
+}
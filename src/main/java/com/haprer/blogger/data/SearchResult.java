@@ -0,0 +1,17 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * One post matching a /search query - enough to list it, /find gets the whole post
+ */
+@Data
+@AllArgsConstructor
+public class SearchResult {
+
+    private String id;
+    private String title;
+    private String author;
+    private double score;       //BM25 score, higher is a better match
+}
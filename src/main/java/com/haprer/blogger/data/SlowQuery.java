@@ -0,0 +1,26 @@
+package com.haprer.blogger.data;
+
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * A mongo command that took longer than the slow query threshold, as returned by /admin/slow-queries
+ */
+@Data
+public class SlowQuery {
+
+    private final Instant time;             //when the command finished
+    private final String database;
+    private final String collection;
+    private final String command;           //find, aggregate, update...
+    private final String shape;             //the filter, sort and pipeline with the values replaced by "?"
+    private final double millis;
+    private final long documentsReturned;   //or written, for writes
+    private final String error;             //null if the command succeeded
+
+    //filled in later by explain for the sampled commands, null until then
+    private volatile String plan;           //the stages of the winning plan e.g. "FETCH > IXSCAN title_author"
+    private volatile Long documentsExamined;
+    private volatile Long keysExamined;
+}
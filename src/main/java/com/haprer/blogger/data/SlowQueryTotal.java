@@ -0,0 +1,20 @@
+package com.haprer.blogger.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * The slow queries with the same shape added up, as returned by /admin/slow-queries/top
+ */
+@Data
+@AllArgsConstructor
+public class SlowQueryTotal {
+
+    private String collection;
+    private String command;
+    private String shape;
+    private long count;
+    private double totalMillis;
+    private double maxMillis;
+    private String plan;        //of the most recent one that was explained, null if none were
+}
@@ -0,0 +1,99 @@
+package com.haprer.blogger.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haprer.blogger.data.BatchItemResult;
+import com.haprer.blogger.data.BatchSaveResult;
+import com.haprer.blogger.data.BlogPost;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves a stream of posts for /save/batch, e.g. when importing an old archive.
+ *
+ * The body is read one post at a time with Jackson's streaming parser, so only one chunk of posts is ever in memory,
+ * and each chunk is written with a single unordered insertMany.
+ * The body can be a JSON array of posts or NDJSON (one post per line).
+ */
+@Slf4j
+@Service
+public class BatchIngestService {
+
+    private final BlogService blogService;
+    private final ObjectMapper objectMapper;
+    private final int chunkSize;
+
+    public BatchIngestService(BlogService blogService, ObjectMapper objectMapper,
+                              @Value("${blogger.batch.chunk-size:500}") int chunkSize) {
+        this.blogService = blogService;
+        this.objectMapper = objectMapper;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param body - a JSON array of posts or NDJSON
+     * @return the result of every post. If the body is not valid JSON the posts before the error are still saved
+     *          and the error is set on the result.
+     */
+    public BatchSaveResult save(InputStream body) {
+        long start = System.nanoTime();
+        BatchSaveResult result = new BatchSaveResult();
+        List<BlogPost> chunk = new ArrayList<>(chunkSize);
+        int index = 0;
+        int chunkStart = 0;
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+
+            while (token != null && token != JsonToken.END_ARRAY) {
+                //read the post as a tree first, so a post with the wrong shape only fails itself
+                JsonNode node = parser.readValueAsTree();
+                try {
+                    BlogPost post = objectMapper.treeToValue(node, BlogPost.class);
+                    post.setTimestamp(Instant.now());
+                    chunk.add(post);
+                } catch (JsonProcessingException e) {
+                    flush(chunk, chunkStart, result);
+                    result.add(BatchItemResult.failed(index, e.getOriginalMessage()));
+                    chunkStart = index + 1;
+                }
+                index++;
+
+                if (chunk.size() >= chunkSize) {
+                    flush(chunk, chunkStart, result);
+                    chunkStart = index;
+                }
+                token = parser.nextToken();
+            }
+        } catch (IOException e) {
+            result.setError(e.getMessage());
+        }
+
+        flush(chunk, chunkStart, result);
+        result.finish(start);
+        log.info("Batch save: {} posts saved, {} failed in {} ms", result.getSaved(), result.getFailed(), result.getMillis());
+        return result;
+    }
+
+    private void flush(List<BlogPost> chunk, int chunkStart, BatchSaveResult result) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        blogService.insertBatch(chunk, chunkStart).forEach(result::add);
+        chunk.clear();
+    }
+}
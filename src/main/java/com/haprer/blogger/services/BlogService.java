@@ -2,17 +2,56 @@ package com.haprer.blogger.services;
 
 
 import com.haprer.blogger.BlogPostRepository;
+import com.haprer.blogger.TagCount;
+import com.haprer.blogger.data.BatchItemResult;
 import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostPatch;
+import com.haprer.blogger.data.CursorPage;
+import com.haprer.blogger.data.FeedCursor;
+import com.haprer.blogger.data.FeedItem;
+import com.haprer.blogger.data.PostContent;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
 import lombok.experimental.Delegate;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
 /**
  * Service for blog database access
  * Uses Lombok to wrap all BlogPostRepository methods
+ * The methods that write posts are declared here instead, so the tag counts, the post cache,
+ * the content versions and the search and tag indexes can be kept up to date, long content is stored as chunks
+ * and every version of a post is kept as a revision. The PostChangeStream is told which posts were written here,
+ * so it doesn't pass them on again.
+ * Identical reads that miss the post cache at the same time share one query - see SingleFlight.
  *
  * created with the help of chatGPT
  */
@@ -22,10 +61,228 @@ public class BlogService {
     //WARNING This feature is experimental in lombok and not fully supported
     @Delegate    //this means this class automatically overrides and wraps all methods from blogPostRepository
     private final BlogPostRepository blogPostRepository;
+    private final MongoTemplate mongoTemplate;
+    private final TagCountService tagCountService;
+    private final PostCache postCache;
+    private final ContentVersions contentVersions;
+    private final SearchIndex searchIndex;
+    private final TagBitmapIndex tagBitmapIndex;
+    private final ContentChunkStore chunkStore;
+    private final RevisionService revisionService;
+    private final PostChangeStream postChangeStream;
+    private final SingleFlight singleFlight;
 
     @Autowired
-    public BlogService(BlogPostRepository blogPostRepository) {
+    public BlogService(BlogPostRepository blogPostRepository, MongoTemplate mongoTemplate,
+                       TagCountService tagCountService, PostCache postCache, ContentVersions contentVersions,
+                       SearchIndex searchIndex, TagBitmapIndex tagBitmapIndex, ContentChunkStore chunkStore,
+                       RevisionService revisionService, PostChangeStream postChangeStream,
+                       SingleFlight singleFlight) {
         this.blogPostRepository = blogPostRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.tagCountService = tagCountService;
+        this.postCache = postCache;
+        this.contentVersions = contentVersions;
+        this.searchIndex = searchIndex;
+        this.tagBitmapIndex = tagBitmapIndex;
+        this.chunkStore = chunkStore;
+        this.revisionService = revisionService;
+        this.postChangeStream = postChangeStream;
+        this.singleFlight = singleFlight;
+    }
+
+
+    //-------------------------------------reads----------------------------------------
+
+    /**
+     * Read through the post cache. The returned post is shared and must not be modified.
+     */
+    public Optional<BlogPost> findByTitleAndAuthor(String title, String author) {
+        return postCache.findByTitleAndAuthor(title, author, () -> singleFlight.execute("find",
+                List.of(title, author, contentVersions.postsETag()),
+                () -> blogPostRepository.findByTitleAndAuthor(title, author)));
+    }
+
+    /**
+     * Read through the post cache. The returned post is shared and must not be modified.
+     */
+    public Optional<BlogPost> findById(String id) {
+        return postCache.findById(id, postId -> singleFlight.execute("findById",
+                List.of(postId, contentVersions.postsETag()), () -> blogPostRepository.findById(postId)));
+    }
+
+    /**
+     * @return every tag, most used first - read from the tag counts instead of aggregating over every post
+     */
+    public List<TagCount> findMostPopularTags() {
+        return tagCountService.findMostPopularTags();
+    }
+
+    /**
+     * @param limit - the most tags to return
+     * @param prefix - only tags starting with this, null or empty for all tags
+     * @return the most used tags, most used first
+     */
+    public List<TagCount> findMostPopularTags(int limit, String prefix) {
+        return tagCountService.findMostPopularTags(limit, prefix);
+    }
+
+
+    //-------------------------------------writes---------------------------------------
+
+    public <S extends BlogPost> S save(S post) {
+        storeContent(post);
+        Map<String, BlogPost> old = currentKeys(post.getId() == null ? List.of() : List.of(post.getId()));
+        S saved = blogPostRepository.save(post);
+        written(old, List.of(saved));
+        return saved;
+    }
+
+    public <S extends BlogPost> List<S> saveAll(Iterable<S> posts) {
+        List<String> ids = new ArrayList<>();
+        posts.forEach(post -> {
+            storeContent(post);
+            if (post.getId() != null) {
+                ids.add(post.getId());
+            }
+        });
+        Map<String, BlogPost> old = currentKeys(ids);
+        List<S> saved = blogPostRepository.saveAll(posts);
+        written(old, saved);
+        return saved;
+    }
+
+    public <S extends BlogPost> S insert(S post) {
+        storeContent(post);
+        S inserted = blogPostRepository.insert(post);
+        written(Map.of(), List.of(inserted));
+        return inserted;
+    }
+
+    public <S extends BlogPost> List<S> insert(Iterable<S> posts) {
+        posts.forEach(this::storeContent);
+        List<S> inserted = blogPostRepository.insert(posts);
+        written(Map.of(), inserted);
+        return inserted;
+    }
+
+    /**
+     * Insert posts with a single unordered insertMany - one failing post (e.g. a duplicate) doesn't stop the rest.
+     * @param posts - new posts
+     * @param firstIndex - index of the first post in the whole batch, for the results
+     * @return the result of each post, in order
+     */
+    public List<BatchItemResult> insertBatch(List<BlogPost> posts, int firstIndex) {
+        return insertBatch(posts, firstIndex, null);
+    }
+
+    /**
+     * insertBatch with a write concern other than the collection's, e.g. for the write-behind queue
+     * @param writeConcern - null for the collection's default
+     */
+    public List<BatchItemResult> insertBatch(List<BlogPost> posts, int firstIndex, WriteConcern writeConcern) {
+        return insertBatch(posts, firstIndex, writeConcern, false);
+    }
+
+    /**
+     * @param retried - true if the posts' ids were set before an earlier try that may have written some of them,
+     *                e.g. the write-behind queue retrying a batch. A post that fails on a duplicate key and is found by
+     *                its id was written by that try - it is reported as saved, and the caches and indexes are brought
+     *                up to date with it as it was stored, as they would have been after that try.
+     */
+    public List<BatchItemResult> insertBatch(List<BlogPost> posts, int firstIndex, WriteConcern writeConcern, boolean retried) {
+        List<Document> documents = new ArrayList<>(posts.size());
+        Instant now = Instant.now();
+        for (BlogPost post : posts) {
+            post.setUpdated(now);       //auditing only runs for saves through the template
+            storeContent(post);
+            Document document = new Document();
+            mongoTemplate.getConverter().write(post, document);
+            document.putIfAbsent("_id", new ObjectId());
+            document.putIfAbsent("version", 0L);       //what spring data sets on the first save of a @Version field
+            documents.add(document);
+        }
+
+        Map<Integer, String> errors = new HashMap<>();
+        MongoCollection<Document> collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(BlogPost.class));
+        if (writeConcern != null) {
+            collection = collection.withWriteConcern(writeConcern);
+        }
+        Map<Object, Integer> duplicates = new HashMap<>();     //_id -> index
+        try {
+            collection.insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error.getMessage());
+                if (retried && ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                    duplicates.put(documents.get(error.getIndex()).get("_id"), error.getIndex());
+                }
+            }
+        }
+        //the driver doesn't say which index a duplicate is on - it is the _id's if the post is there
+        if (!duplicates.isEmpty()) {
+            for (Document stored : collection.find(Filters.in("_id", duplicates.keySet()))) {
+                int i = duplicates.get(stored.get("_id"));
+                errors.remove(i);
+                documents.set(i, stored);
+            }
+        }
+
+        List<BatchItemResult> results = new ArrayList<>(posts.size());
+        List<BlogPost> inserted = new ArrayList<>(posts.size());
+        Map<String, Long> deltas = new HashMap<>();
+        for (int i = 0; i < posts.size(); i++) {
+            if (errors.containsKey(i)) {
+                results.add(BatchItemResult.failed(firstIndex + i, errors.get(i)));
+                continue;
+            }
+            BlogPost post = mongoTemplate.getConverter().read(BlogPost.class, documents.get(i));     //the post with its id
+            results.add(BatchItemResult.saved(firstIndex + i, post.getId()));
+            TagCountService.addDeltas(deltas, post.getTags(), 1);
+            postCache.invalidate(post.getId(), post.getTitle(), post.getAuthor());
+            inserted.add(post);
+        }
+        postChangeStream.localWrites(inserted);
+        tagCountService.apply(deltas);
+        searchIndex.index(inserted);
+        tagBitmapIndex.index(inserted);
+        revisionService.record(inserted);
+        contentVersions.postsChanged();
+        return results;
+    }
+
+    public void deleteById(String id) {
+        deleteAllById(List.of(id));
+    }
+
+    public void delete(BlogPost post) {
+        deleteAllById(List.of(post.getId()));
+    }
+
+    public void deleteAllById(Iterable<? extends String> ids) {
+        List<String> idList = new ArrayList<>();
+        ids.forEach(idList::add);
+        removeAndCount(new Query(where("_id").in(idList)));
+    }
+
+    public void deleteAll(Iterable<? extends BlogPost> posts) {
+        List<String> idList = new ArrayList<>();
+        posts.forEach(post -> idList.add(post.getId()));
+        removeAndCount(new Query(where("_id").in(idList)));
+    }
+
+    public void deleteAll() {
+        blogPostRepository.deleteAll();
+        tagCountService.clear();
+        postCache.invalidateAll();
+        searchIndex.clear();
+        tagBitmapIndex.clear();
+        revisionService.deleteAll();
+        contentVersions.postsChanged();
+    }
+
+    public void deleteByTitleAndAuthor(String title, String author) {
+        removeAndCount(new Query(where("title").is(title).and("author").is(author)));
     }
 
     /**
@@ -34,16 +291,261 @@ public class BlogService {
      * @param author - the author
      * @param newTitle - what the title should be updated to
      * @return true if the title was changed, false if the post was not present.
+     * @throws org.springframework.dao.DuplicateKeyException if the author already has a post with the new title
      */
     public boolean updateTitleByTitleAndAuthor(String title, String author, String newTitle) {
-        Optional<BlogPost> post = findByTitleAndAuthor(title, author);
-        if (post.isEmpty()) {
-            return false;
-        }
-        BlogPost b = post.get();
-        b.setTitle(newTitle);
-        blogPostRepository.save(b);
-        return true;
+        return patch(new Query(where("title").is(title).and("author").is(author)), BlogPostPatch.title(newTitle)).isPresent();
+    }
+
+    /**
+     * Change some fields of a post with a single findAndModify - the post is not read and saved back,
+     * so concurrent patches of different fields don't overwrite each other
+     * @return the post after the patch, empty if there is no post with the id
+     * @throws IllegalArgumentException if the patch is not valid
+     * @throws OptimisticLockingFailureException if the patch has a version and the post no longer has it, or the
+     *          patch has an id (from If-Match) and the post does not have it
+     * @throws org.springframework.dao.DuplicateKeyException if the author already has a post with the new title
+     */
+    public Optional<BlogPost> patchById(String id, BlogPostPatch patch) {
+        return patch(new Query(where("_id").is(id)), patch);
+    }
+
+    /**
+     * Like patchById, for the post with the title and author
+     */
+    public Optional<BlogPost> patchByTitleAndAuthor(String title, String author, BlogPostPatch patch) {
+        return patch(new Query(where("title").is(title).and("author").is(author)), patch);
+    }
+
+    private Optional<BlogPost> patch(Query post, BlogPostPatch patch) {
+        patch.validate();
+        Instant now = Instant.now();
+        Update update = new Update()
+                .set("updated", now)
+                .inc("version", 1);
+        if (patch.getTitle() != null) {
+            update.set("title", patch.getTitle());
+        }
+        PostContent content = patch.getContent() == null ? null : chunkStore.store(PostContent.of(patch.getContent()));
+        if (content != null) {
+            update.set("content", content)
+                    .set("excerpt", BlogPost.excerptOf(patch.getContent()))
+                    .set("wordCount", BlogPost.wordCountOf(patch.getContent()));
+        }
+        if (patch.getTags() != null) {
+            update.set("tags", patch.getTags());
+        }
+        if (patch.getAddTags() != null) {
+            update.addToSet("tags").each(patch.getAddTags().toArray());
+        }
+        if (patch.getRemoveTags() != null) {
+            update.pullAll("tags", patch.getRemoveTags().toArray());
+        }
+
+        Query query = Query.of(post);
+        if (patch.getVersion() != null) {
+            query.addCriteria(where("version").is(patch.getVersion()));
+        }
+        if (patch.getId() != null) {
+            //in an $and, as patchById's query already has an _id
+            query.addCriteria(new Criteria().andOperator(where("_id").is(patch.getId())));
+        }
+        //the post before the patch, in the same round trip - without the content if the patch replaces it
+        if (content != null) {
+            query.fields().exclude("content");
+        }
+        BlogPost before = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(false), BlogPost.class);
+        if (before == null) {
+            if ((patch.getVersion() != null || patch.getId() != null) && mongoTemplate.exists(post, BlogPost.class)) {
+                throw new OptimisticLockingFailureException(patch.getId() != null ? "The post no longer matches If-Match"
+                        : "The post no longer has version " + patch.getVersion());
+            }
+            return Optional.empty();
+        }
+
+        //the post as this patch wrote it - findAndModify applied the update to exactly this document.
+        //The content is moved over as it was read, copying it would inflate or compress it again
+        PostContent stored = before.getStoredContent();
+        before.setStoredContent(null);
+        Document copy = new Document();
+        mongoTemplate.getConverter().write(before, copy);
+        BlogPost patched = mongoTemplate.getConverter().read(BlogPost.class, copy);
+        patch.applyTo(patched);
+        patched.setStoredContent(content != null ? content : stored);
+        patched.setUpdated(now.truncatedTo(ChronoUnit.MILLIS));     //as mongo keeps it
+        patched.setVersion(before.getVersion() == null ? 1 : before.getVersion() + 1);
+
+        //only the version is checked, no document comes back
+        if (!mongoTemplate.exists(new Query(where("_id").is(before.getId()).and("version").is(patched.getVersion())), BlogPost.class)) {
+            //another write got in after this one and indexes and records the post it wrote - only the tag counts
+            //and the cache are left to bring up to date, from what this patch changed
+            rekeyed(before, patched);
+            return Optional.of(patched);
+        }
+        written(Map.of(before.getId(), before), List.of(patched));
+        return Optional.of(patched);
+    }
+
+    /**
+     * Keyset pagination of the feed, most recent first.
+     * Every page costs the same no matter how deep it is, and no count query is run.
+     * @param cursor - nextCursor from the previous page, empty for the first page
+     * @param size - the number of posts on the page
+     * @param type - BlogPost for whole posts, BlogPostSummary to leave out the content
+     * @return the page and the cursor for the page after it
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public <T extends FeedItem> CursorPage<T> getFeed(String cursor, int size, Class<T> type) {
+        Pageable pageable = PageRequest.of(0, size, BlogPostRepository.FEED_SORT);
+        Slice<T> slice;
+        if (cursor == null || cursor.isEmpty()) {
+            slice = blogPostRepository.findFeed(pageable, type);
+        } else {
+            FeedCursor after = FeedCursor.decode(cursor);
+            slice = blogPostRepository.findFeedAfter(after.getTimestamp(), after.getId(), pageable, type);
+        }
+
+        String nextCursor = null;
+        if (slice.hasNext()) {
+            nextCursor = FeedCursor.after(slice.getContent().getLast()).encode();
+        }
+        return new CursorPage<>(slice.getContent(), slice.getNumberOfElements(), slice.hasNext(), nextCursor);
+    }
+
+
+    /**
+     * Keyset pagination of the posts with the given tags, most recent first.
+     * The matching ids come from the TagBitmapIndex and the posts are then read with one $in query.
+     * Until the index is loaded the feed query is run with a $all / $in filter on the tags instead.
+     * @param cursor - nextCursor from the previous page, empty for the first page
+     * @param size - the number of posts on the page
+     * @param type - BlogPost for whole posts, BlogPostSummary to leave out the content
+     * @param tags - the tags to filter by
+     * @param matchAll - true for posts with every tag, false for posts with any of them
+     * @return the page and the cursor for the page after it
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public <T extends FeedItem> CursorPage<T> getFeed(String cursor, int size, Class<T> type,
+                                                      List<String> tags, boolean matchAll) {
+        FeedCursor after = cursor == null || cursor.isEmpty() ? null : FeedCursor.decode(cursor);
+        List<T> posts;
+        boolean hasNext;
+        if (tagBitmapIndex.isLoaded()) {
+            List<ObjectId> ids = tagBitmapIndex.find(tags, matchAll, after, size + 1);
+            hasNext = ids.size() > size;
+            List<ObjectId> page = hasNext ? ids.subList(0, size) : ids;
+
+            Map<String, T> byId = new HashMap<>();
+            mongoTemplate.query(BlogPost.class).as(type).matching(new Query(where("_id").in(page))).all()
+                    .forEach(post -> byId.put(post.getId(), post));
+            posts = new ArrayList<>(page.size());
+            for (ObjectId id : page) {
+                T post = byId.get(id.toHexString());
+                if (post != null) {     //deleted since the index was read
+                    posts.add(post);
+                }
+            }
+        } else {
+            Criteria criteria = matchAll ? where("tags").all(tags) : where("tags").in(tags);
+            if (after != null) {
+                criteria = new Criteria().andOperator(criteria, new Criteria().orOperator(
+                        where("timestamp").lt(after.getTimestamp()),
+                        where("timestamp").is(after.getTimestamp()).and("_id").lt(after.getId())));
+            }
+            Query query = new Query(criteria).with(BlogPostRepository.FEED_SORT).limit(size + 1);
+            posts = new ArrayList<>(mongoTemplate.query(BlogPost.class).as(type).matching(query).all());
+            hasNext = posts.size() > size;
+            if (hasNext) {
+                posts = posts.subList(0, size);
+            }
+        }
+
+        //every post of the page deleted since the index was read - there's nothing to continue from
+        hasNext = hasNext && !posts.isEmpty();
+        String nextCursor = hasNext ? FeedCursor.after(posts.getLast()).encode() : null;
+        return new CursorPage<>(posts, posts.size(), hasNext, nextCursor);
+    }
+
+
+    //-------------------------------------tag counts, cache, indexes and revisions------
+
+    //long content is written as chunks, the post keeps the manifest
+    private void storeContent(BlogPost post) {
+        post.setStoredContent(chunkStore.store(post.getStoredContent()));
+    }
+
+    /**
+     * @param ids - ids of posts that are about to be written
+     * @return id -> the parts of the post the tag counts and the cache are keyed on, for the posts that already exist.
+     *          The content is not read.
+     */
+    private Map<String, BlogPost> currentKeys(Collection<String> ids) {
+        Map<String, BlogPost> current = new HashMap<>();
+        if (ids.isEmpty()) {
+            return current;
+        }
+        Query query = new Query(where("_id").in(ids));
+        query.fields().include("title", "author", "tags");
+        for (BlogPost post : mongoTemplate.find(query, BlogPost.class)) {
+            current.put(post.getId(), post);
+        }
+        return current;
+    }
+
+    /**
+     * Update the tag counts, the cache and the search and tag indexes after posts were saved, and record their revisions
+     * @param old - the posts before they were saved, from currentKeys()
+     * @param saved - the posts that were saved
+     */
+    private void written(Map<String, BlogPost> old, List<? extends BlogPost> saved) {
+        postChangeStream.localWrites(saved);
+        Map<String, Long> deltas = new HashMap<>();
+        for (BlogPost post : saved) {
+            BlogPost before = old.get(post.getId());
+            if (before != null) {
+                TagCountService.addDeltas(deltas, before.getTags(), -1);
+                postCache.invalidate(before.getId(), before.getTitle(), before.getAuthor());
+            }
+            TagCountService.addDeltas(deltas, post.getTags(), 1);
+        }
+        postCache.invalidate(saved);
+        tagCountService.apply(deltas);
+        searchIndex.index(saved);
+        tagBitmapIndex.index(saved);
+        revisionService.record(saved);
+        contentVersions.postsChanged();
+    }
+
+    /**
+     * Like written, for a post whose title or tags changed but that was written again before it could be read back
+     */
+    private void rekeyed(BlogPost before, BlogPost after) {
+        postChangeStream.localWrites(List.of(after));
+        Map<String, Long> deltas = new HashMap<>();
+        TagCountService.addDeltas(deltas, before.getTags(), -1);
+        TagCountService.addDeltas(deltas, after.getTags(), 1);
+        postCache.invalidate(before.getId(), before.getTitle(), before.getAuthor());
+        postCache.invalidate(List.of(after));
+        tagCountService.apply(deltas);
+        contentVersions.postsChanged();
+    }
+
+    /**
+     * Remove the matching posts, take their tags off the counts and drop them from the cache and the indexes
+     */
+    private void removeAndCount(Query query) {
+        query.fields().include("title", "author", "tags");
+        List<BlogPost> removed = mongoTemplate.findAllAndRemove(query, BlogPost.class);
+        List<String> ids = removed.stream().map(BlogPost::getId).toList();
+        postChangeStream.localDeletes(ids);
+        Map<String, Long> deltas = new HashMap<>();
+        removed.forEach(post -> TagCountService.addDeltas(deltas, post.getTags(), -1));
+        postCache.invalidate(removed);
+        tagCountService.apply(deltas);
+        searchIndex.remove(ids);
+        tagBitmapIndex.remove(ids);
+        revisionService.deleteAll(ids);
+        contentVersions.postsChanged();
     }
 
 }
@@ -0,0 +1,396 @@
+package com.haprer.blogger.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.haprer.blogger.configurations.CompressedContentConverter;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.CacheStatistics;
+import com.haprer.blogger.data.PostContent;
+import com.haprer.blogger.data.Revision;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stores the content of long posts as chunks in the content_chunks collection, each chunk once by its SHA-256,
+ * and the post (and each of its revisions) only the ordered list of hashes - see PostContent and
+ * CompressedContentConverter. An edit only writes the chunks that changed, and revisions share the chunks
+ * they have in common.
+ *
+ * The chunk boundaries are content defined (a gear rolling hash over the UTF-8 bytes, as in FastCDC), so inserting
+ * text only changes the chunks around it instead of shifting every chunk after it. Content shorter than min-size
+ * is kept in the post whole.
+ *
+ * Chunking is turned on by blogger.chunks.enabled, and so are revisions (see RevisionService). Turned off, content
+ * is saved whole as before, and posts that were saved as chunks are still read.
+ *
+ * Chunks are cached by hash - most reads of a hot post put its content together without asking mongo,
+ * and the rest ask for all of its missing chunks at once. Chunks are never changed, so the cache never goes stale.
+ * Reads of many posts (exports, the search index) put a batch of posts together with one query, see assembling.
+ *
+ * Chunks are not removed when the posts using them are - another post or revision may share them. Chunks no post
+ * or revision uses (their post was deleted, or the write of the post failed after its chunks were stored) are
+ * removed by sweep. Every write marks its chunks as used, and sweep leaves chunks used within sweep-grace alone,
+ * so it never removes a chunk a write in progress is about to point to.
+ */
+@Slf4j
+@Service
+public class ContentChunkStore {
+
+    public static final String COLLECTION = "content_chunks";
+
+    //chunk sizes in bytes - changing them moves every boundary, so new chunks no longer match the stored ones
+    private static final int MIN_CHUNK = 1024;
+    private static final int MAX_CHUNK = 16 * 1024;
+    //a boundary where the top 12 bits of the hash are 0 - one in 4096 bytes, plus MIN_CHUNK
+    private static final long BOUNDARY_MASK = 0xFFF0_0000_0000_0000L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //fixed seed - the boundaries must be the same on every node and after every restart
+        SplittableRandom random = new SplittableRandom(0x5EED_C0DEL);
+        Arrays.setAll(GEAR, i -> random.nextLong());
+    }
+
+    private static final int CHUNK_OVERHEAD = 96;     //the hash and cache entry on top of the bytes
+    private static final int SWEEP_BATCH = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final CompressedContentConverter contentConverter;
+    private final boolean enabled;
+    private final int minSize;
+    private final Duration sweepGrace;
+    private final Cache<String, byte[]> chunks;
+    //chunks this node knows are stored and marked as used recently - a write doesn't have to look for them again
+    private final Cache<String, Boolean> used;
+
+    public ContentChunkStore(MongoTemplate mongoTemplate, CompressedContentConverter contentConverter,
+                             @Value("${blogger.chunks.enabled:false}") boolean enabled,
+                             @Value("${blogger.chunks.min-size:4KB}") DataSize minSize,
+                             @Value("${blogger.chunks.cache-max-weight:32MB}") DataSize cacheMaxWeight,
+                             @Value("${blogger.chunks.sweep-grace:1h}") Duration sweepGrace) {
+        this.mongoTemplate = mongoTemplate;
+        this.contentConverter = contentConverter;
+        this.enabled = enabled;
+        this.minSize = (int) minSize.toBytes();
+        this.sweepGrace = sweepGrace;
+        this.chunks = Caffeine.newBuilder()
+                .maximumWeight(cacheMaxWeight.toBytes())
+                .weigher((String hash, byte[] bytes) -> bytes.length + CHUNK_OVERHEAD)
+                .recordStats()
+                .build();
+        //half the grace - a write relying on an entry has the other half to point a post at the chunk
+        this.used = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(sweepGrace.dividedBy(2))
+                .build();
+    }
+
+    /**
+     * @return true if long content is stored as chunks
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Store content of at least min-size as chunks, when chunking is on. Only the chunks that are not stored yet
+     * are written.
+     * @return the content as the post should keep it - chunked, or as it was
+     */
+    public PostContent store(PostContent content) {
+        if (!enabled || content == null || content.chunks() != null) {
+            return content;
+        }
+        String text = content.text();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < minSize) {
+            return content;
+        }
+
+        Map<String, byte[]> split = new LinkedHashMap<>();
+        List<String> manifest = new ArrayList<>();
+        int start = 0;
+        for (int end : boundaries(bytes)) {
+            byte[] chunk = Arrays.copyOfRange(bytes, start, end);
+            String hash = hash(chunk);
+            manifest.add(hash);
+            split.putIfAbsent(hash, chunk);
+            start = end;
+        }
+        write(split);
+        return PostContent.chunked(manifest, bytes.length, text);
+    }
+
+    //of the chunks not marked as used recently, the ones mongo has are marked again and the rest are sent
+    private void write(Map<String, byte[]> split) {
+        Set<String> unknown = new LinkedHashSet<>();
+        for (String hash : split.keySet()) {
+            if (used.getIfPresent(hash) == null) {
+                unknown.add(hash);
+            }
+        }
+        if (unknown.isEmpty()) {
+            split.forEach(chunks::put);
+            return;
+        }
+        Date now = new Date();
+        MongoCollection<Document> collection = mongoTemplate.getCollection(COLLECTION);
+        //marked before they are looked for: a chunk sweep removes after the mark is not found, and is sent again
+        collection.updateMany(Filters.in("_id", unknown), Updates.set("used", now));
+        Set<String> marked = new HashSet<>(unknown);
+        for (Document stored : collection.find(Filters.in("_id", unknown)).projection(Projections.include("_id"))) {
+            unknown.remove(stored.getString("_id"));
+        }
+
+        List<Document> documents = new ArrayList<>(unknown.size());
+        for (String hash : unknown) {
+            byte[] chunk = split.get(hash);
+            Document document = new Document("_id", hash);
+            if (contentConverter.isEnabled()) {
+                document.append("data", new Binary(PostContent.compress(chunk, contentConverter.getLevel())))
+                        .append("deflated", true);
+            } else {
+                document.append("data", new Binary(chunk));
+            }
+            documents.add(document.append("used", now));
+        }
+        if (!documents.isEmpty()) {
+            try {
+                collection.insertMany(documents, new InsertManyOptions().ordered(false));
+            } catch (MongoBulkWriteException e) {
+                //a chunk another write stored since it was looked for is already there, which is all that matters
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        marked.forEach(hash -> used.put(hash, Boolean.TRUE));
+        split.forEach(chunks::put);
+    }
+
+    /**
+     * @param manifest - the hashes of the chunks, in order
+     * @return the text the chunks were split from
+     * @throws IllegalStateException if a chunk is missing
+     */
+    public String assemble(List<String> manifest) {
+        return join(manifest, load(manifest));
+    }
+
+    /**
+     * Put the chunked content of the posts together with one query for all of their missing chunks.
+     * Posts that are not chunked, or already put together, are left as they are.
+     * @throws IllegalStateException if a chunk is missing
+     */
+    public void assembleAll(Collection<? extends BlogPost> posts) {
+        List<PostContent> contents = posts.stream()
+                .map(BlogPost::getStoredContent)
+                .filter(content -> content != null && content.chunks() != null && !content.isLoaded())
+                .toList();
+        if (contents.isEmpty()) {
+            return;
+        }
+        Map<String, byte[]> found = load(contents.stream().flatMap(content -> content.chunks().stream()).toList());
+        for (PostContent content : contents) {
+            content.load(manifest -> join(manifest, found));
+        }
+    }
+
+    /**
+     * @param posts - read from a cursor
+     * @param batchSize - how many posts to put together at once, the cursor batch size is a good choice
+     * @return the posts, with their chunked content put together a batch at a time - see assembleAll.
+     *         Closing it closes posts.
+     */
+    public <T extends BlogPost> Stream<T> assembling(Stream<T> posts, int batchSize) {
+        Iterator<T> source = posts.iterator();
+        Iterator<T> assembled = new Iterator<>() {
+            private Iterator<T> batch = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if (!batch.hasNext() && source.hasNext()) {
+                    List<T> next = new ArrayList<>(batchSize);
+                    while (next.size() < batchSize && source.hasNext()) {
+                        next.add(source.next());
+                    }
+                    assembleAll(next);
+                    batch = next.iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(assembled, Spliterator.ORDERED), false)
+                .onClose(posts::close);
+    }
+
+    //the chunks with the given hashes from the cache, and the ones it doesn't have from mongo in one query
+    private Map<String, byte[]> load(List<String> hashes) {
+        Map<String, byte[]> found = new HashMap<>(chunks.getAllPresent(hashes));
+        List<String> missing = hashes.stream().filter(hash -> !found.containsKey(hash)).distinct().toList();
+        if (!missing.isEmpty()) {
+            for (Document stored : mongoTemplate.getCollection(COLLECTION).find(Filters.in("_id", missing))) {
+                byte[] data = stored.get("data", Binary.class).getData();
+                byte[] chunk = stored.getBoolean("deflated", false) ? PostContent.inflate(data) : data;
+                found.put(stored.getString("_id"), chunk);
+                chunks.put(stored.getString("_id"), chunk);
+            }
+        }
+        return found;
+    }
+
+    private static String join(List<String> manifest, Map<String, byte[]> found) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (String hash : manifest) {
+            byte[] chunk = found.get(hash);
+            if (chunk == null) {
+                throw new IllegalStateException("Content chunk " + hash + " is missing");
+            }
+            text.writeBytes(chunk);
+        }
+        return text.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Remove the chunks no post or revision uses and no write has used within sweep-grace.
+     * The hashes in use are collected first, then the old chunks are read a batch of ids at a time -
+     * only the chunk ids and the hashes in use are held in memory, not the chunks.
+     * @return how many chunks were removed
+     */
+    @Scheduled(cron = "${blogger.chunks.sweep-cron:0 30 4 * * *}")
+    public long sweep() {
+        //turned off and never turned on - no chunks to look for, and no reason to read every post
+        if (!enabled && mongoTemplate.getCollection(COLLECTION).estimatedDocumentCount() == 0) {
+            return 0;
+        }
+        Instant start = Instant.now();
+        Set<String> inUse = new HashSet<>();
+        for (Class<?> type : List.of(BlogPost.class, Revision.class)) {
+            MongoCollection<Document> collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(type));
+            for (Document document : collection.find(Filters.exists("content.chunks"))
+                    .projection(Projections.include("content.chunks")).batchSize(SWEEP_BATCH)) {
+                inUse.addAll(document.get("content", Document.class).getList("chunks", String.class));
+            }
+        }
+
+        //checked again by the delete, a write may mark a chunk after it was read here
+        Bson old = Filters.or(Filters.lt("used", Date.from(start.minus(sweepGrace))), Filters.exists("used", false));
+        MongoCollection<Document> collection = mongoTemplate.getCollection(COLLECTION);
+        List<String> unused = new ArrayList<>(SWEEP_BATCH);
+        long removed = 0;
+        for (Document chunk : collection.find(old).projection(Projections.include("_id")).batchSize(SWEEP_BATCH)) {
+            String hash = chunk.getString("_id");
+            if (!inUse.contains(hash)) {
+                unused.add(hash);
+            }
+            if (unused.size() == SWEEP_BATCH) {
+                removed += remove(collection, unused, old);
+            }
+        }
+        removed += remove(collection, unused, old);
+        log.info("Removed {} unused content chunks in {} ms", removed, Duration.between(start, Instant.now()).toMillis());
+        return removed;
+    }
+
+    private long remove(MongoCollection<Document> collection, List<String> hashes, Bson old) {
+        if (hashes.isEmpty()) {
+            return 0;
+        }
+        long removed = collection.deleteMany(Filters.and(Filters.in("_id", hashes), old)).getDeletedCount();
+        chunks.invalidateAll(hashes);
+        used.invalidateAll(hashes);
+        hashes.clear();
+        return removed;
+    }
+
+    public CacheStatistics stats() {
+        long weight = chunks.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        return CacheStatistics.of("contentChunks", chunks.estimatedSize(), weight, chunks.stats());
+    }
+
+    /**
+     * @return where each chunk of the bytes ends, the last one is the length of the bytes
+     */
+    public static List<Integer> boundaries(byte[] bytes) {
+        List<Integer> ends = new ArrayList<>();
+        int start = 0;
+        while (start < bytes.length) {
+            int end = Math.min(bytes.length, start + MAX_CHUNK);
+            long hash = 0;
+            //no boundary before MIN_CHUNK - skip hashing it, the hash only depends on the last 64 bytes anyway
+            int i = Math.min(end, start + MIN_CHUNK);
+            for (int j = Math.max(start, i - 64); j < i; j++) {
+                hash = (hash << 1) + GEAR[bytes[j] & 0xFF];
+            }
+            while (i < end) {
+                hash = (hash << 1) + GEAR[bytes[i++] & 0xFF];
+                if ((hash & BOUNDARY_MASK) == 0) {
+                    break;
+                }
+            }
+            ends.add(i);
+            start = i;
+        }
+        return ends;
+    }
+
+    private static String hash(byte[] chunk) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(chunk));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.haprer.blogger.services;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Version stamps for the collections behind the list endpoints, used to build their ETags and Last-Modified dates.
+ * A stamp changes whenever a node writes something that changes what the endpoint returns, so a request can be
+ * answered with 304 Not Modified without reading anything from mongo.
+ *
+ * The stamps are kept in content_versions, so every node behind the load balancer hands out the same ETag for the
+ * same data: the node that writes moves the stamp on in mongo and uses what it got back, the other nodes get it
+ * from the PostChangeStream. Each stamp has an epoch, the time it was first made, so ETags from before the
+ * collection was dropped never match.
+ *
+ * When the stamp can't be read or moved on in mongo, this node makes up one of its own that no other node or
+ * earlier stamp has - clients just get fewer 304s until the next write moves the stamp in mongo on past it.
+ */
+@Slf4j
+@Component
+public class ContentVersions implements PostChangeListener {
+
+    public static final String COLLECTION = "content_versions";
+
+    private final MongoTemplate mongoTemplate;
+    private final Stamp posts = new Stamp("posts");
+    private final Stamp tags = new Stamp("tags");
+
+    public ContentVersions(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Read the stamps the other nodes left, or make them if this is the first node to run
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        load(posts);
+        load(tags);
+    }
+
+    /**
+     * A post was saved or deleted
+     */
+    public void postsChanged() {
+        next(posts);
+    }
+
+    /**
+     * A tag count changed
+     */
+    public void tagsChanged() {
+        next(tags);
+    }
+
+    /**
+     * Only the stamps follow the other nodes - their writes moved them on in mongo already
+     */
+    @Override
+    public void contentVersionsChanged(List<Document> stamps) {
+        for (Document stamp : stamps) {
+            if (posts.name.equals(stamp.get("_id"))) {
+                posts.saved(stamp);
+            } else if (tags.name.equals(stamp.get("_id"))) {
+                tags.saved(stamp);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        initialize();
+    }
+
+    public String postsETag() {
+        return posts.etag();
+    }
+
+    public Instant postsLastModified() {
+        return posts.value.lastModified();
+    }
+
+    public String tagsETag() {
+        return tags.etag();
+    }
+
+    public Instant tagsLastModified() {
+        return tags.value.lastModified();
+    }
+    /**
+     * @return strong ETag for a single post, null if the post has no version yet
+     */
+    public static String postETag(String id, Long version) {
+        if (id == null || version == null) {
+            return null;
+        }
+        return "\"" + id + "-" + version + "\"";
+    }
+
+    /**
+     * @param etag - an If-Match header, the ETag of a post as made by postETag
+     * @return the id and version of the post in it, null for no header or *
+     * @throws IllegalArgumentException if it is not the strong ETag of a post, or more than one
+     */
+    public static PostVersion parsePostETag(String etag) {
+        if (etag == null || etag.isBlank() || etag.strip().equals("*")) {
+            return null;
+        }
+        String tag = etag.strip();
+        int dash = tag.lastIndexOf('-');
+        if (tag.length() < 2 || !tag.startsWith("\"") || !tag.endsWith("\"") || tag.indexOf('"', 1) != tag.length() - 1
+                || dash < 2) {
+            throw new IllegalArgumentException("If-Match must be the ETag of the post: " + etag);
+        }
+        try {
+            return new PostVersion(tag.substring(1, dash), Long.parseLong(tag.substring(dash + 1, tag.length() - 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("If-Match must be the ETag of the post: " + etag, e);
+        }
+    }
+
+    public record PostVersion(String id, long version) {}
+
+
+    private void load(Stamp stamp) {
+        try {
+            stamp.saved(update(stamp.name, false));
+        } catch (MongoException e) {
+            log.warn("Could not read the {} stamp from {} - this node makes up its own until the next write",
+                    stamp.name, COLLECTION, e);
+        }
+    }
+
+    private void next(Stamp stamp) {
+        try {
+            stamp.saved(update(stamp.name, true));
+        } catch (MongoException e) {
+            log.warn("Could not move the {} stamp on in {} - this node makes up its own until the next write",
+                    stamp.name, COLLECTION, e);
+            stamp.unsaved();
+        }
+    }
+
+    /*
+     * One update pipeline, so concurrent writers on any node each get their own version, and it is made the first
+     * time it is asked for. http dates only have seconds, so every change moves lastModified on by at least a
+     * second - otherwise two writes in the same second would look like one and If-Modified-Since would miss the
+     * second. Under a burst of writes this can run a little ahead of the clock.
+     */
+    private Document update(String name, boolean next) {
+        Document now = new Document("$subtract", List.of("$$NOW",
+                new Document("$mod", List.of(new Document("$toLong", "$$NOW"), 1000L))));
+        Document set = new Document("epoch", new Document("$ifNull", List.of("$epoch", new Document("$toLong", "$$NOW"))));
+        if (next) {
+            set.append("version", new Document("$add", List.of(new Document("$ifNull", List.of("$version", 0L)), 1L)))
+                    .append("lastModified", new Document("$max", List.of(now, new Document("$add",
+                            List.of(new Document("$ifNull", List.of("$lastModified", new Date(0))), 1000L)))));
+        } else {
+            set.append("version", new Document("$ifNull", List.of("$version", 0L)))
+                    .append("lastModified", new Document("$ifNull", List.of("$lastModified", now)));
+        }
+        return mongoTemplate.getCollection(COLLECTION).findOneAndUpdate(Filters.eq("_id", name),
+                List.of(new Document("$set", set)),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    }
+
+    private record Value(long epoch, long version, Instant lastModified, String unsaved) {}
+
+    private static class Stamp {
+        private final String name;
+        private final ReentrantLock lock = new ReentrantLock();     //not synchronized, see application-virtual.properties
+        //until the stamp is read from mongo, one no other node has
+        private volatile Value value = new Value(0, 0, Instant.now().truncatedTo(ChronoUnit.SECONDS), unique());
+
+        Stamp(String name) {
+            this.name = name;
+        }
+
+        String etag() {
+            Value value = this.value;
+            return "\"" + name + "-" + value.epoch() + "-" + value.version()
+                    + (value.unsaved() == null ? "" : "-" + value.unsaved()) + "\"";
+        }
+
+        /*
+         * A stamp as it is in mongo - the answers of concurrent writes and the change stream's echoes of them
+         * arrive in any order, so only a newer version is taken. A different epoch means the stamps were made
+         * again from scratch, the old ones are no use any more.
+         */
+        void saved(Document saved) {
+            Value next = new Value(saved.get("epoch", Number.class).longValue(),
+                    saved.get("version", Number.class).longValue(), saved.getDate("lastModified").toInstant(), null);
+            lock.lock();
+            try {
+                if (next.epoch() != value.epoch() || next.version() > value.version()) {
+                    value = next;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //the version stays, so the next stamp saved in mongo replaces this one
+        void unsaved() {
+            lock.lock();
+            try {
+                Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+                Instant next = value.lastModified().plusSeconds(1);
+                value = new Value(value.epoch(), value.version(), now.isAfter(next) ? now : next, unique());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static String unique() {
+            return UUID.randomUUID().toString().substring(0, 8);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.haprer.blogger.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haprer.blogger.data.BlogPost;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Writes every post as NDJSON (one JSON post per line) for backups.
+ *
+ * Posts are read from a mongo cursor a batch at a time and written through a fixed size buffer,
+ * so memory use is the same whatever the size of the collection. The chunks of long posts are read
+ * a batch of posts at a time too (see ContentChunkStore.assembling).
+ * Deleted posts are not part of an incremental export.
+ */
+@Service
+public class ExportService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MongoTemplate mongoTemplate;
+    private final ObjectMapper objectMapper;
+    private final ContentChunkStore chunkStore;
+    private final int batchSize;
+
+    public ExportService(MongoTemplate mongoTemplate, ObjectMapper objectMapper, ContentChunkStore chunkStore,
+                         @Value("${blogger.export.batch-size:200}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.objectMapper = objectMapper;
+        this.chunkStore = chunkStore;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param out - where to write the posts, not closed
+     * @param since - only posts saved at or after this time, null for all posts
+     * @param gzip - true to gzip the output
+     */
+    public void export(OutputStream out, Instant since, boolean gzip) throws IOException {
+        OutputStream target = out;
+        GZIPOutputStream gzipOut = null;
+        if (gzip) {
+            gzipOut = new GZIPOutputStream(out, BUFFER_SIZE);
+            target = gzipOut;
+        }
+        BufferedOutputStream buffer = new BufferedOutputStream(target, BUFFER_SIZE);
+
+        try (Stream<BlogPost> posts = chunkStore.assembling(mongoTemplate.stream(query(since), BlogPost.class), batchSize);
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            for (BlogPost post : (Iterable<BlogPost>) posts::iterator) {
+                generator.writeObject(post);
+                generator.writeRaw('\n');
+            }
+        }
+        buffer.flush();
+        if (gzipOut != null) {
+            gzipOut.finish();
+        }
+        out.flush();
+    }
+
+    private Query query(Instant since) {
+        Query query = new Query().cursorBatchSize(batchSize);
+        if (since == null) {
+            return query.with(Sort.by("_id"));
+        }
+        //posts saved before updated was added only have their creation time
+        return query.addCriteria(new Criteria().orOperator(
+                        where("updated").gte(since),
+                        where("updated").exists(false).and("timestamp").gte(since)))
+                .with(Sort.by("updated"));
+    }
+}
@@ -0,0 +1,228 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.TagCount;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * In memory copy of the tag counts for answering top-K and prefix queries without going to mongo.
+ *
+ * ranked - skip list of tags ordered by count, so the top K is the first K entries
+ * counts - skip list of tags ordered by name, so the tags with a prefix are one contiguous range
+ *
+ * Reads never block. Writes are serialized by a lock so both skip lists get the same changes -
+ * a reader can briefly see a tag at both its old and new count while a write is in progress.
+ * TagCountService loads this from tag_counts at startup and passes on every change it or another node makes.
+ *
+ * Nothing is lost while the counts are read from mongo: the counts other nodes set are kept and set again once the
+ * read is done, and this node's deltas wait for the read - a delta can't be kept like that, as there is no telling
+ * whether the read already saw it.
+ */
+@Component
+public class PopularTagIndex {
+
+    //most used first, then alphabetical
+    private static final Comparator<TagCount> RANK =
+            Comparator.comparingLong(TagCount::getCount).reversed().thenComparing(TagCount::getTag);
+
+    private final ConcurrentSkipListMap<String, Long> counts = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<TagCount> ranked = new ConcurrentSkipListSet<>(RANK);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    //held by load(read) while it reads the counts, and by apply(deltas, write) while it writes them
+    private final ReentrantReadWriteLock reading = new ReentrantReadWriteLock();
+    private boolean loading = false;
+    private final Map<String, Long> pending = new HashMap<>();     //set() during load(read), guarded by writeLock
+    private volatile boolean loaded = false;
+
+    /**
+     * @return false until load() has been called - until then the counts are not known
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Replace everything with the given counts
+     */
+    public void load(List<TagCount> tagCounts) {
+        writeLock.lock();
+        try {
+            replace(tagCounts);
+            loaded = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replace everything with the counts read from mongo - see the class comment for the changes made meanwhile
+     * @param read - reads the counts
+     */
+    public void load(Supplier<List<TagCount>> read) {
+        reading.writeLock().lock();
+        try {
+            writeLock.lock();
+            try {
+                loading = true;
+                pending.clear();
+            } finally {
+                writeLock.unlock();
+            }
+            List<TagCount> tagCounts = null;
+            try {
+                tagCounts = read.get();
+            } finally {
+                writeLock.lock();
+                try {
+                    if (tagCounts != null) {
+                        replace(tagCounts);
+                        loaded = true;
+                    }
+                    loading = false;
+                    if (loaded) {
+                        setAll(pending);
+                    }
+                    pending.clear();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } finally {
+            reading.writeLock().unlock();
+        }
+    }
+
+    private void replace(List<TagCount> tagCounts) {
+        counts.clear();
+        ranked.clear();
+        for (TagCount tagCount : tagCounts) {
+            counts.put(tagCount.getTag(), tagCount.getCount());
+            ranked.add(new TagCount(tagCount.getTag(), tagCount.getCount()));
+        }
+    }
+
+    /**
+     * Write deltas to mongo and then apply them here, never while load(read) is reading the counts
+     * @param write - writes the deltas to mongo
+     */
+    public void apply(Map<String, Long> deltas, Runnable write) {
+        reading.readLock().lock();
+        try {
+            write.run();
+            apply(deltas);
+        } finally {
+            reading.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param deltas - tag -> change in count. Tags that reach 0 are removed.
+     */
+    public void apply(Map<String, Long> deltas) {
+        if (!loaded) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                String tag = delta.getKey();
+                Long old = counts.get(tag);
+                long count = (old == null ? 0 : old) + delta.getValue();
+                if (old != null) {
+                    ranked.remove(new TagCount(tag, old));
+                }
+                if (count > 0) {
+                    counts.put(tag, count);
+                    ranked.add(new TagCount(tag, count));
+                } else {
+                    counts.remove(tag);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param changed - tag -> its count now. Tags with a count of 0 are removed.
+     */
+    public void set(Map<String, Long> changed) {
+        writeLock.lock();
+        try {
+            if (loading) {
+                pending.putAll(changed);
+            } else if (loaded) {
+                setAll(changed);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //with writeLock held
+    private void setAll(Map<String, Long> changed) {
+        for (Map.Entry<String, Long> entry : changed.entrySet()) {
+            String tag = entry.getKey();
+            long count = entry.getValue();
+            Long old = counts.get(tag);
+            if (old != null) {
+                ranked.remove(new TagCount(tag, old));
+            }
+            if (count > 0) {
+                counts.put(tag, count);
+                ranked.add(new TagCount(tag, count));
+            } else {
+                counts.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * @param limit - the most tags to return
+     * @param prefix - only tags starting with this, null or empty for all tags
+     * @return the most used tags, most used first - copies, changing them doesn't change the index
+     */
+    public List<TagCount> top(int limit, String prefix) {
+        List<TagCount> top = new ArrayList<>();
+        if (limit <= 0) {
+            return top;
+        }
+
+        //no prefix - the first entries of the ranked list
+        if (prefix == null || prefix.isEmpty()) {
+            Iterator<TagCount> it = ranked.iterator();
+            while (top.size() < limit && it.hasNext()) {
+                TagCount tagCount = it.next();
+                top.add(new TagCount(tagCount.getTag(), tagCount.getCount()));
+            }
+            return top;
+        }
+
+        //prefix - keep the K largest of the name range in a min heap
+        PriorityQueue<TagCount> heap = new PriorityQueue<>(RANK.reversed());
+        for (Map.Entry<String, Long> entry : counts.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            heap.add(new TagCount(entry.getKey(), entry.getValue()));
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        while (!heap.isEmpty()) {
+            top.add(heap.poll());
+        }
+        Collections.reverse(top);
+        return top;
+    }
+}
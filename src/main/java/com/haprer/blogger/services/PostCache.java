@@ -0,0 +1,199 @@
+package com.haprer.blogger.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.CacheStatistics;
+import com.haprer.blogger.data.PostChange;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of whole posts for BlogService.
+ *
+ * posts - id -> post. Bounded by the estimated serialized size of the posts, not the number of them,
+ *         so a few very long posts can't push the heap over the limit.
+ * ids   - (title, author) -> id. Entries are small so this one is bounded by count.
+ *
+ * Both use Caffeine's W-TinyLFU eviction. BlogService invalidates the old and new keys of every post it writes,
+ * and the PostChangeStream the posts other nodes write. Entries also expire after a while in case a write
+ * was missed anyway (e.g. the change stream is off).
+ * Posts are loaded outside the cache (not with Caffeine's compute, which would pin virtual threads during the query).
+ * A load that a write to the same post overlapped may have read it before the write, so it isn't cached: each
+ * invalidation stamps its keys with a sequence number, and a loaded post is only put in the cache (atomically,
+ * with compute) if none of its keys was stamped after the load started. Loads of other posts are not affected.
+ * Cached posts are shared between callers and must not be modified.
+ */
+@Component
+public class PostCache implements PostChangeListener {
+
+    //fixed cost of a post on top of its strings
+    private static final int POST_OVERHEAD = 128;
+
+    private final Cache<String, BlogPost> posts;
+    private final Cache<TitleAndAuthor, String> ids;
+
+    private final AtomicLong sequence = new AtomicLong();
+    //id or (title, author) -> when it was last invalidated. Kept as long as entries are, longer than any load takes
+    private final Cache<Object, Long> invalidated;
+    private volatile long allInvalidated;
+
+    public PostCache(@Value("${blogger.post-cache.max-weight:64MB}") DataSize maxWeight,
+                     @Value("${blogger.post-cache.max-keys:100000}") long maxKeys,
+                     @Value("${blogger.post-cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        this.posts = Caffeine.newBuilder()
+                .maximumWeight(maxWeight.toBytes())
+                .weigher((String id, BlogPost post) -> weigh(post))
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        this.ids = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        this.invalidated = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterWrite(expireAfterWrite)
+                .build();
+    }
+
+    private record TitleAndAuthor(String title, String author) {}
+
+    /**
+     * @param loader - reads the post from the database on a miss
+     */
+    public Optional<BlogPost> findById(String id, Function<String, Optional<BlogPost>> loader) {
+        //not posts.get(id, loader) - that would run the query inside the map's synchronized compute and pin a virtual thread
+        BlogPost post = posts.getIfPresent(id);
+        if (post != null) {
+            return Optional.of(post);
+        }
+        long start = sequence.get();
+        Optional<BlogPost> loaded = loader.apply(id);
+        loaded.ifPresent(p -> cache(p, null, start));
+        return loaded;
+    }
+
+    /**
+     * @param loader - reads the post from the database on a miss
+     */
+    public Optional<BlogPost> findByTitleAndAuthor(String title, String author, Supplier<Optional<BlogPost>> loader) {
+        TitleAndAuthor key = new TitleAndAuthor(title, author);
+        String id = ids.getIfPresent(key);
+        if (id != null) {
+            BlogPost post = posts.getIfPresent(id);
+            if (post != null && title.equals(post.getTitle()) && author.equals(post.getAuthor())) {
+                return Optional.of(post);
+            }
+        }
+
+        long start = sequence.get();
+        Optional<BlogPost> post = loader.get();
+        post.ifPresent(p -> cache(p, key, start));
+        return post;
+    }
+
+    //an entry cached since the load started is kept - it was loaded after it
+    private void cache(BlogPost post, TitleAndAuthor key, long start) {
+        String id = post.getId();
+        posts.asMap().compute(id, (k, current) -> invalidatedSince(id, start) ? current : post);
+        if (key != null) {
+            ids.asMap().compute(key, (k, current) ->
+                    invalidatedSince(key, start) || invalidatedSince(id, start) ? current : id);
+        }
+    }
+
+    private boolean invalidatedSince(Object key, long start) {
+        Long stamp = invalidated.getIfPresent(key);
+        return allInvalidated > start || (stamp != null && stamp > start);
+    }
+
+    /**
+     * Forget a post that was written or deleted
+     * @param id - the post's id, may be null
+     * @param title - a title the post had, may be null
+     * @param author - the author the post had with that title
+     */
+    public void invalidate(String id, String title, String author) {
+        //stamped inside the entry's compute, so a load caching it at the same time either sees the stamp or is removed
+        if (id != null) {
+            posts.asMap().compute(id, (k, current) -> {
+                invalidated.put(k, sequence.incrementAndGet());
+                return null;
+            });
+        }
+        if (title != null && author != null) {
+            ids.asMap().compute(new TitleAndAuthor(title, author), (k, current) -> {
+                invalidated.put(k, sequence.incrementAndGet());
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Forget the old and new versions of posts that were written or deleted
+     */
+    public void invalidate(List<? extends BlogPost> changed) {
+        for (BlogPost post : changed) {
+            invalidate(post.getId(), post.getTitle(), post.getAuthor());
+        }
+    }
+
+    public void invalidateAll() {
+        allInvalidated = sequence.incrementAndGet();
+        posts.invalidateAll();
+        ids.invalidateAll();
+    }
+
+    //the old title of a post written elsewhere isn't known - a cached id for it finds the post with its new title,
+    //which findByTitleAndAuthor checks
+    @Override
+    public void postsChanged(List<PostChange> changes) {
+        for (PostChange change : changes) {
+            BlogPost post = change.getPost();
+            invalidate(change.getId(), post == null ? null : post.getTitle(), post == null ? null : post.getAuthor());
+        }
+    }
+
+    @Override
+    public void reset() {
+        invalidateAll();
+    }
+
+    public List<CacheStatistics> stats() {
+        //pending evictions first, so the sizes are exact
+        posts.cleanUp();
+        ids.cleanUp();
+        long weight = posts.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        return List.of(
+                CacheStatistics.of("posts", posts.estimatedSize(), weight, posts.stats()),
+                CacheStatistics.of("postIds", ids.estimatedSize(), ids.estimatedSize(), ids.stats()));
+    }
+
+    /**
+     * @return roughly how many bytes the post takes up serialized
+     */
+    static int weigh(BlogPost post) {
+        long weight = POST_OVERHEAD + length(post.getTitle()) + length(post.getAuthor())
+                + post.contentLength() + length(post.getExcerpt());     //compressed content isn't inflated to be weighed
+        if (post.getTags() != null) {
+            for (String tag : post.getTags()) {
+                weight += length(tag) + 3;
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
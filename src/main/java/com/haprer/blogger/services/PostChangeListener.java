@@ -0,0 +1,46 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.PostChange;
+import org.bson.Document;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Something this node keeps in memory about the posts or tag counts, which has to follow the writes of the other
+ * nodes. Every bean implementing this is told about them by the PostChangeStream, a batch at a time, on its thread.
+ * Posts written by this node are not passed on - BlogService already updated everything for them. Tag counts are,
+ * they are the counts as they are now so setting them again does no harm.
+ */
+public interface PostChangeListener {
+
+    /**
+     * @param changes - the posts written or deleted, the last change of each post in the batch
+     */
+    default void postsChanged(List<PostChange> changes) {
+    }
+
+    /**
+     * @param counts - tag -> how many posts have it now, 0 if none have it any more
+     */
+    default void tagCountsChanged(Map<String, Long> counts) {
+    }
+
+    /**
+     * Every tag count was replaced at once - see TagCountService.rebuild
+     */
+    default void tagCountsReplaced() {
+    }
+
+    /**
+     * @param stamps - the stamps in content_versions that changed, as they are now (see ContentVersions)
+     */
+    default void contentVersionsChanged(List<Document> stamps) {
+    }
+
+    /**
+     * Changes may have been missed (the change stream could not resume where it stopped) - forget or reload
+     * everything that could be stale
+     */
+    void reset();
+}
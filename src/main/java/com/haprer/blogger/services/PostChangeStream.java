@@ -0,0 +1,388 @@
+package com.haprer.blogger.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostChange;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Follows the writes other nodes make to the posts, tag counts and ETag stamps with a mongo change stream, and passes
+ * them on to every PostChangeListener - the caches, indexes and ETags this node keeps in memory. Without it they only learn of
+ * the writes of this node, and the rest until entries expire or the app restarts.
+ *
+ * The events are coalesced: a batch is passed on when there are batch-size of them, the oldest has waited max-delay,
+ * or mongo has nothing more right now, and only the last change of each post in a batch counts.
+ * Updates come with the post as it is now, so a listener gets the post and not what changed.
+ *
+ * Posts BlogService wrote on this node were already passed on by it, so their events are skipped - a write is
+ * remembered by its version for a while, and an event for that version or an older one is an echo.
+ *
+ * Where the stream got to (its resume token) is saved in change_stream_tokens after every batch, one per node,
+ * so a restart picks up where it stopped and misses nothing. If mongo no longer has the history to resume from,
+ * the stream starts from now and every listener is reset. Change streams need a replica set - against a standalone
+ * server this logs a warning and stops, and the caches fall back to expiring.
+ */
+@Slf4j
+@Service
+public class PostChangeStream implements SmartLifecycle {
+
+    public static final String TOKEN_COLLECTION = "change_stream_tokens";
+
+    //mongo no longer has the history the token points into, or the token is not one it can resume from
+    private static final Set<Integer> CANNOT_RESUME = Set.of(286, 260, 280);
+    private static final int NOT_A_REPLICA_SET = 40573;
+    private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(5);
+    private static final Duration LOCAL_WRITE_TTL = Duration.ofMinutes(10);
+
+    private final MongoTemplate mongoTemplate;
+    private final ObjectProvider<PostChangeListener> listenerProvider;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration maxDelay;
+    private final String node;
+    private final Duration tokenSaveInterval;
+    private final String postsCollection;
+    private final DistributionSummary batchSizes;
+    private final Timer lag;
+
+    //id -> the newest version this node wrote, Long.MAX_VALUE once it deleted the post
+    private final Cache<String, Long> localWrites = Caffeine.newBuilder()
+            .expireAfterWrite(LOCAL_WRITE_TTL)
+            .maximumSize(100_000)
+            .build();
+
+    private volatile boolean running = false;
+    private volatile boolean following = false;
+    private Thread follower;
+    private BsonDocument resumeToken;       //where the last batch passed on ended, only used by the follower
+
+    public PostChangeStream(MongoTemplate mongoTemplate, ObjectProvider<PostChangeListener> listenerProvider,
+                            MeterRegistry registry,
+                            @Value("${blogger.change-stream.enabled:true}") boolean enabled,
+                            @Value("${blogger.change-stream.batch-size:500}") int batchSize,
+                            @Value("${blogger.change-stream.max-delay:100ms}") Duration maxDelay,
+                            @Value("${blogger.change-stream.node:local}") String node,
+                            @Value("${blogger.change-stream.token-save-interval:10s}") Duration tokenSaveInterval) {
+        this.mongoTemplate = mongoTemplate;
+        this.listenerProvider = listenerProvider;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.node = node;
+        this.tokenSaveInterval = tokenSaveInterval;
+        this.postsCollection = mongoTemplate.getCollectionName(BlogPost.class);
+        this.batchSizes = DistributionSummary.builder("blogger.change-stream.batch.size")
+                .description("Change events passed on per batch")
+                .register(registry);
+        this.lag = Timer.builder("blogger.change-stream.lag")
+                .description("Time from another node's write to this node passing it on")
+                .register(registry);
+    }
+
+    /**
+     * @return true while the change stream is open
+     */
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * BlogService wrote these posts - their events are echoes of what it already passed on
+     */
+    public void localWrites(Collection<? extends BlogPost> posts) {
+        if (!enabled) {
+            return;
+        }
+        for (BlogPost post : posts) {
+            if (post.getId() != null && post.getVersion() != null) {
+                localWrites.asMap().merge(post.getId(), post.getVersion(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * BlogService deleted these posts
+     */
+    public void localDeletes(Collection<String> ids) {
+        if (!enabled) {
+            return;
+        }
+        ids.forEach(id -> localWrites.put(id, Long.MAX_VALUE));
+    }
+
+    private void follow() {
+        resumeToken = loadToken();
+        long retryDelay = TimeUnit.MILLISECONDS.toNanos(100);
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open()) {
+                log.info("Following the changes of {}, {} and {} {}", postsCollection, TagCountService.COLLECTION,
+                        ContentVersions.COLLECTION, resumeToken == null ? "from now" : "from where this node stopped");
+                retryDelay = TimeUnit.MILLISECONDS.toNanos(100);
+                following = true;
+                read(cursor);
+            } catch (RuntimeException e) {
+                following = false;
+                if (!running) {
+                    return;
+                }
+                int code = e instanceof MongoException mongoException ? mongoException.getCode() : 0;
+                if (code == NOT_A_REPLICA_SET) {
+                    log.warn("Mongo is not a replica set, so other nodes' writes can't be followed - "
+                            + "cached posts and tag counts only expire");
+                    return;
+                }
+                if (CANNOT_RESUME.contains(code)) {
+                    log.warn("Could not resume the change stream, starting from now - everything kept in memory "
+                            + "is reloaded in case changes were missed", e);
+                    resumeToken = null;
+                    saveToken(null);
+                    notify("reset", PostChangeListener::reset);
+                    continue;
+                }
+                log.warn("Change stream failed, retrying in {} ms", TimeUnit.NANOSECONDS.toMillis(retryDelay), e);
+                LockSupport.parkNanos(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY.toNanos());
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+        //the rename that replaces tag_counts (TagCountService.rebuild) is an event of the scratch collection
+        List<String> collections = List.of(postsCollection, TagCountService.COLLECTION, ContentVersions.COLLECTION);
+        ChangeStreamIterable<Document> stream = mongoTemplate.getDb()
+                .watch(List.of(Aggregates.match(Filters.or(
+                        Filters.in("ns.coll", collections),
+                        Filters.in("to.coll", collections),
+                        Filters.in("operationType", "dropDatabase", "invalidate")))))
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(maxDelay.toMillis(), TimeUnit.MILLISECONDS)
+                .batchSize(batchSize);
+        //startAfter and not resumeAfter - it can also start after the invalidate of a dropped database
+        return (resumeToken == null ? stream : stream.startAfter(resumeToken)).cursor();
+    }
+
+    private void read(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        List<ChangeStreamDocument<Document>> batch = new ArrayList<>(batchSize);
+        long firstRead = 0;
+        long tokenSaved = System.nanoTime();
+        while (running) {
+            ChangeStreamDocument<Document> event = cursor.tryNext();
+            if (event != null) {
+                if (batch.isEmpty()) {
+                    firstRead = System.nanoTime();
+                }
+                batch.add(event);
+            }
+            boolean invalidated = event != null && event.getOperationType() == OperationType.INVALIDATE;
+            if (!batch.isEmpty() && (event == null || invalidated || batch.size() >= batchSize
+                    || System.nanoTime() - firstRead >= maxDelay.toNanos())) {
+                dispatch(batch);
+                resumeToken = batch.getLast().getResumeToken();
+                batch.clear();
+                saveToken(resumeToken);
+                tokenSaved = System.nanoTime();
+                if (invalidated) {
+                    return;     //the stream is closed, it is opened again after the invalidate
+                }
+            } else if (batch.isEmpty() && System.nanoTime() - tokenSaved >= tokenSaveInterval.toNanos()) {
+                //the token moves on with the other collections' writes too, so a quiet node resumes from close by
+                BsonDocument token = cursor.getResumeToken();
+                if (token != null && !token.equals(resumeToken)) {
+                    resumeToken = token;
+                    saveToken(token);
+                }
+                tokenSaved = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Pass a batch of events on to the listeners
+     */
+    public void dispatch(List<ChangeStreamDocument<Document>> events) {
+        Map<String, PostChange> posts = new LinkedHashMap<>();
+        Map<String, Long> tagCounts = new LinkedHashMap<>();
+        Map<String, Document> stamps = new LinkedHashMap<>();
+        boolean reset = false;
+        boolean tagCountsReplaced = false;
+        for (ChangeStreamDocument<Document> event : events) {
+            OperationType type = event.getOperationType();
+            String collection = event.getNamespace() == null ? null : event.getNamespace().getCollectionName();
+            if (event.getWallTime() != null) {
+                lag.record(Duration.between(Instant.ofEpochMilli(event.getWallTime().getValue()), Instant.now()));
+            }
+            switch (type) {
+                case INSERT, UPDATE, REPLACE, DELETE -> {
+                    if (postsCollection.equals(collection)) {
+                        PostChange change = postChange(event);
+                        posts.put(change.getId(), change);
+                    } else if (TagCountService.COLLECTION.equals(collection)) {
+                        Document counted = event.getFullDocument();
+                        Number count = counted == null ? null : counted.get("count", Number.class);
+                        tagCounts.put(id(event.getDocumentKey()), count == null ? 0 : count.longValue());
+                    } else if (ContentVersions.COLLECTION.equals(collection) && event.getFullDocument() != null) {
+                        stamps.put(id(event.getDocumentKey()), event.getFullDocument());
+                    }
+                }
+                case RENAME -> {
+                    if (TagCountService.COLLECTION.equals(event.getDestinationNamespace().getCollectionName())) {
+                        tagCountsReplaced = true;
+                    } else {
+                        reset = true;
+                    }
+                }
+                case DROP -> {
+                    if (TagCountService.COLLECTION.equals(collection)) {
+                        tagCountsReplaced = true;
+                    } else {
+                        reset = true;
+                    }
+                }
+                case DROP_DATABASE, INVALIDATE -> reset = true;
+                default -> {
+                }
+            }
+        }
+        batchSizes.record(events.size());
+
+        if (reset) {
+            notify("reset", PostChangeListener::reset);
+            return;
+        }
+        List<PostChange> changes = posts.values().stream().filter(change -> !isEcho(change)).toList();
+        if (!changes.isEmpty()) {
+            notify("postsChanged", listener -> listener.postsChanged(changes));
+        }
+        if (tagCountsReplaced) {
+            notify("tagCountsReplaced", PostChangeListener::tagCountsReplaced);
+        } else if (!tagCounts.isEmpty()) {
+            notify("tagCountsChanged", listener -> listener.tagCountsChanged(tagCounts));
+        }
+        //after what they stamp, so a request with the new ETag doesn't get what was cached before
+        if (!stamps.isEmpty()) {
+            List<Document> changed = List.copyOf(stamps.values());
+            notify("contentVersionsChanged", listener -> listener.contentVersionsChanged(changed));
+        }
+    }
+
+    //a post that was deleted since it was written has no full document
+    private PostChange postChange(ChangeStreamDocument<Document> event) {
+        if (event.getOperationType() == OperationType.DELETE || event.getFullDocument() == null) {
+            return PostChange.deleted(id(event.getDocumentKey()));
+        }
+        return PostChange.written(mongoTemplate.getConverter().read(BlogPost.class, event.getFullDocument()));
+    }
+
+    private boolean isEcho(PostChange change) {
+        Long local = localWrites.getIfPresent(change.getId());
+        if (local == null) {
+            return false;
+        }
+        if (change.isDeleted()) {
+            return local == Long.MAX_VALUE;
+        }
+        Long version = change.getPost().getVersion();
+        return version != null && version <= local;
+    }
+
+    private static String id(BsonDocument documentKey) {
+        BsonValue id = documentKey.get("_id");
+        return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.asString().getValue();
+    }
+
+    //one listener failing doesn't keep the change from the others
+    private void notify(String what, Consumer<PostChangeListener> call) {
+        for (PostChangeListener listener : listenerProvider.orderedStream().toList()) {
+            try {
+                call.accept(listener);
+            } catch (RuntimeException e) {
+                log.warn("{} of {} failed", what, listener.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private BsonDocument loadToken() {
+        try {
+            Document saved = mongoTemplate.getCollection(TOKEN_COLLECTION).find(Filters.eq("_id", node)).first();
+            Document token = saved == null ? null : saved.get("token", Document.class);
+            return token == null ? null : token.toBsonDocument();
+        } catch (MongoException e) {
+            log.warn("Could not read the change stream resume token of {} - starting from now", node, e);
+            return null;
+        }
+    }
+
+    //losing a save only means replaying a little more after a restart
+    private void saveToken(BsonDocument token) {
+        try {
+            Document saved = new Document("_id", node).append("token", token).append("updated", new Date());
+            mongoTemplate.getCollection(TOKEN_COLLECTION)
+                    .replaceOne(Filters.eq("_id", node), saved, new ReplaceOptions().upsert(true));
+        } catch (MongoException e) {
+            log.warn("Could not save the change stream resume token of {}", node, e);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        follower = Thread.ofPlatform().name("post-change-stream").daemon().start(this::follow);
+    }
+
+    //the follower notices within max-delay, its tryNext doesn't wait any longer than that
+    @Override
+    public void stop() {
+        running = false;
+        following = false;
+        if (follower == null) {
+            return;
+        }
+        try {
+            follower.join(maxDelay.plusSeconds(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,275 @@
+package com.haprer.blogger.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Map;
+
+/**
+ * The documents a term appears in and how often, for the SearchIndex.
+ *
+ * Postings are kept sorted by document id in blocks of about BLOCK_SIZE. Inside a block each posting is stored
+ * as variable length ints - the gap to the previous id then the term frequency - so most postings take 2 bytes
+ * instead of 8. Changing a posting only re-encodes its block, so updating a post that shares a common word with
+ * most other posts doesn't rewrite that word's whole list.
+ * A PostingList is immutable - update() returns a new list that shares the unchanged blocks.
+ */
+final class PostingList {
+
+    static final int BLOCK_SIZE = 128;
+
+    static final PostingList EMPTY = new PostingList(new int[0], new int[0], new byte[0][], 0);
+
+    /**
+     * Receives the postings of a list in document id order
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void visit(int docId, int frequency);
+    }
+
+    private final int[] firstDocIds;    //of each block, the gaps inside a block start from it
+    private final int[] counts;         //postings in each block
+    private final byte[][] blocks;
+    private final int size;             //number of postings, the document frequency of the term
+
+    private PostingList(int[] firstDocIds, int[] counts, byte[][] blocks, int size) {
+        this.firstDocIds = firstDocIds;
+        this.counts = counts;
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(Visitor visitor) {
+        for (int b = 0; b < blocks.length; b++) {
+            decode(b, visitor);
+        }
+    }
+
+    private void decode(int b, Visitor visitor) {
+        byte[] data = blocks[b];
+        int position = 0;
+        int docId = firstDocIds[b];
+        for (int i = 0; i < counts[b]; i++) {
+            //inlined variable length int reads - this is the inner loop of every search
+            int gap = 0;
+            int shift = 0;
+            byte read;
+            do {
+                read = data[position++];
+                gap |= (read & 0x7F) << shift;
+                shift += 7;
+            } while (read < 0);
+            int frequency = 0;
+            shift = 0;
+            do {
+                read = data[position++];
+                frequency |= (read & 0x7F) << shift;
+                shift += 7;
+            } while (read < 0);
+            docId += gap;
+            visitor.visit(docId, frequency);
+        }
+    }
+
+    /**
+     * @param removed - documents to take out of the list
+     * @param added - document id -> frequency of postings to add, replacing the document's posting if it has one
+     * @return the updated list - only the blocks the changes fall in are re-encoded
+     */
+    PostingList update(Set<Integer> removed, SortedMap<Integer, Integer> added) {
+        if (blocks.length == 0) {
+            Builder builder = new Builder();
+            added.forEach(builder::add);
+            return builder.build();
+        }
+
+        //which block each change falls in
+        boolean[] affected = new boolean[blocks.length];
+        for (int docId : removed) {
+            affected[blockOf(docId)] = true;
+        }
+        for (int docId : added.keySet()) {
+            affected[blockOf(docId)] = true;
+        }
+
+        //unchanged blocks are shared with this list, changed ones may split so there can be a few more blocks
+        int capacity = blocks.length + 4;
+        int[] newFirstDocIds = new int[capacity];
+        int[] newCounts = new int[capacity];
+        byte[][] newBlocks = new byte[capacity][];
+        int blockCount = 0;
+        int newSize = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            if (!affected[b]) {
+                if (blockCount == capacity) {
+                    capacity *= 2;
+                    newFirstDocIds = Arrays.copyOf(newFirstDocIds, capacity);
+                    newCounts = Arrays.copyOf(newCounts, capacity);
+                    newBlocks = Arrays.copyOf(newBlocks, capacity);
+                }
+                newFirstDocIds[blockCount] = firstDocIds[b];
+                newCounts[blockCount] = counts[b];
+                newBlocks[blockCount++] = blocks[b];
+                newSize += counts[b];
+                continue;
+            }
+
+            //decode the block, apply the changes that fall in it, then encode it again - split if it got too big
+            int low = b == 0 ? Integer.MIN_VALUE : firstDocIds[b];
+            int high = b == blocks.length - 1 ? Integer.MAX_VALUE : firstDocIds[b + 1];
+            int[] ids = new int[counts[b]];
+            int[] frequencies = new int[counts[b]];
+            int[] kept = {0};
+            decode(b, (docId, frequency) -> {
+                if (!removed.contains(docId)) {
+                    ids[kept[0]] = docId;
+                    frequencies[kept[0]++] = frequency;
+                }
+            });
+
+            Builder builder = new Builder();
+            int i = 0;
+            for (Map.Entry<Integer, Integer> posting : added.subMap(low, high).entrySet()) {
+                int docId = posting.getKey();
+                for (; i < kept[0] && ids[i] <= docId; i++) {
+                    if (ids[i] != docId) {
+                        builder.add(ids[i], frequencies[i]);
+                    }
+                }
+                builder.add(docId, posting.getValue());
+            }
+            for (; i < kept[0]; i++) {
+                builder.add(ids[i], frequencies[i]);
+            }
+            PostingList part = builder.build();
+            for (int p = 0; p < part.blocks.length; p++) {
+                if (blockCount == capacity) {
+                    capacity *= 2;
+                    newFirstDocIds = Arrays.copyOf(newFirstDocIds, capacity);
+                    newCounts = Arrays.copyOf(newCounts, capacity);
+                    newBlocks = Arrays.copyOf(newBlocks, capacity);
+                }
+                newFirstDocIds[blockCount] = part.firstDocIds[p];
+                newCounts[blockCount] = part.counts[p];
+                newBlocks[blockCount++] = part.blocks[p];
+            }
+            newSize += part.size;
+        }
+
+        if (newSize == 0) {
+            return EMPTY;
+        }
+        return new PostingList(Arrays.copyOf(newFirstDocIds, blockCount), Arrays.copyOf(newCounts, blockCount),
+                Arrays.copyOf(newBlocks, blockCount), newSize);
+    }
+
+    //the last block starting at or before the document, or the first block
+    private int blockOf(int docId) {
+        int b = Arrays.binarySearch(firstDocIds, docId);
+        if (b >= 0) {
+            return b;
+        }
+        return Math.max(0, -b - 2);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(blocks.length);
+        for (int b = 0; b < blocks.length; b++) {
+            out.writeInt(firstDocIds[b]);
+            out.writeInt(counts[b]);
+            out.writeInt(blocks[b].length);
+            out.write(blocks[b]);
+        }
+    }
+
+    static PostingList readFrom(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        int blockCount = in.readInt();
+        int[] firstDocIds = new int[blockCount];
+        int[] counts = new int[blockCount];
+        byte[][] blocks = new byte[blockCount][];
+        for (int b = 0; b < blockCount; b++) {
+            firstDocIds[b] = in.readInt();
+            counts[b] = in.readInt();
+            blocks[b] = new byte[in.readInt()];
+            in.readFully(blocks[b]);
+        }
+        return new PostingList(firstDocIds, counts, blocks, size);
+    }
+
+    /**
+     * Builds a list from postings added in increasing document id order
+     */
+    static final class Builder {
+
+        private final List<byte[]> blocks = new ArrayList<>();
+        private final List<Integer> firstDocIds = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private byte[] buffer = new byte[64];
+        private int position = 0;
+        private int count = 0;
+        private int size = 0;
+        private int lastDocId = -1;
+
+        Builder add(int docId, int frequency) {
+            if (docId <= lastDocId) {
+                throw new IllegalArgumentException("Postings must be added in increasing document id order");
+            }
+            if (count == BLOCK_SIZE) {
+                finishBlock();
+            }
+            if (count == 0) {
+                firstDocIds.add(docId);
+                lastDocId = docId;
+            }
+            writeVarInt(docId - lastDocId);
+            writeVarInt(frequency);
+            lastDocId = docId;
+            count++;
+            size++;
+            return this;
+        }
+
+        PostingList build() {
+            if (count > 0) {
+                finishBlock();
+            }
+            if (size == 0) {
+                return EMPTY;
+            }
+            int[] first = firstDocIds.stream().mapToInt(Integer::intValue).toArray();
+            int[] blockCounts = counts.stream().mapToInt(Integer::intValue).toArray();
+            return new PostingList(first, blockCounts, blocks.toArray(new byte[0][]), size);
+        }
+
+        private void finishBlock() {
+            blocks.add(Arrays.copyOf(buffer, position));
+            counts.add(count);
+            position = 0;
+            count = 0;
+        }
+
+        //7 bits per byte, high bit set on every byte but the last
+        private void writeVarInt(int value) {
+            if (position + 5 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+    }
+}
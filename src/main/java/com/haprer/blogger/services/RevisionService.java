@@ -0,0 +1,128 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.Revision;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * The history of each post - BlogService records a Revision every time it writes a post, and the revisions are
+ * removed with the post. Long content is chunked by the ContentChunkStore before it is recorded, so a revision
+ * holds the hashes of its chunks and not another copy of the content.
+ *
+ * History starts with the first write of a post after revisions were added, and is only kept while chunking is on
+ * (blogger.chunks.enabled) - without it every revision would be a whole copy of the content. Only the newest
+ * max-revisions of each post are kept, the older ones are removed as new ones are recorded, and their chunks by the
+ * next sweep.
+ */
+@Slf4j
+@Service
+public class RevisionService {
+
+    private final MongoTemplate mongoTemplate;
+    private final ContentChunkStore chunkStore;
+    private final int maxRevisions;
+
+    public RevisionService(MongoTemplate mongoTemplate, ContentChunkStore chunkStore,
+                           @Value("${blogger.chunks.max-revisions:50}") int maxRevisions) {
+        this.mongoTemplate = mongoTemplate;
+        this.chunkStore = chunkStore;
+        this.maxRevisions = maxRevisions;
+    }
+
+    /**
+     * Record the posts as they were just saved. A post saved before chunking kept its content whole, it is chunked
+     * for the revision. Failing to record only loses history, the posts are saved already - it is logged.
+     */
+    public void record(Collection<? extends BlogPost> posts) {
+        if (!chunkStore.isEnabled()) {
+            return;
+        }
+        List<Criteria> expired = new ArrayList<>();
+        try {
+            List<Document> documents = new ArrayList<>(posts.size());
+            for (BlogPost post : posts) {
+                if (post.getId() == null || post.getVersion() == null) {
+                    continue;
+                }
+                post.setStoredContent(chunkStore.store(post.getStoredContent()));
+                Document document = new Document();
+                mongoTemplate.getConverter().write(Revision.of(post), document);
+                documents.add(document);
+                //versions go up by one a write
+                if (post.getVersion() >= maxRevisions) {
+                    expired.add(where("postId").is(post.getId()).and("version").lte(post.getVersion() - maxRevisions));
+                }
+            }
+            if (documents.isEmpty()) {
+                return;
+            }
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(Revision.class))
+                    .insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            //the same version recorded twice, e.g. by a retried write
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    log.warn("Could not record a revision: {}", error.getMessage());
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not record revisions of {} posts", posts.size(), e);
+        }
+        removeExpired(expired);
+    }
+
+    //the oldest revisions of the posts just recorded, past max-revisions
+    private void removeExpired(List<Criteria> expired) {
+        if (expired.isEmpty()) {
+            return;
+        }
+        try {
+            mongoTemplate.remove(new Query(new Criteria().orOperator(expired)), Revision.class);
+        } catch (RuntimeException e) {
+            log.warn("Could not remove the oldest revisions of {} posts", expired.size(), e);
+        }
+    }
+
+    /**
+     * @return the revisions of the post without their content, newest first
+     */
+    public List<Revision> findAll(String postId) {
+        Query query = new Query(where("postId").is(postId)).with(Sort.by(Sort.Direction.DESC, "version"));
+        query.fields().exclude("content");
+        return mongoTemplate.find(query, Revision.class);
+    }
+
+    /**
+     * @return the post as it was at the version, with its content
+     */
+    public Optional<Revision> find(String postId, long version) {
+        return Optional.ofNullable(mongoTemplate.findOne(
+                new Query(where("postId").is(postId).and("version").is(version)), Revision.class));
+    }
+
+    public void deleteAll(Collection<String> postIds) {
+        mongoTemplate.remove(new Query(where("postId").in(postIds)), Revision.class);
+    }
+
+    public void deleteAll() {
+        mongoTemplate.remove(new Query(), Revision.class);
+    }
+}
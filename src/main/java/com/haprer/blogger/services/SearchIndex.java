@@ -0,0 +1,453 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.SearchResult;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In memory inverted index of the posts for /search, ranked with BM25.
+ *
+ * Every post is one document made of its title, tags and content. A term in the title counts as
+ * TITLE_WEIGHT occurrences and one in a tag as TAG_WEIGHT, so a match in the title ranks above
+ * the same match deep in the content. Each term maps to a compressed PostingList of the documents it
+ * appears in, and each document keeps its id, title, author and length, so a query is answered
+ * without going to mongo.
+ *
+ * Searches share a read lock and writes take the write lock. Like the PopularTagIndex, writes are
+ * ignored until the index has been loaded - SearchService loads it at startup and then catches up.
+ */
+@Component
+public class SearchIndex {
+
+    static final int TITLE_WEIGHT = 3;
+    static final int TAG_WEIGHT = 2;
+    static final int CONTENT_WEIGHT = 1;
+
+    //the usual BM25 parameters - how fast term frequency saturates, and how much long posts are penalized
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong changes = new AtomicLong();
+    private Contents contents = new Contents();
+    private volatile boolean loaded = false;
+
+    /**
+     * @return false until load() or readSnapshot() has been called
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return the number of posts in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return contents.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a number that goes up on every change, to tell if the index changed since a snapshot
+     */
+    public long changes() {
+        return changes.get();
+    }
+
+    /**
+     * Replace everything with the given posts. The index is built on the side and swapped in,
+     * so searches and writes are not held up while the posts are read.
+     */
+    public void load(Stream<? extends BlogPost> posts) {
+        Contents built = new Contents();
+        Map<String, PostingList.Builder> builders = new HashMap<>();
+        posts.forEach(post -> {
+            if (built.docIds.containsKey(post.getId())) {
+                return;
+            }
+            int docId = built.docs.size();
+            Map<String, Integer> frequencies = built.add(post, docId);
+            frequencies.forEach((term, frequency) ->
+                    builders.computeIfAbsent(term, t -> new PostingList.Builder()).add(docId, frequency));
+        });
+        builders.forEach((term, builder) -> built.postings.put(term, builder.build()));
+        swap(built);
+    }
+
+    /**
+     * Add or replace posts. Ignored until the index is loaded.
+     */
+    public void index(Collection<? extends BlogPost> posts) {
+        if (!loaded || posts.isEmpty()) {
+            return;
+        }
+        update(posts, List.of());
+    }
+
+    /**
+     * Remove posts by id. Ignored until the index is loaded.
+     */
+    public void remove(Collection<String> ids) {
+        if (!loaded || ids.isEmpty()) {
+            return;
+        }
+        update(List.of(), ids);
+    }
+
+    /**
+     * Remove every post whose id is not in the set
+     */
+    public void retainAll(Set<String> ids) {
+        List<String> missing = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String id : contents.docIds.keySet()) {
+                if (!ids.contains(id)) {
+                    missing.add(id);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        remove(missing);
+    }
+
+    /**
+     * All posts were deleted
+     */
+    public void clear() {
+        if (loaded) {
+            swap(new Contents());
+        }
+    }
+
+    /**
+     * @param query - words to look for, a post matches if it has any of them
+     * @param limit - the most results to return
+     * @return the best matching posts, best match first
+     */
+    public List<SearchResult> search(String query, int limit) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(SearchTokenizer.tokenize(query)));
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            Contents c = contents;
+            if (c.count == 0) {
+                return List.of();
+            }
+            double averageLength = (double) c.totalLength / c.count;
+            int[] lengths = c.lengths;
+            List<PostingList> matched = new ArrayList<>(terms.size());
+            long postingCount = 0;
+            for (String term : terms) {
+                PostingList postings = c.postings.get(term);
+                if (postings != null) {
+                    matched.add(postings);
+                    postingCount += postings.size();
+                }
+            }
+            //only the documents in the postings are scored, a rare term costs what it matches and not the index size
+            Scores scores = new Scores((int) Math.min(postingCount, c.count));
+
+            for (PostingList postings : matched) {
+                double idf = Math.log(1 + (c.count - postings.size() + 0.5) / (postings.size() + 0.5));
+                postings.forEach((docId, frequency) -> {
+                    double norm = K1 * (1 - B + B * lengths[docId] / averageLength);
+                    scores.add(docId, idf * frequency * (K1 + 1) / (frequency + norm));
+                });
+            }
+
+            //keep the best `limit` in a min heap - once it is full only better scores than its smallest go in
+            double[] score = scores.scores;
+            PriorityQueue<Integer> best = new PriorityQueue<>(Math.min(limit, 1024) + 1, (a, b) -> Double.compare(score[a], score[b]));
+            for (int slot = 0; slot < score.length; slot++) {
+                if (scores.docIds[slot] != Scores.FREE && score[slot] > 0
+                        && (best.size() < limit || score[slot] > score[best.peek()])) {
+                    best.add(slot);
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+            SearchResult[] results = new SearchResult[best.size()];
+            for (int i = results.length - 1; i >= 0; i--) {
+                int slot = best.poll();
+                IndexedPost post = c.docs.get(scores.docIds[slot]);
+                results[i] = new SearchResult(post.id, post.title, post.author, score[slot]);
+            }
+            return Arrays.asList(results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the whole index. Searches go on while this runs but writes wait for it.
+     */
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            Contents c = contents;
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeInt(c.docs.size());
+            for (IndexedPost post : c.docs) {
+                out.writeBoolean(post != null);
+                if (post != null) {
+                    out.writeUTF(post.id);
+                    out.writeUTF(post.title);
+                    out.writeUTF(post.author);
+                    out.writeInt(post.length);
+                }
+            }
+            out.writeInt(c.postings.size());
+            for (Map.Entry<String, PostingList> term : c.postings.entrySet()) {
+                out.writeUTF(term.getKey());
+                term.getValue().writeTo(out);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace everything with an index written by writeSnapshot()
+     * @throws IOException if the snapshot can't be read or was written by another format
+     */
+    public void readSnapshot(DataInputStream in) throws IOException {
+        int format = in.readInt();
+        if (format != SNAPSHOT_FORMAT) {
+            throw new IOException("Unknown search index snapshot format " + format);
+        }
+        Contents read = new Contents();
+        int docs = in.readInt();
+        for (int docId = 0; docId < docs; docId++) {
+            IndexedPost post = null;
+            if (in.readBoolean()) {
+                post = new IndexedPost(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt());
+                read.docIds.put(post.id, docId);
+                read.setLength(docId, post.length);
+                read.totalLength += post.length;
+                read.count++;
+            }
+            read.docs.add(post);
+        }
+
+        //the terms of each post are needed to remove it later - they are found from the postings instead of being stored twice
+        Map<Integer, List<String>> terms = new HashMap<>();
+        int termCount = in.readInt();
+        for (int i = 0; i < termCount; i++) {
+            String term = in.readUTF();
+            PostingList postings = PostingList.readFrom(in);
+            read.postings.put(term, postings);
+            postings.forEach((docId, frequency) -> terms.computeIfAbsent(docId, id -> new ArrayList<>()).add(term));
+        }
+        terms.forEach((docId, list) -> read.docs.get(docId).terms = list.toArray(new String[0]));
+        swap(read);
+    }
+
+    private void swap(Contents replacement) {
+        lock.writeLock().lock();
+        try {
+            contents = replacement;
+            loaded = true;
+            changes.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove and (re)add posts, rewriting each affected posting list once
+     */
+    private void update(Collection<? extends BlogPost> posts, Collection<String> removedIds) {
+        //the same post twice in one call - the last one wins
+        Map<String, BlogPost> indexed = new LinkedHashMap<>();
+        posts.forEach(post -> indexed.put(post.getId(), post));
+
+        lock.writeLock().lock();
+        try {
+            Contents c = contents;
+            Map<String, Set<Integer>> removed = new HashMap<>();
+            Map<String, SortedMap<Integer, Integer>> added = new HashMap<>();
+
+            List<String> dropped = new ArrayList<>(removedIds);
+            dropped.addAll(indexed.keySet());
+            for (String id : dropped) {
+                Integer docId = c.docIds.get(id);
+                if (docId == null || c.docs.get(docId) == null) {
+                    continue;
+                }
+                IndexedPost old = c.docs.get(docId);
+                for (String term : old.terms) {
+                    removed.computeIfAbsent(term, t -> new HashSet<>()).add(docId);
+                }
+                c.totalLength -= old.length;
+                c.count--;
+                c.docs.set(docId, null);
+                if (!indexed.containsKey(id)) {
+                    c.docIds.remove(id);
+                }
+            }
+
+            for (BlogPost post : indexed.values()) {
+                Integer existing = c.docIds.get(post.getId());
+                int docId = existing != null ? existing : c.docs.size();
+                if (existing == null) {
+                    c.docs.add(null);
+                }
+                c.add(post, docId).forEach((term, frequency) ->
+                        added.computeIfAbsent(term, t -> new TreeMap<>()).put(docId, frequency));
+            }
+
+            Set<String> terms = new HashSet<>(removed.keySet());
+            terms.addAll(added.keySet());
+            for (String term : terms) {
+                PostingList updated = c.postings.getOrDefault(term, PostingList.EMPTY)
+                        .update(removed.getOrDefault(term, Set.of()), added.getOrDefault(term, new TreeMap<>()));
+                if (updated.size() == 0) {
+                    c.postings.remove(term);
+                } else {
+                    c.postings.put(term, updated);
+                }
+            }
+            changes.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return term -> weighted number of times it appears in the post
+     */
+    static Map<String, Integer> frequencies(BlogPost post) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        SearchTokenizer.tokenize(post.getTitle()).forEach(term -> frequencies.merge(term, TITLE_WEIGHT, Integer::sum));
+        if (post.getTags() != null) {
+            post.getTags().forEach(tag ->
+                    SearchTokenizer.tokenize(tag).forEach(term -> frequencies.merge(term, TAG_WEIGHT, Integer::sum)));
+        }
+        SearchTokenizer.tokenize(post.getContent()).forEach(term -> frequencies.merge(term, CONTENT_WEIGHT, Integer::sum));
+        return frequencies;
+    }
+
+    /**
+     * Document id -> score of the documents a query matched, an open addressing table sized for the postings
+     * it reads so nothing is allocated per document in the index
+     */
+    private static final class Scores {
+        static final int FREE = -1;
+
+        final int[] docIds;
+        final double[] scores;
+        private final int mask;
+
+        Scores(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected, 2) - 1) << 2;     //at most half full
+            docIds = new int[capacity];
+            Arrays.fill(docIds, FREE);
+            scores = new double[capacity];
+            mask = capacity - 1;
+        }
+
+        void add(int docId, double score) {
+            int h = docId * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (docIds[slot] != docId && docIds[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            docIds[slot] = docId;
+            scores[slot] += score;
+        }
+    }
+
+    /**
+     * What the index keeps of a post
+     */
+    private static final class IndexedPost {
+        final String id;
+        final String title;
+        final String author;
+        final int length;       //sum of the weighted term frequencies
+        String[] terms = new String[0];
+
+        IndexedPost(String id, String title, String author, int length) {
+            this.id = id;
+            this.title = title;
+            this.author = author;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Everything in the index, swapped out as a whole by load() and readSnapshot()
+     */
+    private static final class Contents {
+        final Map<String, Integer> docIds = new HashMap<>();        //post id -> document id
+        final List<IndexedPost> docs = new ArrayList<>();           //by document id, null once removed
+        final Map<String, PostingList> postings = new HashMap<>();
+        int[] lengths = new int[16];                                //by document id, copied from docs for fast scoring
+        long totalLength = 0;
+        int count = 0;
+
+        /**
+         * Record a post under the document id - the postings are up to the caller
+         * @return the post's weighted term frequencies
+         */
+        Map<String, Integer> add(BlogPost post, int docId) {
+            Map<String, Integer> frequencies = frequencies(post);
+            int length = frequencies.values().stream().mapToInt(Integer::intValue).sum();
+            IndexedPost indexed = new IndexedPost(post.getId(), nullToEmpty(post.getTitle()), nullToEmpty(post.getAuthor()), length);
+            indexed.terms = frequencies.keySet().toArray(new String[0]);
+            if (docId == docs.size()) {
+                docs.add(indexed);
+            } else {
+                docs.set(docId, indexed);
+            }
+            setLength(docId, length);
+            docIds.put(post.getId(), docId);
+            totalLength += length;
+            count++;
+            return frequencies;
+        }
+
+        void setLength(int docId, int length) {
+            if (docId >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(docId + 1, lengths.length * 2));
+            }
+            lengths[docId] = length;
+        }
+
+        private static String nullToEmpty(String s) {
+            return s == null ? "" : s;
+        }
+    }
+}
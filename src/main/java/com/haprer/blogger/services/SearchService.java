@@ -0,0 +1,202 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostChange;
+import com.haprer.blogger.data.SearchResult;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Loads the SearchIndex at startup and keeps a snapshot of it on disk.
+ *
+ * On startup the snapshot is read if there is one, then caught up with mongo: posts saved since the snapshot
+ * are indexed again and posts that no longer exist are dropped. Without a usable snapshot the index is built
+ * by reading every post. BlogService passes on every write after that, and the PostChangeStream the writes of
+ * other nodes.
+ */
+@Slf4j
+@Service
+public class SearchService implements PostChangeListener {
+
+    //writes that were in progress when a snapshot was taken may have saved a little before it
+    private static final Duration CATCH_UP_MARGIN = Duration.ofMinutes(1);
+
+    private final MongoTemplate mongoTemplate;
+    private final SearchIndex searchIndex;
+    private final ContentChunkStore chunkStore;
+    private final String snapshotPath;
+    private final int batchSize;
+    private volatile long snapshotChanges = -1;
+
+    public SearchService(MongoTemplate mongoTemplate, SearchIndex searchIndex, ContentChunkStore chunkStore,
+                         @Value("${blogger.search.snapshot-path:}") String snapshotPath,
+                         @Value("${blogger.search.batch-size:500}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.searchIndex = searchIndex;
+        this.chunkStore = chunkStore;
+        this.snapshotPath = snapshotPath;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the best matching posts, best match first
+     * @throws IllegalStateException if the index has not been loaded yet
+     */
+    public List<SearchResult> search(String query, int limit) {
+        if (!searchIndex.isLoaded()) {
+            throw new IllegalStateException("The search index is not loaded yet");
+        }
+        return searchIndex.search(query, limit);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        try {
+            Instant snapshotTime = readSnapshot();
+            if (snapshotTime == null) {
+                rebuild();
+                return;
+            }
+            catchUp(snapshotTime.minus(CATCH_UP_MARGIN));
+            long posts = mongoTemplate.count(new Query(), BlogPost.class);
+            if (searchIndex.size() != posts) {
+                log.info("Search index snapshot has {} posts but there are {} - rebuilding", searchIndex.size(), posts);
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not load the search index", e);
+        }
+    }
+
+    /**
+     * Index every post from scratch. Writes made while the posts are read are picked up afterwards.
+     */
+    public void rebuild() {
+        Instant start = Instant.now();
+        try (Stream<BlogPost> posts = chunkStore.assembling(
+                mongoTemplate.stream(indexedFields(new Query()), BlogPost.class), batchSize)) {
+            searchIndex.load(posts);
+        }
+        catchUp(start.minus(CATCH_UP_MARGIN));
+        log.info("Built the search index: {} posts in {} ms", searchIndex.size(), Duration.between(start, Instant.now()).toMillis());
+    }
+
+    @Override
+    public void postsChanged(List<PostChange> changes) {
+        List<BlogPost> written = changes.stream().filter(change -> !change.isDeleted()).map(PostChange::getPost).toList();
+        chunkStore.assembleAll(written);
+        searchIndex.index(written);
+        searchIndex.remove(changes.stream().filter(PostChange::isDeleted).map(PostChange::getId).toList());
+    }
+
+    @Override
+    public void reset() {
+        rebuild();
+    }
+
+    /**
+     * Write the index to the snapshot file if it changed since the last snapshot
+     */
+    @Scheduled(fixedDelayString = "${blogger.search.snapshot-interval:PT10M}",
+            initialDelayString = "${blogger.search.snapshot-interval:PT10M}")
+    @PreDestroy
+    public void writeSnapshot() {
+        if (snapshotPath.isEmpty() || !searchIndex.isLoaded() || searchIndex.changes() == snapshotChanges) {
+            return;
+        }
+        long changes = searchIndex.changes();
+        Instant snapshotTime = Instant.now();
+        Path target = Path.of(snapshotPath).toAbsolutePath();
+        Path scratch = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(scratch)))) {
+                out.writeUTF(mongoTemplate.getDb().getName());
+                out.writeLong(snapshotTime.toEpochMilli());
+                searchIndex.writeSnapshot(out);
+            }
+            Files.move(scratch, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotChanges = changes;
+            log.debug("Wrote search index snapshot to {}", target);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write the search index snapshot to {}", target, e);
+        }
+    }
+
+    /**
+     * @return when the snapshot was taken, null if there is no snapshot or it can't be used
+     */
+    private Instant readSnapshot() {
+        if (snapshotPath.isEmpty() || !Files.exists(Path.of(snapshotPath))) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(snapshotPath))))) {
+            String database = in.readUTF();
+            if (!database.equals(mongoTemplate.getDb().getName())) {
+                log.info("Search index snapshot is of database {} - rebuilding", database);
+                return null;
+            }
+            Instant snapshotTime = Instant.ofEpochMilli(in.readLong());
+            searchIndex.readSnapshot(in);
+            snapshotChanges = searchIndex.changes();
+            log.info("Read the search index snapshot from {}: {} posts", snapshotTime, searchIndex.size());
+            return snapshotTime;
+        } catch (IOException e) {
+            log.warn("Could not read the search index snapshot {} - rebuilding", snapshotPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Index the posts saved since the given time again and drop the posts that were deleted
+     */
+    private void catchUp(Instant since) {
+        //posts saved before updated was added only have their creation time
+        Query changed = new Query(new Criteria().orOperator(
+                where("updated").gte(since),
+                where("updated").exists(false).and("timestamp").gte(since)));
+        try (Stream<BlogPost> posts = chunkStore.assembling(
+                mongoTemplate.stream(indexedFields(changed), BlogPost.class), batchSize)) {
+            searchIndex.index(posts.toList());
+        }
+
+        Query ids = new Query().cursorBatchSize(10_000);
+        ids.fields().include("_id");
+        Set<String> existing = new HashSet<>();
+        try (Stream<Document> documents = mongoTemplate.stream(ids, Document.class, mongoTemplate.getCollectionName(BlogPost.class))) {
+            documents.forEach(document -> existing.add(document.get("_id").toString()));
+        }
+        searchIndex.retainAll(existing);
+    }
+
+    private Query indexedFields(Query query) {
+        query.fields().include("title", "author", "tags", "content");
+        return query.cursorBatchSize(batchSize);
+    }
+}
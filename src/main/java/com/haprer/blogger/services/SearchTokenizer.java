@@ -0,0 +1,96 @@
+package com.haprer.blogger.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns text into the terms the SearchIndex is keyed on:
+ * split on anything that isn't a letter or digit, lower case, drop stop words, then stem.
+ * The same pipeline runs over the posts and the queries, so "Running" in a query finds "runs" in a post.
+ */
+public final class SearchTokenizer {
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it",
+            "no", "not", "of", "on", "or", "such", "that", "the", "their", "then", "there", "these",
+            "they", "this", "to", "was", "will", "with");
+
+    private SearchTokenizer() {}
+
+    /**
+     * @param text - any text, may be null
+     * @return the terms in the order they appear, with repeats
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return terms;
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int c = text.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                word.appendCodePoint(Character.toLowerCase(c));
+            } else if (!word.isEmpty()) {
+                addTerm(terms, word);
+            }
+        }
+        if (!word.isEmpty()) {
+            addTerm(terms, word);
+        }
+        return terms;
+    }
+
+    private static void addTerm(List<String> terms, StringBuilder word) {
+        String term = word.toString();
+        word.setLength(0);
+        if (!STOP_WORDS.contains(term)) {
+            terms.add(stem(term));
+        }
+    }
+
+    /**
+     * Light English stemmer - strips plurals and the common -ing/-ed/-ly endings.
+     * Much less thorough than Porter, but the result only has to be the same for a post and a query,
+     * not a real word.
+     */
+    static String stem(String word) {
+        int length = word.length();
+        if (length <= 3) {
+            return word;
+        }
+        if (word.endsWith("ies") && length > 4) {
+            word = word.substring(0, length - 3) + "y";
+        } else if (word.endsWith("sses") || word.endsWith("xes") || word.endsWith("ches") || word.endsWith("shes")) {
+            word = word.substring(0, length - 2);
+        } else if (word.endsWith("s") && !word.endsWith("ss") && !word.endsWith("us") && !word.endsWith("is")) {
+            word = word.substring(0, length - 1);
+        }
+
+        length = word.length();
+        if (word.endsWith("ing") && length > 5) {
+            return undouble(word.substring(0, length - 3));
+        }
+        if (word.endsWith("ed") && length > 4) {
+            return undouble(word.substring(0, length - 2));
+        }
+        if (word.endsWith("ly") && length > 4) {
+            return word.substring(0, length - 2);
+        }
+        return word;
+    }
+
+    //"running" -> "runn" -> "run", but "falling" -> "fall" stays since ll is a normal ending
+    private static String undouble(String stem) {
+        int length = stem.length();
+        if (length >= 3 && stem.charAt(length - 1) == stem.charAt(length - 2)) {
+            char c = stem.charAt(length - 1);
+            if (c != 'l' && c != 's' && c != 'z' && Character.isLetter(c) && "aeiou".indexOf(c) < 0) {
+                return stem.substring(0, length - 1);
+            }
+        }
+        return stem;
+    }
+}
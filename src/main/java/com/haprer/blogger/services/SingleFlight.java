@@ -0,0 +1,159 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.configurations.SingleFlightProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Collapses identical reads that run at the same time into one - when a post trends, the hundreds of requests
+ * that miss the cache at once wait for the first one's query instead of each sending mongo the same one.
+ *
+ * The first request for a key runs the read and completes a CompletableFuture with it, the rest of the requests
+ * for that key while it runs wait on the future and get the same result, or the same exception.
+ * Once it is done the next request runs the read again - nothing is cached here.
+ *
+ * A flight that takes longer than its group's timeout (see SingleFlightProperties) is given up on: the requests
+ * waiting on it get a QueryTimeoutException, and the next request starts a new one. The read itself can't be
+ * stopped - the blocking request running it still waits for it.
+ *
+ * Callers put a version of what they read in the key (see ContentVersions), so a request made after a write
+ * never gets the result of a read that started before it. Requests only join reads of the same group and key,
+ * so each group must always read the same type - e.g. BlogService's "find" reads an Optional, the reactive
+ * controller's "reactive-find" a post.
+ *
+ * blogger.single-flight.requests counts the reads run and the requests collapsed into them, by group.
+ */
+@Component
+public class SingleFlight {
+
+    private record FlightKey(String group, Object key) {}
+
+    private final SingleFlightProperties properties;
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<FlightKey, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    public SingleFlight(SingleFlightProperties properties, MeterRegistry registry) {
+        this.properties = properties;
+        this.registry = registry;
+        Gauge.builder("blogger.single-flight.in-flight", inFlight, ConcurrentHashMap::size)
+                .description("Reads that other requests can join")
+                .register(registry);
+    }
+
+    /**
+     * Run a blocking read, or wait for the identical one in flight. The read runs on the calling thread.
+     * @param group - what kind of read this is, for the timeout and metrics
+     * @param key - what is read, with the version of the data it is read from
+     * @throws QueryTimeoutException if the read in flight took longer than the group's timeout
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String group, Object key, Supplier<T> read) {
+        if (!properties.isEnabled()) {
+            return read.get();
+        }
+        FlightKey flightKey = new FlightKey(group, key);
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            return (T) await(group, existing);
+        }
+
+        depart(flightKey, flight);
+        try {
+            T value = read.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Start an asynchronous read, or join the identical one in flight
+     * @param read - starts the read
+     * @return the result, which completes with a QueryTimeoutException if the read took longer than the group's timeout.
+     *         Each caller gets its own copy, cancelling it doesn't cancel the read.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(String group, Object key, Supplier<CompletableFuture<T>> read) {
+        if (!properties.isEnabled()) {
+            return read.get();
+        }
+        FlightKey flightKey = new FlightKey(group, key);
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            count(group, "collapsed");
+            return (CompletableFuture<T>) follow(group, existing);
+        }
+
+        depart(flightKey, flight);
+        try {
+            read.get().whenComplete((value, e) -> {
+                if (e != null) {
+                    flight.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                } else {
+                    flight.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) follow(group, flight);
+    }
+
+    private void depart(FlightKey flightKey, CompletableFuture<Object> flight) {
+        count(flightKey.group(), "executed");
+        Duration timeout = properties.timeoutFor(flightKey.group());
+        flight.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((value, e) -> inFlight.remove(flightKey, flight));
+    }
+
+    private Object await(String group, CompletableFuture<Object> flight) {
+        count(group, "collapsed");
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw timedOut(group);
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Object> follow(String group, CompletableFuture<Object> flight) {
+        CompletableFuture<Object> copy = new CompletableFuture<>();
+        flight.whenComplete((value, e) -> {
+            if (e == null) {
+                copy.complete(value);
+            } else {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                copy.completeExceptionally(cause instanceof TimeoutException ? timedOut(group) : cause);
+            }
+        });
+        return copy;
+    }
+
+    private QueryTimeoutException timedOut(String group) {
+        count(group, "timed-out");
+        return new QueryTimeoutException("Timed out waiting for the same read by another request");
+    }
+
+    private void count(String group, String result) {
+        registry.counter("blogger.single-flight.requests", "group", group, "result", result).increment();
+    }
+}
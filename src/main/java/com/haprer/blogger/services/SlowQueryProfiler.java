@@ -0,0 +1,301 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.configurations.MongoCommandMetrics;
+import com.haprer.blogger.data.SlowQuery;
+import com.haprer.blogger.data.SlowQueryTotal;
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the mongo commands that took longer than blogger.slow-query.threshold in a ring buffer,
+ * so /admin/slow-queries can show what was slow when something goes wrong.
+ *
+ * Commands are recorded by their shape - the filter, sort and pipeline with every value replaced by "?" - so no
+ * post content ends up in the buffer and the same query with different values adds up in top().
+ * Slow commands are explained on a background thread, which fills in the winning plan and how many documents and
+ * keys mongo examined. The driver only gives the command's document while the started event is being handled, so
+ * the shape is taken then - but a copy to explain is only kept of commands whose shape a sample of the slow
+ * commands picked out, the next time that shape runs. Fast commands are never copied.
+ */
+@Slf4j
+@Service
+public class SlowQueryProfiler implements CommandListener {
+
+    //commands that have a query plan - others (insert, getMore, hello...) are recorded but never explained
+    private static final Set<String> EXPLAINABLE = Set.of("find", "aggregate", "count", "distinct", "delete", "update", "findAndModify");
+    private static final Set<String> IGNORED = Set.of("explain", "hello", "isMaster", "ping", "buildInfo", "endSessions");
+    //fields of a command that make up its shape
+    private static final List<String> SHAPE_FIELDS = List.of("filter", "query", "sort", "pipeline", "q", "key");
+    //the most shapes waiting for their next run to be explained
+    private static final int MAX_TO_EXPLAIN = 64;
+
+    private final ObjectProvider<MongoClient> mongoClient;
+    private final long thresholdNanos;
+    private final double explainSampleRate;
+    private final AtomicReferenceArray<SlowQuery> buffer;
+    private final AtomicLong recorded = new AtomicLong();
+    private final Map<Integer, Started> inProgress = new ConcurrentHashMap<>();
+    //collection, command and shape of slow commands - the next command with the same ones is copied to be explained
+    private final Set<List<String>> toExplain = ConcurrentHashMap.newKeySet();
+    //explains run one at a time, and are dropped rather than queued up if mongo is struggling
+    private final ThreadPoolExecutor explainer = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+            new ArrayBlockingQueue<>(16), runnable -> {
+                Thread thread = new Thread(runnable, "slow-query-explain");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    public SlowQueryProfiler(ObjectProvider<MongoClient> mongoClient,
+                             @Value("${blogger.slow-query.threshold:100ms}") Duration threshold,
+                             @Value("${blogger.slow-query.capacity:500}") int capacity,
+                             @Value("${blogger.slow-query.explain-sample-rate:0.1}") double explainSampleRate) {
+        this.mongoClient = mongoClient;
+        this.thresholdNanos = threshold.toNanos();
+        this.explainSampleRate = explainSampleRate;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * What is kept of a command until it finishes
+     * @param explain - a copy of the command to explain if it turns out slow, null if its shape was not picked out
+     */
+    private record Started(String database, String collection, String shape, BsonDocument explain) {}
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        if (IGNORED.contains(event.getCommandName())) {
+            return;
+        }
+        BsonDocument command = event.getCommand();
+        //getMore has the cursor id under its name, the collection is in a field of its own
+        BsonValue value = command.get(event.getCommandName().equals("getMore") ? "collection" : event.getCommandName());
+        String collection = value != null && value.isString() ? value.asString().getValue() : null;
+        String shape = shape(command);
+        BsonDocument explain = null;
+        if (!toExplain.isEmpty() && toExplain.remove(key(collection, event.getCommandName(), shape))) {
+            explain = explainable(command);
+        }
+        inProgress.put(event.getRequestId(), new Started(event.getDatabaseName(), collection, shape, explain));
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        Started started = inProgress.remove(event.getRequestId());
+        if (started != null && event.getElapsedTime(TimeUnit.NANOSECONDS) >= thresholdNanos) {
+            record(started, event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS),
+                    MongoCommandMetrics.documents(event.getResponse()), null);
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        Started started = inProgress.remove(event.getRequestId());
+        if (started != null && event.getElapsedTime(TimeUnit.NANOSECONDS) >= thresholdNanos) {
+            record(started, event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), 0,
+                    event.getThrowable().getMessage());
+        }
+    }
+
+    private void record(Started started, String command, long nanos, long documents, String error) {
+        SlowQuery slowQuery = new SlowQuery(Instant.now(), started.database(), started.collection(), command,
+                started.shape(), nanos / 1_000_000.0, documents, error);
+        buffer.set((int) (recorded.getAndIncrement() % buffer.length()), slowQuery);
+        log.debug("Slow mongo {} on {} took {} ms: {}", command, started.collection(), slowQuery.getMillis(), started.shape());
+        if (started.explain() != null) {
+            explainer.execute(() -> explain(slowQuery, started));
+        } else if (EXPLAINABLE.contains(command) && toExplain.size() < MAX_TO_EXPLAIN
+                && ThreadLocalRandom.current().nextDouble() < explainSampleRate) {
+            toExplain.add(key(started.collection(), command, started.shape()));
+        }
+    }
+
+    private static List<String> key(String collection, String command, String shape) {
+        return List.of(String.valueOf(collection), command, shape);
+    }
+
+    /**
+     * @param limit - the most to return
+     * @return the slow queries still in the buffer, most recent first
+     */
+    public List<SlowQuery> recent(int limit) {
+        long end = recorded.get();
+        List<SlowQuery> recent = new ArrayList<>();
+        for (long i = end - 1; i >= Math.max(0, end - buffer.length()) && recent.size() < limit; i--) {
+            SlowQuery slowQuery = buffer.get((int) (i % buffer.length()));
+            if (slowQuery != null) {
+                recent.add(slowQuery);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * @param limit - the most to return
+     * @return the slow queries in the buffer added up by shape, the most total time first
+     */
+    public List<SlowQueryTotal> top(int limit) {
+        Map<List<String>, SlowQueryTotal> totals = new HashMap<>();
+        //oldest first, so the plan of the most recent explained one wins
+        List<SlowQuery> all = recent(buffer.length()).reversed();
+        for (SlowQuery slowQuery : all) {
+            SlowQueryTotal total = totals.computeIfAbsent(
+                    key(slowQuery.getCollection(), slowQuery.getCommand(), slowQuery.getShape()),
+                    key -> new SlowQueryTotal(slowQuery.getCollection(), slowQuery.getCommand(), slowQuery.getShape(), 0, 0, 0, null));
+            total.setCount(total.getCount() + 1);
+            total.setTotalMillis(total.getTotalMillis() + slowQuery.getMillis());
+            total.setMaxMillis(Math.max(total.getMaxMillis(), slowQuery.getMillis()));
+            if (slowQuery.getPlan() != null) {
+                total.setPlan(slowQuery.getPlan());
+            }
+        }
+        return totals.values().stream()
+                .sorted(Comparator.comparingDouble(SlowQueryTotal::getTotalMillis).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    //explain with executionStats runs the query's plan again but never applies a write
+    private void explain(SlowQuery slowQuery, Started started) {
+        try {
+            Document explained = mongoClient.getObject().getDatabase(started.database()).runCommand(
+                    new BsonDocument("explain", started.explain()).append("verbosity", new BsonString("executionStats")));
+            Document queryPlanner = find(explained, "queryPlanner");
+            Document executionStats = find(explained, "executionStats");
+            if (queryPlanner != null) {
+                List<String> stages = new ArrayList<>();
+                planStages(queryPlanner.get("winningPlan"), stages);
+                slowQuery.setPlan(String.join(" > ", stages));
+            }
+            if (executionStats != null) {
+                slowQuery.setDocumentsExamined(((Number) executionStats.get("totalDocsExamined")).longValue());
+                slowQuery.setKeysExamined(((Number) executionStats.get("totalKeysExamined")).longValue());
+            }
+        } catch (RuntimeException e) {
+            log.debug("Could not explain slow {} on {}", slowQuery.getCommand(), slowQuery.getCollection(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        explainer.shutdownNow();
+    }
+
+    /**
+     * @return the command's filter, sort and pipeline with the values replaced by "?" - as JSON
+     */
+    static String shape(BsonDocument command) {
+        BsonDocument shape = new BsonDocument();
+        BsonDocument source = command;
+        //delete and update carry their filter in a list of statements - the first one stands for all of them
+        for (String statements : List.of("deletes", "updates")) {
+            BsonValue list = command.get(statements);
+            if (list != null && list.isArray() && !list.asArray().isEmpty() && list.asArray().get(0).isDocument()) {
+                source = list.asArray().get(0).asDocument();
+            }
+        }
+        for (String field : SHAPE_FIELDS) {
+            BsonValue value = source.get(field);
+            if (value != null) {
+                shape.append(field, field.equals("sort") ? value : redact(value));
+            }
+        }
+        return shape.toJson();
+    }
+
+    //operators - the keys - are kept, every value becomes "?", even one that looks like a field path ($tags) as it
+    //could as well be what someone searched for; an array of values becomes ["?"]
+    private static BsonValue redact(BsonValue value) {
+        if (value.isDocument()) {
+            BsonDocument redacted = new BsonDocument();
+            value.asDocument().forEach((key, inner) -> redacted.append(key, redact(inner)));
+            return redacted;
+        }
+        if (value.isArray()) {
+            BsonArray redacted = new BsonArray();
+            for (BsonValue inner : value.asArray()) {
+                BsonValue redactedInner = redact(inner);
+                if (!redacted.contains(redactedInner)) {
+                    redacted.add(redactedInner);
+                }
+            }
+            return redacted;
+        }
+        return new BsonString("?");
+    }
+
+    //a copy of the command without the driver's session and cluster fields, which explain doesn't accept
+    private static BsonDocument explainable(BsonDocument command) {
+        BsonDocument copy = command.clone();
+        List.copyOf(copy.keySet()).stream()
+                .filter(key -> key.startsWith("$") || key.equals("lsid") || key.equals("txnNumber"))
+                .forEach(copy::remove);
+        return copy;
+    }
+
+    //the first document under the key anywhere in the explain output - aggregate nests it inside its stages
+    private static Document find(Object node, String key) {
+        if (node instanceof Document document) {
+            if (document.get(key) instanceof Document found) {
+                return found;
+            }
+            for (Object value : document.values()) {
+                Document found = find(value, key);
+                if (found != null) {
+                    return found;
+                }
+            }
+        } else if (node instanceof List<?> list) {
+            for (Object value : list) {
+                Document found = find(value, key);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void planStages(Object plan, List<String> stages) {
+        if (!(plan instanceof Document document)) {
+            return;
+        }
+        if (document.get("stage") instanceof String stage) {
+            stages.add(document.get("indexName") instanceof String index ? stage + " " + index : stage);
+        }
+        //7.0+ wraps the plan in queryPlan
+        planStages(document.get("queryPlan"), stages);
+        planStages(document.get("inputStage"), stages);
+        if (document.get("inputStages") instanceof List<?> inputs) {
+            inputs.forEach(input -> planStages(input, stages));
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.FeedCursor;
+import org.bson.types.ObjectId;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In memory index of which posts have which tag, for filtering the feed by tag without going to mongo.
+ *
+ * Every post gets an ordinal, and ordinals are handed out in feed order - a higher ordinal is a more recent
+ * post - so each tag is a RoaringBitmap of ordinals. Matching several tags is an AND or OR of the bitmaps,
+ * and a page of the feed is the highest ordinals of the result below the cursor's position.
+ * A post saved again with a new timestamp gets a new ordinal. When a post is added with an older timestamp than
+ * the newest one (e.g. an import) the ordinals are handed out again in order.
+ *
+ * Searches share a read lock and writes take the write lock. Writes made while load() runs are kept
+ * and replayed on top of what was loaded. If load() fails the index is emptied and isLoaded() is false
+ * until a load works, so the feed goes back to filtering by tag in mongo.
+ */
+@Component
+public class TagBitmapIndex {
+
+    //renumber once there are this many more ordinals than posts, so removed ordinals don't pile up
+    private static final int MAX_UNUSED_ORDINALS = 4096;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Contents contents = new Contents();
+    private boolean loading = false;
+    private final List<Runnable> pending = new ArrayList<>();      //writes made during load(), guarded by lock
+    private volatile boolean loaded = false;
+
+    /**
+     * @return false until load() has finished
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Replace everything with the given posts, which only need their id, tags and timestamp
+     */
+    public void load(Stream<? extends BlogPost> posts) {
+        lock.writeLock().lock();
+        try {
+            loading = true;
+            pending.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Contents built = new Contents();
+        try {
+            posts.forEach(built::add);
+            built.renumberIfNeeded();
+        } catch (RuntimeException | Error e) {
+            //what is in memory may have missed writes by now - not used again until a load works
+            lock.writeLock().lock();
+            try {
+                contents = new Contents();
+                pending.clear();
+                loading = false;
+                loaded = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            contents = built;
+            pending.forEach(Runnable::run);
+            contents.renumberIfNeeded();
+            pending.clear();
+            loading = false;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace posts
+     */
+    public void index(Collection<? extends BlogPost> posts) {
+        write(() -> {
+            posts.forEach(contents::add);
+            contents.renumberIfNeeded();
+        });
+    }
+
+    /**
+     * Remove posts by id
+     */
+    public void remove(Collection<String> ids) {
+        write(() -> {
+            ids.forEach(contents::remove);
+            contents.renumberIfNeeded();
+        });
+    }
+
+    /**
+     * All posts were deleted
+     */
+    public void clear() {
+        write(() -> contents = new Contents());
+    }
+
+    private void write(Runnable change) {
+        lock.writeLock().lock();
+        try {
+            if (loading) {
+                pending.add(change);
+            } else if (loaded) {
+                change.run();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param tags - the tags to filter by
+     * @param matchAll - true for posts with every tag, false for posts with any of them
+     * @param after - only posts after this position in the feed, null for the start of the feed
+     * @param limit - the most ids to return
+     * @return the ids of the matching posts in feed order, most recent first
+     */
+    public List<ObjectId> find(Collection<String> tags, boolean matchAll, FeedCursor after, int limit) {
+        lock.readLock().lock();
+        try {
+            Contents c = contents;
+            RoaringBitmap matches = null;
+            for (String tag : new LinkedHashSet<>(tags)) {
+                RoaringBitmap tagged = c.byTag.get(tag);
+                if (tagged == null) {
+                    if (matchAll) {
+                        return List.of();
+                    }
+                    continue;
+                }
+                if (matches == null) {
+                    matches = tagged;
+                } else {
+                    matches = matchAll ? RoaringBitmap.and(matches, tagged) : RoaringBitmap.or(matches, tagged);
+                }
+            }
+            if (matches == null) {
+                return List.of();
+            }
+
+            //ordinals below the boundary come after the cursor in the feed
+            int boundary = after == null ? c.next : c.firstOrdinalAtOrAfter(after.getTimestamp(), after.getId());
+            long below = boundary == 0 ? 0 : matches.rankLong(boundary - 1);
+            List<ObjectId> ids = new ArrayList<>((int) Math.min(limit, below));
+            for (long rank = below - 1; rank >= 0 && ids.size() < limit; rank--) {
+                ids.add(c.ids[matches.select((int) rank)]);
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Everything in the index, swapped out as a whole by load() and clear()
+     */
+    private static final class Contents {
+        final Map<String, RoaringBitmap> byTag = new HashMap<>();
+        final Map<String, Integer> ordinals = new HashMap<>();      //post id -> ordinal
+        final RoaringBitmap live = new RoaringBitmap();
+        //by ordinal - the feed position and tags of each post, kept for removed ordinals until the next renumber
+        long[] timestamps = new long[64];
+        ObjectId[] ids = new ObjectId[64];
+        List<String>[] tags = newTagArray(64);
+        int next = 0;
+        boolean ordered = true;
+
+        void add(BlogPost post) {
+            if (!ObjectId.isValid(post.getId())) {
+                return;     //the feed and its cursors only work with generated ids
+            }
+            long timestamp = post.getTimestamp() == null ? 0 : post.getTimestamp().toEpochMilli();
+            ObjectId id = new ObjectId(post.getId());
+            List<String> postTags = post.getTags() == null ? List.of() : post.getTags().stream().filter(Objects::nonNull).distinct().toList();
+
+            Integer existing = ordinals.get(post.getId());
+            if (existing != null && timestamps[existing] == timestamp) {
+                //same place in the feed - only the tags may have changed
+                removeTags(existing);
+                setTags(existing, postTags);
+                return;
+            }
+            remove(post.getId());
+
+            if (next > 0 && compare(timestamp, id, timestamps[next - 1], ids[next - 1]) < 0) {
+                ordered = false;
+            }
+            if (next == ids.length) {
+                grow();
+            }
+            int ordinal = next++;
+            timestamps[ordinal] = timestamp;
+            ids[ordinal] = id;
+            ordinals.put(post.getId(), ordinal);
+            live.add(ordinal);
+            setTags(ordinal, postTags);
+        }
+
+        void remove(String id) {
+            Integer ordinal = ordinals.remove(id);
+            if (ordinal == null) {
+                return;
+            }
+            live.remove(ordinal);
+            removeTags(ordinal);
+        }
+
+        private void setTags(int ordinal, List<String> postTags) {
+            tags[ordinal] = postTags;
+            for (String tag : postTags) {
+                byTag.computeIfAbsent(tag, t -> new RoaringBitmap()).add(ordinal);
+            }
+        }
+
+        private void removeTags(int ordinal) {
+            for (String tag : tags[ordinal]) {
+                RoaringBitmap tagged = byTag.get(tag);
+                tagged.remove(ordinal);
+                if (tagged.isEmpty()) {
+                    byTag.remove(tag);
+                }
+            }
+        }
+
+        /**
+         * Hand out the ordinals again in feed order if posts were added out of order or too many were removed
+         */
+        void renumberIfNeeded() {
+            if (ordered && next - live.getCardinality() < MAX_UNUSED_ORDINALS) {
+                return;
+            }
+            Integer[] order = new Integer[live.getCardinality()];
+            int i = 0;
+            for (int ordinal : live) {
+                order[i++] = ordinal;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingLong(o -> timestamps[o]).thenComparing(o -> ids[o]));
+
+            long[] oldTimestamps = timestamps;
+            ObjectId[] oldIds = ids;
+            List<String>[] oldTags = tags;
+            int size = Math.max(64, order.length * 2);
+            timestamps = new long[size];
+            ids = new ObjectId[size];
+            tags = newTagArray(size);
+            byTag.clear();
+            ordinals.clear();
+            live.clear();
+            next = 0;
+            ordered = true;
+            for (int old : order) {
+                int ordinal = next++;
+                timestamps[ordinal] = oldTimestamps[old];
+                ids[ordinal] = oldIds[old];
+                ordinals.put(oldIds[old].toHexString(), ordinal);
+                live.add(ordinal);
+                setTags(ordinal, oldTags[old]);
+            }
+            byTag.values().forEach(RoaringBitmap::runOptimize);
+        }
+
+        /**
+         * @return the first ordinal whose post is at or after (timestamp, id) in oldest first order -
+         *          everything below it is older
+         */
+        int firstOrdinalAtOrAfter(Instant timestamp, ObjectId id) {
+            long millis = timestamp.toEpochMilli();
+            int low = 0;
+            int high = next;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(timestamps[middle], ids[middle], millis, id) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private void grow() {
+            int size = ids.length * 2;
+            timestamps = Arrays.copyOf(timestamps, size);
+            ids = Arrays.copyOf(ids, size);
+            tags = Arrays.copyOf(tags, size);
+        }
+
+        private static int compare(long timestamp, ObjectId id, long otherTimestamp, ObjectId otherId) {
+            int byTime = Long.compare(timestamp, otherTimestamp);
+            return byTime != 0 ? byTime : id.compareTo(otherId);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<String>[] newTagArray(int size) {
+            return new List[size];
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.BlogPostRepository;
+import com.haprer.blogger.TagCount;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostChange;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.RenameCollectionOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Keeps the number of posts with each tag in the tag_counts collection,
+ * so reading the popular tags is a single indexed query instead of an aggregation over every post.
+ *
+ * BlogService reports the tags of every post it writes and deletes, and the counts are changed with $inc.
+ * rebuild() recomputes the counts from the posts in case they ever drift (e.g. posts written around BlogService).
+ * Every change is also passed on to the PopularTagIndex, which answers the reads while it is loaded.
+ * At startup this also loads the TagBitmapIndex, which BlogService keeps up to date and uses to filter the feed by tag.
+ * The changes other nodes make to either come from the PostChangeStream.
+ */
+@Slf4j
+@Service
+public class TagCountService implements PostChangeListener {
+
+    public static final String COLLECTION = "tag_counts";
+
+    private final MongoTemplate mongoTemplate;
+    private final BlogPostRepository blogPostRepository;
+    private final PopularTagIndex popularTagIndex;
+    private final ContentVersions contentVersions;
+    private final TagBitmapIndex tagBitmapIndex;
+    private final SingleFlight singleFlight;
+
+    public TagCountService(MongoTemplate mongoTemplate, BlogPostRepository blogPostRepository,
+                           PopularTagIndex popularTagIndex, ContentVersions contentVersions,
+                           TagBitmapIndex tagBitmapIndex, SingleFlight singleFlight) {
+        this.mongoTemplate = mongoTemplate;
+        this.blogPostRepository = blogPostRepository;
+        this.popularTagIndex = popularTagIndex;
+        this.contentVersions = contentVersions;
+        this.tagBitmapIndex = tagBitmapIndex;
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * @return every tag, most used first
+     */
+    public List<TagCount> findMostPopularTags() {
+        return findMostPopularTags(Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param limit - the most tags to return, none if it is not positive
+     * @param prefix - only tags starting with this, null or empty for all tags
+     * @return the most used tags, most used first
+     */
+    public List<TagCount> findMostPopularTags(int limit, String prefix) {
+        if (limit <= 0) {
+            return List.of();      //like the index - mongo reads a negative limit as a single batch of that many
+        }
+        if (popularTagIndex.isLoaded()) {
+            return popularTagIndex.top(limit, prefix);
+        }
+
+        //the index could not be loaded at startup - ask mongo, once for all the requests asking at the same time
+        Query query = new Query().with(Sort.by(Sort.Order.desc("count"), Sort.Order.asc("_id"))).limit(limit);
+        if (prefix != null && !prefix.isEmpty()) {
+            query.addCriteria(where("_id").regex("^" + Pattern.quote(prefix)));
+        }
+        return singleFlight.execute("populartags", List.of(limit, String.valueOf(prefix), contentVersions.tagsETag()),
+                () -> mongoTemplate.find(query, TagCount.class, COLLECTION));
+    }
+
+    /**
+     * Record that a post's tags changed
+     * @param oldTags - the tags before the write, null for a new post
+     * @param newTags - the tags after the write, null for a deleted post
+     */
+    public void tagsChanged(Collection<String> oldTags, Collection<String> newTags) {
+        Map<String, Long> deltas = new HashMap<>();
+        addDeltas(deltas, oldTags, -1);
+        addDeltas(deltas, newTags, 1);
+        apply(deltas);
+    }
+
+    /**
+     * Add the tags of a list of posts to a set of deltas
+     * @param deltas - tag -> change in count
+     * @param tags - the tags of one post
+     * @param sign - 1 if the post was added, -1 if it was removed
+     */
+    public static void addDeltas(Map<String, Long> deltas, Collection<String> tags, int sign) {
+        if (tags == null) {
+            return;
+        }
+        for (String tag : tags) {
+            deltas.merge(tag, (long) sign, Long::sum);
+        }
+    }
+
+    /**
+     * $inc every tag by its delta in one unordered bulk write, then remove tags no post has any more.
+     * The PopularTagIndex gets the same deltas - adding them up gives the same counts whatever order the writes on
+     * this node finish in. The counts other nodes change come from the change stream as absolute values.
+     * @param deltas - tag -> change in count
+     */
+    public void apply(Map<String, Long> deltas) {
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        //not while the PopularTagIndex reads the counts, so it doesn't miss these or count them twice
+        popularTagIndex.apply(deltas, () -> {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION);
+            boolean decremented = false;
+            for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                bulk.upsert(new Query(where("_id").is(delta.getKey())), new Update().inc("count", delta.getValue()));
+                decremented |= delta.getValue() < 0;
+            }
+            bulk.execute();
+
+            if (decremented) {
+                mongoTemplate.remove(new Query(where("_id").in(deltas.keySet()).and("count").lte(0)), COLLECTION);
+            }
+        });
+        contentVersions.tagsChanged();
+    }
+
+    /**
+     * All posts were deleted
+     */
+    public void clear() {
+        mongoTemplate.remove(new Query(), COLLECTION);
+        popularTagIndex.load(List.of());
+        contentVersions.tagsChanged();
+    }
+
+    /**
+     * Recompute every count from the posts with the findMostPopularTags aggregation.
+     * The counts are written to a scratch collection that then replaces tag_counts in one rename,
+     * so readers never see a half built collection. Writes that happen while this runs can be lost until the next rebuild.
+     */
+    @Scheduled(cron = "${blogger.tag-counts.rebuild-cron:0 0 4 * * *}")
+    public void rebuild() {
+        List<TagCount> counts = blogPostRepository.findMostPopularTags();
+
+        String scratch = COLLECTION + "_rebuild";
+        mongoTemplate.dropCollection(scratch);
+        mongoTemplate.createCollection(scratch);
+        mongoTemplate.indexOps(scratch).ensureIndex(countIndex());
+        mongoTemplate.insert(counts, scratch);
+
+        MongoNamespace target = new MongoNamespace(mongoTemplate.getDb().getName(), COLLECTION);
+        mongoTemplate.getCollection(scratch).renameCollection(target, new RenameCollectionOptions().dropTarget(true));
+        popularTagIndex.load(counts);
+        contentVersions.tagsChanged();
+        log.info("Rebuilt {} from the posts: {} tags", COLLECTION, counts.size());
+    }
+
+    /**
+     * Build the counts the first time the app runs against a database that already has posts,
+     * then load them into the PopularTagIndex, and load the TagBitmapIndex
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        try {
+            mongoTemplate.indexOps(COLLECTION).ensureIndex(countIndex());
+            if ((!mongoTemplate.collectionExists(COLLECTION) || mongoTemplate.estimatedCount(COLLECTION) == 0)
+                    && blogPostRepository.count() > 0) {
+                rebuild();
+            } else {
+                popularTagIndex.load(() -> mongoTemplate.findAll(TagCount.class, COLLECTION));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not initialize {}", COLLECTION, e);
+        }
+        loadTagBitmapIndex();
+    }
+
+    @Override
+    public void postsChanged(List<PostChange> changes) {
+        tagBitmapIndex.index(changes.stream().filter(change -> !change.isDeleted()).map(PostChange::getPost).toList());
+        tagBitmapIndex.remove(changes.stream().filter(PostChange::isDeleted).map(PostChange::getId).toList());
+    }
+
+    @Override
+    public void tagCountsChanged(Map<String, Long> counts) {
+        popularTagIndex.set(counts);
+    }
+
+    @Override
+    public void tagCountsReplaced() {
+        popularTagIndex.load(() -> mongoTemplate.findAll(TagCount.class, COLLECTION));
+    }
+
+    @Override
+    public void reset() {
+        tagCountsReplaced();
+        loadTagBitmapIndex();
+    }
+
+    private void loadTagBitmapIndex() {
+        try {
+            //oldest first, the order the index hands out ordinals in
+            Query query = new Query().with(BlogPostRepository.FEED_SORT.ascending()).cursorBatchSize(1000);
+            query.fields().include("tags", "timestamp");
+            try (Stream<BlogPost> posts = mongoTemplate.stream(query, BlogPost.class)) {
+                tagBitmapIndex.load(posts);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not load the tag index - the feed is filtered by tag in mongo", e);
+        }
+    }
+
+    private static Index countIndex() {
+        return new Index().on("count", Sort.Direction.DESC).named("count");
+    }
+}
@@ -0,0 +1,334 @@
+package com.haprer.blogger.services;
+
+import com.haprer.blogger.data.BatchItemResult;
+import com.haprer.blogger.data.BlogPost;
+import com.mongodb.WriteConcern;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.jctools.queues.MpscArrayQueue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind mode of /save, turned on by blogger.write-behind.enabled.
+ *
+ * /save puts the post in a bounded lock-free queue and answers 202 with the id the post will have, instead of
+ * waiting for mongo. A single drainer thread takes the posts off the queue and writes them with one insertMany
+ * (BlogService.insertBatch) when it has batch-size posts or the oldest has waited max-delay, whichever is first.
+ * When the queue is full /save waits up to offer-timeout for room and then answers 503, so writers slow down to
+ * what mongo can take instead of the queue growing without bound.
+ *
+ * A 202 means the post will be written, not that it has been - it can't be found until the next batch is written,
+ * and a post that fails then (e.g. a duplicate title and author) is only logged.
+ * If mongo fails the batch is retried until it goes through - the posts a failed try did write are found by their
+ * ids and handled as written (see BlogService.insertBatch). On a graceful shutdown the app stops taking posts,
+ * then everything queued is written - what still can't be written after shutdown-timeout is appended to the spill
+ * file, and inserted from there on the next start.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "blogger.write-behind.enabled")
+public class WriteBehindService implements SmartLifecycle {
+
+    private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(5);
+
+    private final BlogService blogService;
+    private final MongoTemplate mongoTemplate;
+    private final MpscArrayQueue<BlogPost> queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long offerTimeoutNanos;
+    private final Duration shutdownTimeout;
+    private final WriteConcern writeConcern;
+    private final Path spillPath;
+    private final DistributionSummary batchSizes;
+
+    private volatile boolean accepting = false;
+    private volatile boolean running = false;
+    private Thread drainer;
+    /*
+     * The queue only allows one consumer at a time - whoever holds this. The drainer holds it while it takes posts
+     * off the queue, and stop() while it takes the queue over from a drainer that is stuck in a write.
+     */
+    private final ReentrantLock consumer = new ReentrantLock();
+    private boolean handedOver = false;     //stop() took the queue over, guarded by consumer
+    //the posts the drainer has taken off the queue and not written yet - only changed while holding consumer
+    private final List<BlogPost> batch = new ArrayList<>();
+    private final ReentrantLock spillLock = new ReentrantLock();
+
+    public WriteBehindService(BlogService blogService, MongoTemplate mongoTemplate, MeterRegistry registry,
+                              @Value("${blogger.write-behind.capacity:10000}") int capacity,
+                              @Value("${blogger.write-behind.batch-size:500}") int batchSize,
+                              @Value("${blogger.write-behind.max-delay:50ms}") Duration maxDelay,
+                              @Value("${blogger.write-behind.offer-timeout:100ms}") Duration offerTimeout,
+                              @Value("${blogger.write-behind.shutdown-timeout:30s}") Duration shutdownTimeout,
+                              @Value("${blogger.write-behind.write-concern:MAJORITY}") String writeConcern,
+                              @Value("${blogger.write-behind.spill-path:data/write-behind-spill.jsonl}") Path spillPath) {
+        this.blogService = blogService;
+        this.mongoTemplate = mongoTemplate;
+        this.queue = new MpscArrayQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.offerTimeoutNanos = offerTimeout.toNanos();
+        this.shutdownTimeout = shutdownTimeout;
+        this.writeConcern = WriteConcern.valueOf(writeConcern);
+        if (this.writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern " + writeConcern);
+        }
+        this.spillPath = spillPath;
+        Gauge.builder("blogger.save.queue.size", queue, MpscArrayQueue::size)
+                .description("Posts waiting to be written")
+                .register(registry);
+        this.batchSizes = DistributionSummary.builder("blogger.save.batch.size")
+                .description("Posts written per insertMany")
+                .register(registry);
+    }
+
+    /**
+     * Queue a post to be written. Its id is set here so it can be returned before the post is written.
+     * @param post - a new post with its timestamp set
+     * @return false if the queue stayed full for offer-timeout, or the app is shutting down - the post is not queued
+     */
+    public boolean submit(BlogPost post) {
+        if (!accepting) {
+            return false;
+        }
+        post.setId(new ObjectId().toHexString());
+        long deadline = System.nanoTime() + offerTimeoutNanos;
+        while (!queue.offer(post)) {
+            if (System.nanoTime() - deadline >= 0 || !accepting) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        if (queue.size() >= batchSize) {
+            LockSupport.unpark(drainer);     //a full batch doesn't wait for max-delay
+        }
+        return true;
+    }
+
+    private void drain() {
+        long firstQueued = 0;
+        //the first post of an idle queue is noticed within a quarter of max-delay
+        long idlePark = Math.max(TimeUnit.MILLISECONDS.toNanos(1), maxDelayNanos / 4);
+        while (running || !batch.isEmpty() || !queue.isEmpty()) {
+            consumer.lock();
+            try {
+                if (handedOver) {
+                    return;
+                }
+                queue.drain(batch::add, batchSize - batch.size());
+            } finally {
+                consumer.unlock();
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(idlePark);
+                continue;
+            }
+            if (firstQueued == 0) {
+                firstQueued = System.nanoTime();
+            }
+            long waited = System.nanoTime() - firstQueued;
+            if (batch.size() < batchSize && waited < maxDelayNanos && running) {
+                LockSupport.parkNanos(Math.min(idlePark, maxDelayNanos - waited));
+                continue;
+            }
+            List<BlogPost> posts = List.copyOf(batch);
+            boolean written = write(posts);
+            consumer.lock();
+            try {
+                if (handedOver) {
+                    return;     //stop() spilled them
+                }
+                batch.clear();
+                if (!written) {
+                    //stopping and mongo is still failing - spill the rest too instead of waiting on each batch
+                    List<BlogPost> left = new ArrayList<>(posts);
+                    queue.drain(left::add);
+                    spill(left);
+                    return;
+                }
+            } finally {
+                consumer.unlock();
+            }
+            firstQueued = 0;
+        }
+    }
+
+    /**
+     * Write a batch, retrying until it is written - or after shutdown-timeout when the app is stopping
+     * @return false if the batch could not be written
+     */
+    private boolean write(List<BlogPost> batch) {
+        long retryDelay = TimeUnit.MILLISECONDS.toNanos(100);
+        long stopDeadline = 0;
+        boolean retry = false;
+        while (true) {
+            try {
+                //the ids are set before the first try, so on a retry the posts a failed try did write are found by them
+                List<BatchItemResult> results = blogService.insertBatch(batch, 0, writeConcern, retry);
+                batchSizes.record(batch.size());
+                for (BatchItemResult result : results) {
+                    if (result.getError() != null) {
+                        BlogPost post = batch.get(result.getIndex());
+                        log.warn("Queued post {} ({} by {}) was not written: {}", post.getId(), post.getTitle(),
+                                post.getAuthor(), result.getError());
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                log.warn("Could not write {} queued posts, retrying", batch.size(), e);
+                retry = true;
+            }
+            long park = retryDelay;
+            if (!running) {
+                if (stopDeadline == 0) {
+                    stopDeadline = System.nanoTime() + shutdownTimeout.toNanos();
+                }
+                park = Math.min(park, stopDeadline - System.nanoTime());
+                if (park <= 0) {
+                    return false;
+                }
+            }
+            LockSupport.parkNanos(park);
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY.toNanos());
+        }
+    }
+
+    //one post per line as mongo extended JSON, so the timestamp and id are kept
+    private void spill(List<BlogPost> posts) {
+        if (posts.isEmpty()) {
+            return;
+        }
+        spillLock.lock();
+        try {
+            Files.createDirectories(spillPath.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            log.warn("Could not create the directory of {}", spillPath, e);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(spillPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (BlogPost post : posts) {
+                Document document = new Document();
+                mongoTemplate.getConverter().write(post, document);
+                writer.write(document.toJson());
+                writer.newLine();
+            }
+            log.error("Wrote {} posts that could not be saved to {} - they are saved on the next start", posts.size(), spillPath);
+        } catch (IOException | RuntimeException e) {
+            log.error("Lost {} queued posts that could not be saved or written to {}", posts.size(), spillPath, e);
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    //posts spilled by the last shutdown - the spill file is only removed once they are all written
+    private void replaySpill() {
+        if (!Files.exists(spillPath)) {
+            return;
+        }
+        try {
+            List<BlogPost> posts = new ArrayList<>();
+            for (String line : Files.readAllLines(spillPath, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    posts.add(mongoTemplate.getConverter().read(BlogPost.class, Document.parse(line)));
+                }
+            }
+            for (int i = 0; i < posts.size(); i += batchSize) {
+                List<BlogPost> part = posts.subList(i, Math.min(posts.size(), i + batchSize));
+                //the write of a spilled post may have gone through after it was spilled
+                for (BatchItemResult result : blogService.insertBatch(part, 0, writeConcern, true)) {
+                    if (result.getError() != null) {
+                        log.warn("Spilled post {} was not written: {}", part.get(result.getIndex()).getId(), result.getError());
+                    }
+                }
+            }
+            Files.delete(spillPath);
+            log.info("Saved {} posts spilled by the last shutdown", posts.size());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not save the posts spilled to {} - they are tried again on the next start", spillPath, e);
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        accepting = true;
+        drainer = Thread.ofPlatform().name("write-behind-drainer").daemon().start(() -> {
+            replaySpill();
+            drain();
+        });
+    }
+
+    /**
+     * Stop taking posts, and wait for the ones already queued to be written or spilled
+     */
+    @Override
+    public void stop() {
+        accepting = false;
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            //the drainer may be stuck in an insertMany that waits on the driver's timeouts - take the queue over
+            //and spill what it has, if its write does go through after all, the spilled copies are found by
+            //their ids on the next start
+            if (!drainer.join(shutdownTimeout.plusSeconds(1))) {
+                List<BlogPost> left = handOver();
+                log.warn("Write-behind drainer did not finish, spilling {} posts", left.size());
+                spill(left);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //a post queued as the drainer stopped
+        List<BlogPost> left = handOver();
+        if (!left.isEmpty() && !write(left)) {
+            spill(left);
+        }
+    }
+
+    //once the drainer lets go of the queue, it never takes from it again
+    private List<BlogPost> handOver() {
+        consumer.lock();
+        try {
+            handedOver = true;
+            List<BlogPost> left = new ArrayList<>(batch);
+            queue.drain(left::add);
+            return left;
+        } finally {
+            consumer.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    //stopped after the web server, so requests still finishing can queue their posts
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
@@ -0,0 +1,87 @@
+package com.haprer.blogger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haprer.blogger.configurations.JacksonConfig;
+import com.haprer.blogger.data.BatchItemResult;
+import com.haprer.blogger.data.BatchSaveResult;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BatchIngestService;
+import com.haprer.blogger.services.BlogService;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+
+/**
+ * Tests for reading /save/batch bodies - the database is mocked out
+ */
+public class BatchIngestServiceTests {
+
+    private final ObjectMapper objectMapper = new JacksonConfig().objectMapper();
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private BatchIngestService batchIngestService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        BlogService blogService = Mockito.mock(BlogService.class);
+        Mockito.when(blogService.insertBatch(anyList(), anyInt())).thenAnswer(invocation -> {
+            List<BlogPost> posts = invocation.getArgument(0);
+            int first = invocation.getArgument(1);
+            chunkSizes.add(posts.size());
+            return IntStream.range(0, posts.size()).mapToObj(i -> BatchItemResult.saved(first + i, "id" + (first + i))).toList();
+        });
+        batchIngestService = new BatchIngestService(blogService, objectMapper, 2);
+    }
+
+    private BatchSaveResult save(String body) {
+        return batchIngestService.save(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String post(int i) throws Exception {
+        return objectMapper.writeValueAsString(new BlogPost("title" + i, "author", "content", List.of("tag")));
+    }
+
+    @Test
+    public void ndjsonIsWrittenInChunks() throws Exception {
+        String body = post(0) + "\n" + post(1) + "\n" + post(2) + "\n";
+
+        BatchSaveResult result = save(body);
+
+        Assertions.assertThat(result.getSaved()).isEqualTo(3);
+        Assertions.assertThat(chunkSizes).containsExactly(2, 1);
+        Assertions.assertThat(result.getItems()).extracting(BatchItemResult::getIndex).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void badPostOnlyFailsItself() throws Exception {
+        String body = "[" + post(0) + ", {\"tags\": 5}, " + post(2) + "]";
+
+        BatchSaveResult result = save(body);
+
+        Assertions.assertThat(result.getReceived()).isEqualTo(3);
+        Assertions.assertThat(result.getFailed()).isEqualTo(1);
+        Assertions.assertThat(result.getItems()).extracting(BatchItemResult::isSaved).containsExactly(true, false, true);
+        Assertions.assertThat(result.getItems()).extracting(BatchItemResult::getIndex).containsExactly(0, 1, 2);
+        Assertions.assertThat(result.getError()).isNull();
+    }
+
+    @Test
+    public void malformedBodyKeepsEarlierPosts() throws Exception {
+        String body = post(0) + "\n{\"title\": ";
+
+        BatchSaveResult result = save(body);
+
+        Assertions.assertThat(result.getSaved()).isEqualTo(1);
+        Assertions.assertThat(result.getError()).isNotNull();
+    }
+}
@@ -1,5 +1,6 @@
 package com.haprer.blogger;
 
+import com.haprer.blogger.configurations.MongoIndexConfig;
 import com.haprer.blogger.data.BlogPost;
 import com.haprer.blogger.services.BlogService;
 import org.assertj.core.api.Assertions;
@@ -8,6 +9,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
@@ -137,4 +139,18 @@ public class BlogRepositoryTests {
         Assertions.assertThat(blogService.updateTitleByTitleAndAuthor("Old Title", "Author", "New Title")).isFalse();
     }
 
+    @Test
+    public void everyQueryUsesAnIndex(@Autowired MongoIndexConfig mongoIndexConfig) {
+        blogPostRepository.save(new BlogPost("A", "B", "Test Content", List.of("test", "spring")));
+        Assertions.assertThat(mongoIndexConfig.findCollectionScans()).isEmpty();
+    }
+
+    @Test
+    public void titleAndAuthorAreUnique() {
+        blogPostRepository.save(new BlogPost("A", "B", "Test Content", List.of("test")));
+        Assertions.assertThatThrownBy(() -> blogPostRepository.save(new BlogPost("A", "B", "Other Content", List.of())))
+                .isInstanceOf(DuplicateKeyException.class);
+        Assertions.assertThat(blogPostRepository.count()).isEqualTo(1);
+    }
+
 }
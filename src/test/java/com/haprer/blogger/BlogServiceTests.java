@@ -1,12 +1,16 @@
 package com.haprer.blogger;
 
 import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.BlogPostPatch;
 import com.haprer.blogger.services.BlogService;
+import com.haprer.blogger.services.TagCountService;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
@@ -45,6 +49,9 @@ public class BlogServiceTests {
     @Autowired
     BlogService blogService;
 
+    @Autowired
+    TagCountService tagCountService;
+
     @BeforeEach
     public void beforeEach() {
         blogService.deleteAll();
@@ -140,5 +147,93 @@ public class BlogServiceTests {
         Assertions.assertThat(tagCounts.getFirst().getTag()).isEqualTo("0");  // The most popular tag should be "0"
     }
 
+    @Test
+    void tagCountsFollowWrites() {
+        BlogPost a = blogService.save(new BlogPost("a", "author", "content", new ArrayList<>(List.of("java", "spring"))));
+        blogService.save(new BlogPost("b", "author", "content", new ArrayList<>(List.of("java"))));
+
+        Assertions.assertThat(blogService.findMostPopularTags())
+                .containsExactly(new TagCount("java", 2), new TagCount("spring", 1));
+
+        //editing the tags moves the counts
+        a.setTags(new ArrayList<>(List.of("java", "mongo")));
+        blogService.save(a);
+        Assertions.assertThat(blogService.findMostPopularTags())
+                .containsExactly(new TagCount("java", 2), new TagCount("mongo", 1));
+
+        //deleting removes tags no post has any more
+        blogService.deleteByTitleAndAuthor("b", "author");
+        blogService.deleteById(a.getId());
+        Assertions.assertThat(blogService.findMostPopularTags()).isEmpty();
+    }
+
+    @Test
+    void rebuildMatchesIncrementalCounts() {
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tags.add("" + i);
+            blogService.save(new BlogPost("title" + i, "author" + i, "content" + i, new ArrayList<>(tags)));
+        }
+        List<TagCount> incremental = blogService.findMostPopularTags();
+
+        tagCountService.rebuild();
+
+        Assertions.assertThat(blogService.findMostPopularTags()).containsExactlyInAnyOrderElementsOf(incremental);
+        Assertions.assertThat(blogService.findMostPopularTags()).isEqualTo(blogService.findMostPopularTags().stream()
+                .sorted((x, y) -> Long.compare(y.getCount(), x.getCount())).toList());
+    }
+
+    @Test
+    void patchesChangeOnlyTheirFields() {
+        BlogPost a = blogService.save(new BlogPost("a", "author", "content", new ArrayList<>(List.of("java", "spring"))));
+
+        BlogPostPatch addMongo = new BlogPostPatch();
+        addMongo.setAddTags(List.of("mongo", "java"));
+        BlogPost patched = blogService.patchById(a.getId(), addMongo).orElseThrow();
+        Assertions.assertThat(patched.getTags()).containsExactly("java", "spring", "mongo");
+        Assertions.assertThat(patched.getContent()).isEqualTo("content");
+        Assertions.assertThat(patched.getVersion()).isEqualTo(a.getVersion() + 1);
+
+        BlogPostPatch removeSpring = new BlogPostPatch();
+        removeSpring.setRemoveTags(List.of("spring"));
+        removeSpring.setContent("new content here");
+        blogService.patchByTitleAndAuthor("a", "author", removeSpring);
+
+        BlogPost stored = blogService.findById(a.getId()).orElseThrow();
+        Assertions.assertThat(stored.getTags()).containsExactly("java", "mongo");
+        Assertions.assertThat(stored.getWordCount()).isEqualTo(3);
+        Assertions.assertThat(blogService.findMostPopularTags())
+                .containsExactlyInAnyOrder(new TagCount("java", 1), new TagCount("mongo", 1));
+
+        //a patch made for an older version is refused
+        BlogPostPatch stale = BlogPostPatch.title("b");
+        stale.setVersion(a.getVersion());
+        Assertions.assertThatThrownBy(() -> blogService.patchById(a.getId(), stale))
+                .isInstanceOf(OptimisticLockingFailureException.class);
+        Assertions.assertThat(blogService.patchById(new ObjectId().toHexString(), BlogPostPatch.title("b"))).isEmpty();
+    }
+
+    @Test
+    void patchesWithIfMatchOnlyChangeThePostInTheETag() {
+        BlogPost a = blogService.save(new BlogPost("a", "author", "content", new ArrayList<>(List.of("java"))));
+        BlogPost b = blogService.save(new BlogPost("b", "author", "content", new ArrayList<>(List.of("java"))));
+
+        //b's ETag sent to patch a
+        BlogPostPatch wrongPost = BlogPostPatch.title("c");
+        wrongPost.expect(b.getId(), b.getVersion());
+        Assertions.assertThatThrownBy(() -> blogService.patchByTitleAndAuthor("a", "author", wrongPost))
+                .isInstanceOf(OptimisticLockingFailureException.class);
+        BlogPostPatch wrongId = BlogPostPatch.title("c");
+        wrongId.expect(b.getId(), a.getVersion());
+        Assertions.assertThatThrownBy(() -> blogService.patchById(a.getId(), wrongId))
+                .isInstanceOf(OptimisticLockingFailureException.class);
+
+        BlogPostPatch current = BlogPostPatch.title("c");
+        current.expect(a.getId(), a.getVersion());
+        BlogPost patched = blogService.patchById(a.getId(), current).orElseThrow();
+        Assertions.assertThat(patched.getTitle()).isEqualTo("c");
+        Assertions.assertThat(patched.getContent()).isEqualTo("content");
+        Assertions.assertThat(patched.getTimestamp()).isEqualTo(a.getTimestamp());
+    }
 
 }
@@ -14,6 +14,7 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
@@ -36,8 +37,12 @@ import java.util.List;
 import java.util.ArrayList;
 
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.hamcrest.Matchers.is;
@@ -166,6 +171,61 @@ class BloggerApplicationTests {
 				.andExpect(status().isNotFound());  // Expect HTTP NOT FOUND status
 	}
 
+	@Test
+	void cannotSaveTheSameTitleAndAuthorTwice() throws Exception {
+		this.save(new BlogPost(title, author, content, tags));
+		mockMvc.perform(post("/save")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(new BlogPost(title, author, "other content", tags))))
+				.andExpect(status().isConflict());
+	}
+
+	@Test
+	void patchPost() throws Exception {
+		this.save(new BlogPost(title, author, content, tags));
+
+		mockMvc.perform(patch("/update").param("title", title).param("author", author)
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"title\": \"New Title\", \"addTags\": [\"new\"]}"))
+				.andExpect(status().isOk())
+				.andExpect(header().exists(HttpHeaders.ETAG))
+				.andExpect(jsonPath("$.title", is("New Title")))
+				.andExpect(jsonPath("$.content", is(content)))
+				.andExpect(jsonPath("$.tags.length()", is(3)));
+		mockMvc.perform(get("/find").param("title", "New Title").param("author", author))
+				.andExpect(status().isFound());
+
+		mockMvc.perform(patch("/update").param("title", "New Title").param("author", author)
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"content\": \"other\", \"version\": 0}"))
+				.andExpect(status().isConflict());
+		mockMvc.perform(patch("/update").param("title", "New Title").param("author", author)
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"tags\": [], \"removeTags\": [\"new\"]}"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(patch("/update").param("title", title).param("author", author)
+						.contentType(MediaType.APPLICATION_JSON)
+						.content("{\"content\": \"other\"}"))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	void metricsAreScraped() throws Exception {
+		this.save(new BlogPost(title, author, content, tags));
+		mockMvc.perform(get("/find").param("title", title).param("author", author));     //302 FOUND, so a REDIRECTION outcome
+
+		String scrape = mockMvc.perform(get("/actuator/prometheus"))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertThat(scrape)
+				.contains("http_server_requests_seconds_bucket")
+				.contains("spring_data_repository_invocations_seconds_bucket")
+				.contains("mongodb_driver_commands_seconds_bucket")
+				.contains("mongodb_driver_commands_documents_count")
+				.contains("mongodb_driver_pool_size")
+				.contains("http_server_response_size_bytes_count{application=\"blogger\",method=\"GET\",outcome=\"REDIRECTION\",uri=\"/find\"}");
+	}
+
 	@Test
 	void timestampsAreOverwritten() throws Exception {
 		BlogPost testPost = new BlogPost(title, author, content, tags, Instant.now());
@@ -244,6 +304,182 @@ class BloggerApplicationTests {
 
 	}
 
+	@Test
+	void findFirstTwoPagesByCursor() throws Exception {
+
+		for (int i = 0; i < 15; i ++) {
+			this.save(new BlogPost("title " + i, "author " + i, "content " + i, List.of("" + i)));
+		}
+
+		//first page is requested with an empty cursor
+		MvcResult res = mockMvc.perform(get("/blogposts")
+						.param("cursor", "")
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.hasNext", is(true)))
+				.andExpect(jsonPath("$.totalElements").doesNotExist())
+				.andReturn();
+
+		JsonNode page1 = objectMapper.readTree(res.getResponse().getContentAsString());
+		BlogPost[] posts = objectMapper.readValue(page1.get("content").toString(), BlogPost[].class);
+
+		//most recent first
+		Assertions.assertThat(posts.length).isEqualTo(10);
+		for (int i = 0; i < 10; i ++) {
+			Assertions.assertThat(posts[i].getTitle()).isEqualTo("title " + (14 - i));
+		}
+
+		//second page picks up after the last post of the first
+		MvcResult res2 = mockMvc.perform(get("/blogposts")
+						.param("cursor", page1.get("nextCursor").asText())
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.hasNext", is(false)))
+				.andReturn();
+
+		JsonNode page2 = objectMapper.readTree(res2.getResponse().getContentAsString());
+		BlogPost[] posts2 = objectMapper.readValue(page2.get("content").toString(), BlogPost[].class);
+
+		Assertions.assertThat(posts2.length).isEqualTo(5);
+		for (int i = 0; i < 5; i ++) {
+			Assertions.assertThat(posts2[i].getTitle()).isEqualTo("title " + (4 - i));
+		}
+		Assertions.assertThat(page2.get("nextCursor").isNull()).isTrue();
+	}
+
+	@Test
+	void listsAreSummariesUnlessFullIsRequested() throws Exception {
+		String longContent = "word ".repeat(500);
+		this.save(new BlogPost(title, author, longContent, tags));
+
+		mockMvc.perform(get("/blogposts")
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content[0].title", is(title)))
+				.andExpect(jsonPath("$.content[0].content").doesNotExist())
+				.andExpect(jsonPath("$.content[0].wordCount", is(500)))
+				.andExpect(result -> {
+					String excerpt = JsonPath.read(result.getResponse().getContentAsString(), "$.content[0].excerpt");
+					Assertions.assertThat(excerpt.length()).isLessThanOrEqualTo(BlogPost.EXCERPT_LENGTH + 3);
+				});
+
+		mockMvc.perform(get("/blogposts")
+						.param("full", "true")
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content[0].content", is(longContent)));
+
+		mockMvc.perform(get("/blogposts")
+						.param("cursor", "")
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content[0].content").doesNotExist());
+	}
+
+	@Test
+	void unchangedResourcesAreNotModified() throws Exception {
+		this.save(new BlogPost(title, author, content, tags));
+
+		for (String url : List.of("/populartags", "/blogposts")) {
+			MvcResult res = mockMvc.perform(get(url))
+					.andExpect(status().isOk())
+					.andExpect(header().exists(HttpHeaders.ETAG))
+					.andExpect(header().exists(HttpHeaders.CACHE_CONTROL))
+					.andReturn();
+			String etag = res.getResponse().getHeader(HttpHeaders.ETAG);
+
+			mockMvc.perform(get(url).header(HttpHeaders.IF_NONE_MATCH, etag))
+					.andExpect(status().isNotModified());
+		}
+
+		MvcResult found = mockMvc.perform(get("/find")
+						.param("title", title)
+						.param("author", author))
+				.andExpect(status().isFound())
+				.andExpect(header().exists(HttpHeaders.ETAG))
+				.andReturn();
+		String postEtag = found.getResponse().getHeader(HttpHeaders.ETAG);
+
+		mockMvc.perform(get("/find")
+						.param("title", title)
+						.param("author", author)
+						.header(HttpHeaders.IF_NONE_MATCH, postEtag))
+				.andExpect(status().isNotModified());
+
+		//a write changes the collection ETags
+		String feedEtag = mockMvc.perform(get("/blogposts")).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+		this.save(new BlogPost("Another Title", author, content, List.of("new")));
+		mockMvc.perform(get("/blogposts").header(HttpHeaders.IF_NONE_MATCH, feedEtag))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	void saveBatchOfPosts() throws Exception {
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 5; i ++) {
+			ndjson.append(objectMapper.writeValueAsString(new BlogPost("title " + i, author, content, tags))).append('\n');
+		}
+		ndjson.append("{\"title\": {\"not\": \"a string\"}}\n");   //fails on its own
+
+		mockMvc.perform(post("/save/batch")
+						.contentType(MediaType.APPLICATION_NDJSON)
+						.content(ndjson.toString()))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.received", is(6)))
+				.andExpect(jsonPath("$.saved", is(5)))
+				.andExpect(jsonPath("$.failed", is(1)))
+				.andExpect(jsonPath("$.items[5].index", is(5)))
+				.andExpect(jsonPath("$.items[5].saved", is(false)));
+
+		Assertions.assertThat(blogService.count()).isEqualTo(5);
+		Assertions.assertThat(blogService.findByTitleAndAuthor("title 3", author)).isPresent();
+
+		//a JSON array works too
+		String array = objectMapper.writeValueAsString(List.of(new BlogPost("array title", author, content, tags)));
+		mockMvc.perform(post("/save/batch")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(array))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.saved", is(1)));
+		Assertions.assertThat(blogService.findMostPopularTags().getFirst().getCount()).isEqualTo(6);
+	}
+
+	@Test
+	void exportAllPostsAsNdjson() throws Exception {
+		for (int i = 0; i < 3; i ++) {
+			this.save(new BlogPost("title " + i, author, content, tags));
+		}
+
+		MvcResult started = mockMvc.perform(get("/export"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		String exportTime = started.getResponse().getHeader("X-Export-Time");
+		String ndjson = mockMvc.perform(asyncDispatch(started))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+
+		List<String> lines = ndjson.lines().toList();
+		Assertions.assertThat(lines).hasSize(3);
+		Assertions.assertThat(objectMapper.readValue(lines.getFirst(), BlogPost.class).getContent()).isEqualTo(content);
+
+		//nothing was saved since the first export
+		MvcResult incremental = mockMvc.perform(get("/export").param("since", exportTime))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		String delta = mockMvc.perform(asyncDispatch(incremental))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertThat(delta).isEmpty();
+	}
+
+	@Test
+	void invalidCursorIsRejected() throws Exception {
+		mockMvc.perform(get("/blogposts")
+						.param("cursor", "not a cursor")
+						.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isBadRequest());
+	}
+
 
 	/**
 	 * Find the tags:
@@ -307,4 +543,55 @@ class BloggerApplicationTests {
 		Assertions.assertThat(tagCounts[3].getCount()).isEqualTo(1);
 	}
 
+	@Test
+	void filterFeedByTags() throws Exception {
+		this.save(new BlogPost("java only", author, content, new ArrayList<>(List.of("java"))));
+		this.save(new BlogPost("java and spring", author, content, new ArrayList<>(List.of("java", "spring"))));
+		this.save(new BlogPost("spring only", author, content, new ArrayList<>(List.of("spring"))));
+
+		mockMvc.perform(get("/blogposts").param("tags", "java,spring"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content.length()", is(1)))
+				.andExpect(jsonPath("$.content[0].title", is("java and spring")));
+
+		//most recent first, paged with the cursor
+		String first = mockMvc.perform(get("/blogposts").param("tags", "java,spring").param("mode", "any").param("size", "2"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content[0].title", is("spring only")))
+				.andExpect(jsonPath("$.content[1].title", is("java and spring")))
+				.andExpect(jsonPath("$.hasNext", is(true)))
+				.andReturn().getResponse().getContentAsString();
+		String cursor = objectMapper.readTree(first).get("nextCursor").asText();
+		mockMvc.perform(get("/blogposts").param("tags", "java,spring").param("mode", "any").param("size", "2").param("cursor", cursor))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.content.length()", is(1)))
+				.andExpect(jsonPath("$.content[0].title", is("java only")))
+				.andExpect(jsonPath("$.hasNext", is(false)));
+
+		mockMvc.perform(get("/blogposts").param("tags", "java").param("mode", "some"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	void searchRanksTitleMatchesFirst() throws Exception {
+		this.save(new BlogPost("Cooking", author, "I also write about gardening sometimes", tags));
+		this.save(new BlogPost("Gardening in spring", author, content, tags));
+		this.save(new BlogPost("Something else", author, content, tags));
+
+		mockMvc.perform(get("/search").param("q", "garden"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(2)))
+				.andExpect(jsonPath("$[0].title", is("Gardening in spring")))
+				.andExpect(jsonPath("$[1].title", is("Cooking")));
+
+		//deleted posts leave the index
+		blogService.deleteByTitleAndAuthor("Cooking", author);
+		mockMvc.perform(get("/search").param("q", "gardening"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(1)));
+
+		mockMvc.perform(get("/search").param("q", "garden").param("limit", "0"))
+				.andExpect(status().isBadRequest());
+	}
+
 }
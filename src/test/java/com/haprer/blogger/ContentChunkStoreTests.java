@@ -0,0 +1,306 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.configurations.CompressedContentConverter;
+import com.haprer.blogger.configurations.ContentCompressionConfig;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostContent;
+import com.haprer.blogger.data.Revision;
+import com.haprer.blogger.services.ContentChunkStore;
+import com.haprer.blogger.services.RevisionService;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.result.DeleteResult;
+import org.assertj.core.api.Assertions;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+
+/**
+ * Tests for storing long content as chunks - the chunks collection is a list in memory
+ */
+public class ContentChunkStoreTests {
+
+    private static final String[] WORDS = ("the a of to and in is it that for on with as was this be by are at from "
+            + "post blog write code mongo index query cache server request response latency memory disk page reader "
+            + "chunk hash store revision edit version manifest content author title tag feed search").split(" ");
+
+    private final List<Document> stored = new ArrayList<>();
+    private final List<Integer> inserts = new ArrayList<>();
+    private final List<Document> posts = new ArrayList<>();     //the blogPost collection, for the sweep
+    private int finds = 0;
+    private MongoTemplate mongoTemplate;
+
+    private ContentChunkStore store(boolean compress, DataSize cacheWeight) {
+        return store(true, compress, cacheWeight);
+    }
+
+    //chunks are inserted into stored, and found in it by the _ids of the $in filter
+    @SuppressWarnings("unchecked")
+    private ContentChunkStore store(boolean enabled, boolean compress, DataSize cacheWeight) {
+        mongoTemplate = Mockito.mock(MongoTemplate.class);
+        MongoCollection<Document> collection = Mockito.mock(MongoCollection.class);
+        Mockito.when(mongoTemplate.getCollection(ContentChunkStore.COLLECTION)).thenReturn(collection);
+        Mockito.when(collection.insertMany(anyList(), any())).thenAnswer(invocation -> {
+            List<Document> documents = invocation.getArgument(0);
+            stored.addAll(documents);
+            inserts.add(documents.size());
+            return null;
+        });
+        Mockito.when(collection.find(any(Bson.class))).thenAnswer(invocation -> {
+            finds++;
+            BsonDocument filter = invocation.getArgument(0, Bson.class).toBsonDocument();
+            if (!filter.containsKey("_id")) {
+                //the sweep looking for old chunks
+                return iterable(stored.stream().filter(chunk -> old(chunk, filter)).toList());
+            }
+            Set<String> ids = ids(filter);
+            return iterable(stored.stream().filter(chunk -> ids.contains(chunk.getString("_id"))).toList());
+        });
+        Mockito.when(collection.deleteMany(any(Bson.class))).thenAnswer(invocation -> {
+            BsonArray and = invocation.getArgument(0, Bson.class).toBsonDocument().getArray("$and");
+            Set<String> ids = ids(and.get(0).asDocument());
+            int before = stored.size();
+            stored.removeIf(chunk -> ids.contains(chunk.getString("_id")) && old(chunk, and.get(1).asDocument()));
+            return DeleteResult.acknowledged(before - stored.size());
+        });
+
+        Mockito.when(mongoTemplate.getCollectionName(BlogPost.class)).thenReturn("blogPost");
+        Mockito.when(mongoTemplate.getCollectionName(Revision.class)).thenReturn("revisions");
+        MongoCollection<Document> postCollection = Mockito.mock(MongoCollection.class);
+        Mockito.when(mongoTemplate.getCollection("blogPost")).thenReturn(postCollection);
+        Mockito.when(postCollection.find(any(Bson.class))).thenAnswer(invocation -> iterable(posts));
+        MongoCollection<Document> revisionCollection = Mockito.mock(MongoCollection.class);
+        Mockito.when(mongoTemplate.getCollection("revisions")).thenReturn(revisionCollection);
+        Mockito.when(revisionCollection.find(any(Bson.class))).thenAnswer(invocation -> iterable(List.of()));
+
+        return new ContentChunkStore(mongoTemplate, new CompressedContentConverter(compress, 1024, 6),
+                enabled, DataSize.ofKilobytes(4), cacheWeight, Duration.ofHours(1));
+    }
+
+    //the sweep's filter - used before the cutoff, or never marked
+    private static boolean old(Document chunk, BsonDocument filter) {
+        long cutoff = filter.getArray("$or").get(0).asDocument().getDocument("used").getDateTime("$lt").getValue();
+        return chunk.getDate("used") == null || chunk.getDate("used").getTime() < cutoff;
+    }
+
+    private static Set<String> ids(BsonDocument filter) {
+        return filter.getDocument("_id").getArray("$in").stream().map(id -> id.asString().getValue())
+                .collect(Collectors.toSet());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FindIterable<Document> iterable(List<Document> documents) {
+        FindIterable<Document> iterable = Mockito.mock(FindIterable.class);
+        Mockito.when(iterable.projection(any())).thenReturn(iterable);
+        Mockito.when(iterable.batchSize(Mockito.anyInt())).thenReturn(iterable);
+        Mockito.when(iterable.iterator()).thenAnswer(i -> cursor(documents.iterator()));
+        return iterable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MongoCursor<Document> cursor(Iterator<Document> documents) {
+        MongoCursor<Document> cursor = Mockito.mock(MongoCursor.class);
+        Mockito.when(cursor.hasNext()).thenAnswer(i -> documents.hasNext());
+        Mockito.when(cursor.next()).thenAnswer(i -> documents.next());
+        return cursor;
+    }
+
+    private static String text(int words, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(i % 15 == 0 ? ". " : " ");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void boundariesMoveWithTheContentNotTheOffset() {
+        String text = text(20000, 1);
+        String edited = text.substring(0, 50000) + " a few inserted words " + text.substring(50000);
+        List<Integer> before = ContentChunkStore.boundaries(text.getBytes(StandardCharsets.UTF_8));
+        List<Integer> after = ContentChunkStore.boundaries(edited.getBytes(StandardCharsets.UTF_8));
+
+        Assertions.assertThat(before.getLast()).isEqualTo(text.getBytes(StandardCharsets.UTF_8).length);
+        for (int i = 0; i < before.size() - 1; i++) {
+            int size = before.get(i) - (i == 0 ? 0 : before.get(i - 1));
+            Assertions.assertThat(size).isBetween(1024, 16 * 1024);
+        }
+        //the boundaries after the insert are the old ones shifted by it
+        int shift = edited.length() - text.length();
+        long shifted = before.stream().filter(end -> end > 50000).filter(end -> after.contains(end + shift)).count();
+        Assertions.assertThat(shifted).isGreaterThanOrEqualTo(before.stream().filter(end -> end > 50000).count() - 2);
+    }
+
+    @Test
+    public void anEditOnlyWritesTheChangedChunks() {
+        ContentChunkStore chunkStore = store(true, DataSize.ofMegabytes(1));
+        String text = text(20000, 2);
+        PostContent first = chunkStore.store(PostContent.of(text));
+        String edited = text.substring(0, 60000) + " an edit " + text.substring(60000);
+        PostContent second = chunkStore.store(PostContent.of(edited));
+
+        Assertions.assertThat(first.chunks()).hasSizeGreaterThan(10);
+        Assertions.assertThat(inserts.get(0)).isEqualTo(new HashSet<>(first.chunks()).size());
+        Assertions.assertThat(inserts.get(1)).isBetween(1, 2);
+        //both put together from the cache
+        Assertions.assertThat(chunkStore.assemble(first.chunks())).isEqualTo(text);
+        Assertions.assertThat(chunkStore.assemble(second.chunks())).isEqualTo(edited);
+        Assertions.assertThat(finds).isEqualTo(2);     //the lookups of the two stores
+    }
+
+    @Test
+    public void missingChunksAreReadInOneQuery() {
+        String text = text(5000, 3) + " é中😀";
+        PostContent content = store(false, DataSize.ofMegabytes(1)).store(PostContent.of(text));
+
+        //a node that hasn't seen the chunks
+        ContentChunkStore other = store(false, DataSize.ofBytes(0));
+        finds = 0;
+        Assertions.assertThat(other.assemble(content.chunks())).isEqualTo(text);
+        Assertions.assertThat(finds).isEqualTo(1);
+    }
+
+    @Test
+    public void aBatchOfPostsIsPutTogetherWithOneQuery() {
+        ContentChunkStore writer = store(true, DataSize.ofMegabytes(1));
+        List<BlogPost> read = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String text = text(5000, 10 + i);
+            texts.add(text);
+            BlogPost post = new BlogPost("title", "author", text, List.of());
+            post.setStoredContent(PostContent.ofChunks(writer.store(PostContent.of(text)).chunks(), text.length(),
+                    manifest -> { throw new AssertionError("read one post at a time"); }));
+            read.add(post);
+        }
+        read.add(new BlogPost("short", "author", "not chunked", List.of()));
+
+        ContentChunkStore reader = store(true, DataSize.ofBytes(0));
+        finds = 0;
+        List<String> assembled = reader.assembling(read.stream(), 10).map(BlogPost::getContent).toList();
+        Assertions.assertThat(assembled.subList(0, 5)).isEqualTo(texts);
+        Assertions.assertThat(assembled.getLast()).isEqualTo("not chunked");
+        Assertions.assertThat(finds).isEqualTo(1);
+    }
+
+    @Test
+    public void chunksNoPostUsesAreSweptAfterTheGrace() {
+        ContentChunkStore chunkStore = store(false, DataSize.ofMegabytes(1));
+        PostContent kept = chunkStore.store(PostContent.of(text(5000, 20)));
+        PostContent deleted = chunkStore.store(PostContent.of(text(5000, 21)));
+        posts.add(new Document("content", new Document("chunks", kept.chunks())));
+        stored.forEach(chunk -> chunk.put("used", new Date(0)));
+        //stored but its post not written yet
+        PostContent inProgress = chunkStore.store(PostContent.of(text(5000, 22)));
+
+        Assertions.assertThat(chunkStore.sweep()).isEqualTo(new HashSet<>(deleted.chunks()).size());
+        Set<String> left = stored.stream().map(chunk -> chunk.getString("_id")).collect(Collectors.toSet());
+        Assertions.assertThat(left).containsAll(kept.chunks()).containsAll(inProgress.chunks())
+                .doesNotContainAnyElementsOf(deleted.chunks());
+
+        //written again, the swept chunks are sent again
+        inserts.clear();
+        chunkStore.store(PostContent.of(text(5000, 21)));
+        Assertions.assertThat(inserts).containsExactly(new HashSet<>(deleted.chunks()).size());
+    }
+
+    @Test
+    public void shortContentIsKeptWhole() {
+        PostContent content = PostContent.of("a short post");
+        Assertions.assertThat(store(false, DataSize.ofMegabytes(1)).store(content)).isSameAs(content);
+        Assertions.assertThat(inserts).isEmpty();
+    }
+
+    private static MappingMongoConverter converter(ContentChunkStore chunkStore) {
+        MongoCustomConversions conversions = new ContentCompressionConfig().mongoCustomConversions(
+                new CompressedContentConverter(false, 1024, 6, chunkStore::assemble));
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    @Test
+    public void turnedOffContentIsKeptWholeAndNoRevisionsAreRecorded() {
+        ContentChunkStore chunkStore = store(false, false, DataSize.ofMegabytes(1));
+        PostContent content = PostContent.of(text(5000, 5));
+        Assertions.assertThat(chunkStore.store(content)).isSameAs(content);
+
+        BlogPost post = new BlogPost("title", "author", content.text(), List.of());
+        post.setId("post");
+        post.setVersion(3L);
+        new RevisionService(mongoTemplate, chunkStore, 50).record(List.of(post));
+
+        Assertions.assertThat(inserts).isEmpty();
+        Mockito.verify(mongoTemplate, Mockito.never()).getCollection("revisions");
+    }
+
+    @Test
+    public void onlyTheNewestRevisionsAreKept() {
+        ContentChunkStore chunkStore = store(false, DataSize.ofMegabytes(1));
+        MappingMongoConverter converter = converter(chunkStore);
+        Mockito.when(mongoTemplate.getConverter()).thenReturn(converter);
+        List<BlogPost> posts = new ArrayList<>();
+        for (long version : new long[] {2, 10}) {
+            BlogPost post = new BlogPost("title", "author", "content", List.of());
+            post.setId("post-" + version);
+            post.setVersion(version);
+            posts.add(post);
+        }
+
+        new RevisionService(mongoTemplate, chunkStore, 3).record(posts);
+
+        ArgumentCaptor<Query> removed = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(mongoTemplate).remove(removed.capture(), Mockito.eq(Revision.class));
+        //versions 0 to 7 of the second post, the first has no more than 3 yet
+        Assertions.assertThat(removed.getValue().getQueryObject()).isEqualTo(new Document("$or", List.of(
+                new Document("postId", "post-10").append("version", new Document("$lte", 7L)))));
+    }
+
+    @Test
+    public void postsKeepTheManifestAndPutTheContentTogetherWhenUsed() {
+        ContentChunkStore chunkStore = store(false, DataSize.ofMegabytes(1));
+        MappingMongoConverter converter = converter(chunkStore);
+
+        BlogPost post = new BlogPost("title", "author", text(5000, 4), List.of("tag"));
+        post.setStoredContent(chunkStore.store(post.getStoredContent()));
+        Document document = new Document();
+        converter.write(post, document);
+
+        Document manifest = document.get("content", Document.class);
+        Assertions.assertThat(manifest.getList("chunks", String.class)).isEqualTo(post.getStoredContent().chunks());
+        BlogPost read = converter.read(BlogPost.class, document);
+        Assertions.assertThat(read.getStoredContent().isLoaded()).isFalse();
+        Assertions.assertThat(read.getContent()).isEqualTo(post.getContent());
+    }
+}
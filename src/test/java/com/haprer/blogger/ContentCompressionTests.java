@@ -0,0 +1,133 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.configurations.CompressedContentConverter;
+import com.haprer.blogger.configurations.ContentCompressionConfig;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostContent;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for compressing the content of posts in mongo - no database, only spring data's mapping
+ */
+public class ContentCompressionTests {
+
+    private static final String[] WORDS = ("the a of to and in is it that for on with as was this be by are at from "
+            + "post blog write code mongo index query cache server request response latency memory disk page reader "
+            + "spring data document field value stored compressed content author title tag feed search result").split(" ");
+
+    private static MappingMongoConverter converter(boolean enabled) {
+        MongoCustomConversions conversions = new ContentCompressionConfig()
+                .mongoCustomConversions(new CompressedContentConverter(enabled, 1024, 6));
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    //something like a long post - words with punctuation and paragraphs
+    private static String text(int words) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(i % 200 == 0 ? ".\n\n" : i % 15 == 0 ? ". " : " ");
+        }
+        return text.toString();
+    }
+
+    private static BlogPost post(String content) {
+        BlogPost post = new BlogPost("title", "author", content, List.of("tag"));
+        post.setTimestamp(Instant.parse("2024-01-01T00:00:00Z"));
+        post.setVersion(0L);
+        return post;
+    }
+
+    private static int bsonSize(Document document) {
+        return new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().remaining();
+    }
+
+    @Test
+    public void longContentIsStoredCompressedAndReadBack() {
+        MappingMongoConverter converter = converter(true);
+        BlogPost post = post(text(2000));
+        Document document = new Document();
+        converter.write(post, document);
+
+        Assertions.assertThat(document.get("content")).isInstanceOf(Binary.class);
+        BlogPost read = converter.read(BlogPost.class, document);
+        Assertions.assertThat(read.contentLength()).isEqualTo(post.getContent().length());
+        Assertions.assertThat(read.getContent()).isEqualTo(post.getContent());
+        Assertions.assertThat(read.getExcerpt()).isEqualTo(post.getExcerpt());
+    }
+
+    @Test
+    public void compressedContentIsOnlyInflatedWhenUsed() {
+        String text = text(500) + " é中😀";
+        PostContent content = PostContent.ofCompressed(PostContent.compress(text, 6));
+
+        Assertions.assertThat(content.compressed()).isNotNull();
+        Assertions.assertThat(content.text()).isEqualTo(text);
+        Assertions.assertThat(content.compressed()).isNull();
+    }
+
+    @Test
+    public void shortOrUncompressedContentIsAString() {
+        Document small = new Document();
+        converter(true).write(post("short post"), small);
+        Assertions.assertThat(small.get("content")).isEqualTo("short post");
+
+        //turned off, posts are saved as strings and the compressed ones are still read
+        Document large = new Document();
+        converter(true).write(post(text(2000)), large);
+        MappingMongoConverter off = converter(false);
+        BlogPost read = off.read(BlogPost.class, large);
+        Document written = new Document();
+        off.write(read, written);
+        Assertions.assertThat(written.get("content")).isEqualTo(text(2000));
+    }
+
+    @Test
+    public void contentSetByAnUpdateIsCompressed() {
+        MappingMongoConverter converter = converter(true);
+        Document update = new UpdateMapper(converter).getMappedObject(new Update().set("content", text(2000)).getUpdateObject(),
+                converter.getMappingContext().getPersistentEntity(BlogPost.class));
+
+        Assertions.assertThat(update.get("$set", Document.class).get("content")).isInstanceOf(Binary.class);
+    }
+
+    /**
+     * What a find of one post reads from mongo - the document's BSON - with and without compression.
+     * For this text a 2000 word post goes from 11526 to 3562 bytes - real prose compresses less, the JDK's
+     * GPL license text cut to 2000 words goes from 12390 to 4851.
+     */
+    @Test
+    public void compressionShrinksTheDocumentsRead() {
+        for (int words : new int[]{300, 2000, 10000}) {
+            BlogPost post = post(text(words));
+            Document plain = new Document();
+            converter(false).write(post, plain);
+            Document compressed = new Document();
+            converter(true).write(post, compressed);
+
+            Assertions.assertThat(bsonSize(compressed)).isLessThan(bsonSize(plain) * 6 / 10);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.services.ContentVersions;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+
+/**
+ * Tests for the list ETag stamps, with content_versions mocked out, and for reading back the post ETags sent in If-Match
+ */
+public class ContentVersionsTests {
+
+    private final Document saved = new Document("_id", "posts").append("epoch", 1700000000000L).append("version", 0L)
+            .append("lastModified", new Date(1700000000000L));
+    private boolean down = false;
+
+    //every node shares the one stamp, moved on when the update pipeline adds to the version
+    @SuppressWarnings("unchecked")
+    private ContentVersions node() {
+        MongoTemplate mongoTemplate = Mockito.mock(MongoTemplate.class);
+        MongoCollection<Document> collection = Mockito.mock(MongoCollection.class);
+        Mockito.when(mongoTemplate.getCollection(ContentVersions.COLLECTION)).thenReturn(collection);
+        Mockito.when(collection.findOneAndUpdate(any(Bson.class), anyList(), any(FindOneAndUpdateOptions.class)))
+                .thenAnswer(invocation -> {
+                    if (down) {
+                        throw new MongoTimeoutException("mongo is down");
+                    }
+                    List<Document> pipeline = invocation.getArgument(1);
+                    Object version = pipeline.getFirst().get("$set", Document.class).get("version");
+                    if (version instanceof Document add && add.containsKey("$add")) {
+                        saved.put("version", saved.getLong("version") + 1);
+                        saved.put("lastModified", new Date(saved.getDate("lastModified").getTime() + 1000));
+                    }
+                    return new Document(saved);
+                });
+        ContentVersions contentVersions = new ContentVersions(mongoTemplate);
+        contentVersions.initialize();
+        return contentVersions;
+    }
+
+    @Test
+    public void everyNodeHandsOutTheSameETag() {
+        ContentVersions writer = node();
+        ContentVersions reader = node();
+        Assertions.assertThat(reader.postsETag()).isEqualTo(writer.postsETag());
+
+        writer.postsChanged();
+        Assertions.assertThat(writer.postsETag()).isEqualTo("\"posts-1700000000000-1\"");
+        //the change stream passes the stamp on to the other node, and echoes it back to the writer
+        reader.contentVersionsChanged(List.of(new Document(saved)));
+        writer.contentVersionsChanged(List.of(new Document(saved).append("version", 0L)));
+
+        Assertions.assertThat(reader.postsETag()).isEqualTo(writer.postsETag());
+        Assertions.assertThat(reader.postsLastModified()).isEqualTo(writer.postsLastModified());
+        //and a node that starts now reads the stamp the writer left
+        ContentVersions started = node();
+        Assertions.assertThat(started.postsETag()).isEqualTo(writer.postsETag());
+    }
+
+    @Test
+    public void aStampThatCouldNotBeSavedIsOnlyThisNodes() {
+        ContentVersions writer = node();
+        ContentVersions reader = node();
+        down = true;
+        writer.postsChanged();
+        String unsaved = writer.postsETag();
+
+        Assertions.assertThat(unsaved).isNotEqualTo(reader.postsETag()).startsWith("\"posts-1700000000000-0-");
+        //an echo of the stamp from before doesn't bring the old ETag back
+        writer.contentVersionsChanged(List.of(new Document(saved)));
+        Assertions.assertThat(writer.postsETag()).isEqualTo(unsaved);
+
+        down = false;
+        reader.postsChanged();
+        writer.contentVersionsChanged(List.of(new Document(saved)));
+        Assertions.assertThat(writer.postsETag()).isEqualTo(reader.postsETag());
+    }
+
+    @Test
+    public void aPostETagReadsBackAsItsIdAndVersion() {
+        String etag = ContentVersions.postETag("my-first-post", 7L);
+
+        Assertions.assertThat(ContentVersions.parsePostETag(etag))
+                .isEqualTo(new ContentVersions.PostVersion("my-first-post", 7));
+        Assertions.assertThat(ContentVersions.parsePostETag(null)).isNull();
+        Assertions.assertThat(ContentVersions.parsePostETag("*")).isNull();
+    }
+
+    @Test
+    public void weakListedOrForeignETagsAreRejected() {
+        for (String etag : new String[] {"W/\"id-1\"", "\"id-1\", \"id-2\"", "\"id-x\"", "\"posts\"", "id-1", "\"-1\""}) {
+            Assertions.assertThatThrownBy(() -> ContentVersions.parsePostETag(etag))
+                    .as(etag)
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+}
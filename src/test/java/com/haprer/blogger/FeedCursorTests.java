@@ -0,0 +1,45 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.FeedCursor;
+import org.assertj.core.api.Assertions;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Tests for the keyset pagination cursor, no database needed
+ */
+public class FeedCursorTests {
+
+    @Test
+    public void aCursorDecodesToWhereItWasMade() {
+        BlogPost post = new BlogPost("title", "author", "content", List.of("tag"));
+        ReflectionTestUtils.setField(post, "id", new ObjectId().toHexString());
+
+        FeedCursor cursor = FeedCursor.decode(FeedCursor.after(post).encode());
+
+        Assertions.assertThat(cursor.getTimestamp()).isEqualTo(post.getTimestamp().truncatedTo(ChronoUnit.MILLIS));
+        Assertions.assertThat(cursor.getId().toHexString()).isEqualTo(post.getId());
+    }
+
+    @Test
+    public void aPostWithAnIdThatIsNotAnObjectIdStillMakesACursor() {
+        BlogPost post = new BlogPost("title", "author", "content", List.of("tag"));
+        ReflectionTestUtils.setField(post, "id", "my-first-post");
+
+        FeedCursor cursor = FeedCursor.after(post);
+
+        Assertions.assertThat(cursor.getTimestamp()).isEqualTo(post.getTimestamp());
+        Assertions.assertThat(cursor.getId()).isEqualTo(new ObjectId(new byte[12]));
+    }
+
+    @Test
+    public void aTokenThatWasNotMadeByEncodeIsRejected() {
+        Assertions.assertThatThrownBy(() -> FeedCursor.decode("bm90LWEtY3Vyc29y"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
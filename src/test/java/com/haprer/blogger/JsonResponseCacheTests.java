@@ -0,0 +1,69 @@
+package com.haprer.blogger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haprer.blogger.configurations.JacksonConfig;
+import com.haprer.blogger.controllers.JsonResponseCache;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests for the serialized response cache - no database needed
+ */
+public class JsonResponseCacheTests {
+
+    private final ObjectMapper objectMapper = new JacksonConfig().objectMapper();
+    private final JsonResponseCache cache = new JsonResponseCache(objectMapper, DataSize.ofMegabytes(1));
+
+    private ServletWebRequest request(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/populartags");
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return new ServletWebRequest(request);
+    }
+
+    @Test
+    public void bodyIsSerializedOnce() throws Exception {
+        AtomicInteger serialized = new AtomicInteger();
+        List<TagCount> tags = List.of(new TagCount("java", 2));
+
+        ResponseEntity<Object> first = cache.respond("key", HttpStatus.OK, request(null), () -> {
+            serialized.incrementAndGet();
+            return tags;
+        });
+        ResponseEntity<Object> second = cache.respond("key", HttpStatus.OK, request(null), () -> {
+            serialized.incrementAndGet();
+            return tags;
+        });
+
+        Assertions.assertThat(serialized.get()).isEqualTo(1);
+        Assertions.assertThat((byte[]) second.getBody()).isEqualTo((byte[]) first.getBody());
+        Assertions.assertThat(objectMapper.readValue((byte[]) first.getBody(), TagCount[].class)).containsExactly(tags.getFirst());
+    }
+
+    @Test
+    public void gzipIsServedWhenAccepted() throws Exception {
+        List<TagCount> tags = List.of(new TagCount("java", 2));
+        byte[] identity = (byte[]) cache.<Object>respond("key", HttpStatus.OK, request(null), () -> tags).getBody();
+
+        ResponseEntity<Object> gzipped = cache.respond("key", HttpStatus.OK, request("br, gzip;q=0.8"), () -> tags);
+        Assertions.assertThat(gzipped.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream((byte[]) gzipped.getBody()))) {
+            Assertions.assertThat(in.readAllBytes()).isEqualTo(identity);
+        }
+
+        ResponseEntity<Object> refused = cache.respond("key", HttpStatus.OK, request("gzip;q=0"), () -> tags);
+        Assertions.assertThat(refused.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)).isFalse();
+    }
+}
@@ -0,0 +1,56 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.configurations.MongoIndexConfig;
+import com.haprer.blogger.data.BlogPost;
+import com.mongodb.client.MongoDatabase;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+
+/**
+ * Tests that the index check explains the queries the repository methods really send - mongo is mocked out
+ * and answers every explain with an index scan
+ */
+public class MongoIndexConfigTests {
+
+    @Test
+    public void theQueriesAreMadeFromTheRepositoryMethods() {
+        List<Document> explained = new ArrayList<>();
+        MongoTemplate mongoTemplate = Mockito.mock(MongoTemplate.class);
+        MongoDatabase db = Mockito.mock(MongoDatabase.class);
+        Mockito.when(mongoTemplate.getCollectionName(BlogPost.class)).thenReturn("blogPost");
+        Mockito.when(mongoTemplate.getDb()).thenReturn(db);
+        Mockito.when(db.runCommand(any(Bson.class))).thenAnswer(invocation -> {
+            explained.add(invocation.getArgument(0, Document.class).get("explain", Document.class));
+            return new Document("queryPlanner", new Document("winningPlan", new Document("stage", "IXSCAN")));
+        });
+
+        Assertions.assertThat(new MongoIndexConfig(mongoTemplate, false).findCollectionScans()).isEmpty();
+
+        Assertions.assertThat(explained)
+                .extracting(command -> command.containsKey("find") ? command.get("find") : command.get("delete"))
+                .containsOnly("blogPost");
+        Document byTitleAndAuthor = new Document("title", "value").append("author", "value");
+        Assertions.assertThat(explained).anySatisfy(command ->
+                Assertions.assertThat(command.get("filter")).isEqualTo(byTitleAndAuthor));
+        Assertions.assertThat(explained).anySatisfy(command ->
+                Assertions.assertThat(command.getList("deletes", Document.class))
+                        .containsExactly(new Document("q", byTitleAndAuthor).append("limit", 0)));
+        //the @Query filter of findFeedAfter, with the same value for both uses of ?0
+        Document feedAfter = explained.stream()
+                .filter(command -> command.get("filter", new Document()).containsKey("$or"))
+                .findFirst().orElseThrow();
+        List<Document> or = feedAfter.get("filter", Document.class).getList("$or", Document.class);
+        Assertions.assertThat(or).hasSize(2);
+        Assertions.assertThat(or.get(0).get("timestamp", Document.class).get("$lt")).isEqualTo(or.get(1).get("timestamp"));
+        Assertions.assertThat(feedAfter.get("sort")).isEqualTo(new Document("timestamp", -1).append("_id", -1));
+    }
+}
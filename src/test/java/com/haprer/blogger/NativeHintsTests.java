@@ -0,0 +1,43 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.configurations.NativeHints;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.CursorPage;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+
+/**
+ * Tests that the native image hints cover what the app reads through reflection - no native image needed
+ */
+public class NativeHintsTests {
+
+    private final RuntimeHints hints = new RuntimeHints();
+
+    public NativeHintsTests() {
+        new NativeHints.Registrar().registerHints(hints, getClass().getClassLoader());
+    }
+
+    @Test
+    public void blogPostCanBeMappedAndSerialized() throws Exception {
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onConstructor(BlogPost.class.getDeclaredConstructor())).accepts(hints);
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onField(BlogPost.class.getDeclaredField("content"))).accepts(hints);
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onMethod(BlogPost.class, "getTitle")).accepts(hints);
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onMethod(CursorPage.class, "getContent")).accepts(hints);
+    }
+
+    @Test
+    public void tagCountIsMappedFromTheAggregation() throws Exception {
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onField(TagCount.class.getDeclaredField("tag"))).accepts(hints);
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onConstructor(TagCount.class.getDeclaredConstructor())).accepts(hints);
+        Assertions.assertThat(RuntimeHintsPredicates.reflection()
+                .onMethod(BlogPostRepository.class, "findMostPopularTags").introspect()).accepts(hints);
+    }
+}
@@ -0,0 +1,105 @@
+package com.haprer.blogger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the native executable and the jar of the same build, and compares how long each takes to answer its
+ * first request and how much memory (RSS) it uses then. Neither needs mongo - the request goes to an endpoint
+ * that doesn't use it. Linux only, RSS is read from /proc.
+ * Not part of the normal build - mvn verify -Pnative runs it after building the executable.
+ */
+@Tag("native")
+public class NativeSmokeTests {
+
+    private static final String PATH = System.getProperty("smoke.path", "/admin/slow-queries");
+    private static final Duration TIMEOUT = Duration.ofMinutes(2);
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+    /**
+     * @param firstResponse - from starting the process to the first response
+     * @param rssKb - resident memory after the first response
+     */
+    private record Run(Duration firstResponse, long rssKb) {}
+
+    @Test
+    public void nativeStartsFasterAndSmallerThanTheJvm() throws Exception {
+        Path executable = Path.of(System.getProperty("smoke.native", "target/blogger"));
+        Path jar = Path.of(System.getProperty("smoke.jar", "target/blogger-0.0.1-SNAPSHOT.jar"));
+        Assertions.assertThat(executable).isExecutable();
+        Assertions.assertThat(jar).exists();
+
+        Run jvm = run(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-jar", jar.toString()));
+        Run nativeImage = run(List.of(executable.toString()));
+
+        String report = String.format("""
+                {"jvm": {"firstResponseMs": %d, "rssKb": %d}, "native": {"firstResponseMs": %d, "rssKb": %d}}
+                """, jvm.firstResponse().toMillis(), jvm.rssKb(), nativeImage.firstResponse().toMillis(), nativeImage.rssKb());
+        Files.writeString(Path.of("target", "native-smoke.json"), report);
+
+        Assertions.assertThat(nativeImage.firstResponse()).isLessThan(jvm.firstResponse());
+        Assertions.assertThat(nativeImage.rssKb()).isLessThan(jvm.rssKb());
+    }
+
+    private Run run(List<String> command) throws Exception {
+        int port = freePort();
+        List<String> arguments = new ArrayList<>(command);
+        arguments.add("--server.port=" + port);
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(arguments)
+                .redirectErrorStream(true)
+                .redirectOutput(Path.of("target", "native-smoke-" + Path.of(command.get(0)).getFileName() + ".log").toFile())
+                .start();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + PATH)).build();
+            while (true) {
+                Assertions.assertThat(process.isAlive()).as("%s exited before answering", command.get(0)).isTrue();
+                Assertions.assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(TIMEOUT);
+                try {
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    Assertions.assertThat(response.statusCode()).isEqualTo(200);
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(10);     //not listening yet
+                }
+            }
+            Duration firstResponse = Duration.ofNanos(System.nanoTime() - start);
+            return new Run(firstResponse, rssKb(process.pid()));
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static long rssKb(long pid) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        throw new IllegalStateException("No VmRSS for process " + pid);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.services.PopularTagIndex;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for the in memory tag ranking - no database needed
+ */
+public class PopularTagIndexTests {
+
+    private PopularTagIndex index;
+
+    @BeforeEach
+    public void setup() {
+        index = new PopularTagIndex();
+        index.load(List.of(
+                new TagCount("spring", 5),
+                new TagCount("java", 8),
+                new TagCount("sports", 2),
+                new TagCount("spa", 2),
+                new TagCount("mongo", 1)));
+    }
+
+    @Test
+    public void topKIsMostUsedFirst() {
+        Assertions.assertThat(index.top(3, null)).containsExactly(
+                new TagCount("java", 8),
+                new TagCount("spring", 5),
+                new TagCount("spa", 2));   //ties are alphabetical
+    }
+
+    @Test
+    public void prefixOnlyMatchesTagsStartingWithIt() {
+        Assertions.assertThat(index.top(10, "sp")).containsExactly(
+                new TagCount("spring", 5),
+                new TagCount("spa", 2),
+                new TagCount("sports", 2));
+        Assertions.assertThat(index.top(1, "sp")).containsExactly(new TagCount("spring", 5));
+        Assertions.assertThat(index.top(10, "x")).isEmpty();
+    }
+
+    @Test
+    public void deltasMoveTagsInTheRanking() {
+        index.apply(Map.of("mongo", 9L, "java", -8L));
+
+        Assertions.assertThat(index.top(10, "")).containsExactly(
+                new TagCount("mongo", 10),
+                new TagCount("spring", 5),
+                new TagCount("spa", 2),
+                new TagCount("sports", 2));
+    }
+
+    @Test
+    public void countsReplaceTheOldOnes() {
+        index.set(Map.of("mongo", 6L, "java", 0L, "kotlin", 3L));
+
+        Assertions.assertThat(index.top(10, "")).containsExactly(
+                new TagCount("mongo", 6),
+                new TagCount("spring", 5),
+                new TagCount("kotlin", 3),
+                new TagCount("spa", 2),
+                new TagCount("sports", 2));
+    }
+
+    @Test
+    public void deltasAreIgnoredUntilLoaded() {
+        PopularTagIndex empty = new PopularTagIndex();
+        empty.apply(Map.of("java", 1L));
+
+        Assertions.assertThat(empty.isLoaded()).isFalse();
+        Assertions.assertThat(empty.top(10, null)).isEmpty();
+    }
+
+    @Test
+    public void topHandsOutCopies() {
+        index.top(1, null).get(0).setCount(100);
+
+        Assertions.assertThat(index.top(1, null)).containsExactly(new TagCount("java", 8));
+    }
+
+    @Test
+    public void countsSetWhileLoadingAreSetAfterTheLoad() {
+        PopularTagIndex loading = new PopularTagIndex();
+        loading.load(() -> {
+            loading.set(Map.of("java", 9L, "kotlin", 1L));    //from another node, while the counts are read
+            return List.of(new TagCount("java", 8), new TagCount("mongo", 1));
+        });
+
+        Assertions.assertThat(loading.top(10, null)).containsExactly(
+                new TagCount("java", 9),
+                new TagCount("kotlin", 1),
+                new TagCount("mongo", 1));
+    }
+
+    @Test
+    public void deltasWaitForTheCountsToBeRead() throws Exception {
+        PopularTagIndex loading = new PopularTagIndex();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        AtomicBoolean written = new AtomicBoolean();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<?> load = executor.submit(() -> loading.load(() -> {
+                reading.countDown();
+                try {
+                    read.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return List.of(new TagCount("java", 8));
+            }));
+            reading.await();
+            Future<?> delta = executor.submit(() -> loading.apply(Map.of("java", 1L), () -> written.set(true)));
+
+            Thread.sleep(Duration.ofMillis(100));
+            Assertions.assertThat(written).isFalse();
+            read.countDown();
+            load.get(5, TimeUnit.SECONDS);
+            delta.get(5, TimeUnit.SECONDS);
+        }
+        Assertions.assertThat(written).isTrue();
+        Assertions.assertThat(loading.top(10, null)).containsExactly(new TagCount("java", 9));
+    }
+}
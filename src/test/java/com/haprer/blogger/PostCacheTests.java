@@ -0,0 +1,104 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.PostCache;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the post cache - no database needed, the loaders stand in for the repository
+ */
+public class PostCacheTests {
+
+    private final PostCache cache = new PostCache(DataSize.ofKilobytes(64), 1000, Duration.ofMinutes(10));
+
+    private BlogPost post(String id, String title, String content) {
+        BlogPost post = new BlogPost(title, "author", content, List.of("tag"));
+        ReflectionTestUtils.setField(post, "id", id);
+        return post;
+    }
+
+    @Test
+    public void secondReadIsAHit() {
+        AtomicInteger loads = new AtomicInteger();
+        BlogPost post = post("1", "title", "content");
+
+        for (int i = 0; i < 3; i++) {
+            cache.findByTitleAndAuthor("title", "author", () -> {
+                loads.incrementAndGet();
+                return Optional.of(post);
+            });
+        }
+        //the title lookup also fills the id cache
+        Assertions.assertThat(cache.findById("1", id -> Optional.empty())).contains(post);
+
+        Assertions.assertThat(loads.get()).isEqualTo(1);
+        Assertions.assertThat(cache.stats().getFirst().getHits()).isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    public void invalidateForgetsOldTitle() {
+        BlogPost post = post("1", "old", "content");
+        cache.findByTitleAndAuthor("old", "author", () -> Optional.of(post));
+
+        cache.invalidate("1", "old", "author");
+
+        AtomicInteger loads = new AtomicInteger();
+        Optional<BlogPost> found = cache.findByTitleAndAuthor("old", "author", () -> {
+            loads.incrementAndGet();
+            return Optional.empty();
+        });
+        Assertions.assertThat(found).isEmpty();
+        Assertions.assertThat(loads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void aLoadAWriteOverlapsIsNotCached() {
+        BlogPost stale = post("1", "title", "before the write");
+        BlogPost other = post("2", "other", "content");
+        //the loaders are where the writes happen, after the load started
+        cache.findById("1", id -> {
+            cache.invalidate("1", "title", "author");
+            return Optional.of(stale);
+        });
+        cache.findByTitleAndAuthor("other", "author", () -> {
+            cache.invalidate("1", "title", "author");
+            return Optional.of(other);
+        });
+
+        AtomicInteger loads = new AtomicInteger();
+        BlogPost fresh = post("1", "title", "after the write");
+        Assertions.assertThat(cache.findById("1", id -> {
+            loads.incrementAndGet();
+            return Optional.of(fresh);
+        })).contains(fresh);
+        //a write to another post doesn't keep this one out of the cache
+        Assertions.assertThat(cache.findByTitleAndAuthor("other", "author", () -> {
+            loads.incrementAndGet();
+            return Optional.empty();
+        })).contains(other);
+        Assertions.assertThat(cache.findById("1", id -> Optional.empty())).contains(fresh);
+        Assertions.assertThat(loads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void memoryIsBoundedByContentSize() {
+        //each post is ~16KB so at most 4 fit in 64KB
+        String content = "x".repeat(16 * 1024);
+        for (int i = 0; i < 20; i++) {
+            BlogPost post = post("" + i, "title" + i, content);
+            cache.findById(post.getId(), id -> Optional.of(post));
+        }
+
+        Assertions.assertThat(cache.stats().getFirst().getEntries()).isLessThanOrEqualTo(4);
+        Assertions.assertThat(cache.stats().getFirst().getWeight()).isLessThanOrEqualTo(64 * 1024);
+        Assertions.assertThat(cache.stats().getFirst().getEvictions()).isGreaterThan(0);
+    }
+}
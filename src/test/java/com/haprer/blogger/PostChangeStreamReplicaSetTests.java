@@ -0,0 +1,115 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BlogService;
+import com.haprer.blogger.services.PostChangeStream;
+import com.haprer.blogger.services.TagCountService;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests for following other nodes' writes - the container is a single node replica set, and the other node
+ * is this test writing to the collections directly
+ */
+@SpringBootTest(properties = {"blogger.change-stream.node=test", "blogger.change-stream.max-delay=50ms"})
+@Testcontainers
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class PostChangeStreamReplicaSetTests {
+
+    @Container
+    private static MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:latest");
+
+    @DynamicPropertySource
+    static void setMongoDbProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.data.mongodb.uri", mongoDBContainer::getReplicaSetUrl);
+    }
+
+    @Autowired
+    BlogService blogService;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    PostChangeStream postChangeStream;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        blogService.deleteAll();
+        Assertions.assertThat(waitFor(postChangeStream::isFollowing)).isTrue();
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    @Test
+    public void cachedPostsFollowOtherNodesWrites() throws Exception {
+        BlogPost post = blogService.save(new BlogPost("title", "author", "content", List.of("tag")));
+        String id = post.getId();
+        //cached on this node
+        Assertions.assertThat(blogService.findByTitleAndAuthor("title", "author")).isPresent();
+
+        //another node edits it
+        mongoTemplate.getCollection("blogPost").updateOne(Filters.eq("_id", new ObjectId(id)),
+                Updates.combine(Updates.set("title", "edited"), Updates.inc("version", 1L)));
+        Assertions.assertThat(waitFor(() -> blogService.findById(id).map(BlogPost::getTitle)
+                .filter("edited"::equals).isPresent())).isTrue();
+        Assertions.assertThat(blogService.findByTitleAndAuthor("title", "author")).isEmpty();
+
+        //and deletes it
+        mongoTemplate.getCollection("blogPost").deleteOne(Filters.eq("_id", new ObjectId(id)));
+        Assertions.assertThat(waitFor(() -> blogService.findById(id).isEmpty())).isTrue();
+    }
+
+    @Test
+    public void popularTagsFollowOtherNodesCounts() throws Exception {
+        blogService.save(new BlogPost("title", "author", "content", List.of("local")));
+
+        mongoTemplate.getCollection(TagCountService.COLLECTION)
+                .insertOne(new Document("_id", "remote").append("count", 7L));
+        Assertions.assertThat(waitFor(() -> blogService.findMostPopularTags(1, null)
+                .equals(List.of(new TagCount("remote", 7))))).isTrue();
+
+        mongoTemplate.getCollection(TagCountService.COLLECTION).deleteOne(Filters.eq("_id", "remote"));
+        Assertions.assertThat(waitFor(() -> blogService.findMostPopularTags(10, null)
+                .equals(List.of(new TagCount("local", 1))))).isTrue();
+    }
+
+    @Test
+    public void whereTheStreamGotToIsSaved() throws Exception {
+        blogService.save(new BlogPost("title", "author", "content", List.of("tag")));
+        mongoTemplate.getCollection("blogPost").insertOne(new Document("title", "remote").append("author", "author"));
+
+        Assertions.assertThat(waitFor(() -> Optional.ofNullable(mongoTemplate.getCollection(PostChangeStream.TOKEN_COLLECTION)
+                .find(Filters.eq("_id", "test")).first()).map(saved -> saved.get("token")).isPresent())).isTrue();
+    }
+}
@@ -0,0 +1,178 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.PostChange;
+import com.haprer.blogger.services.PostChangeListener;
+import com.haprer.blogger.services.PostChangeStream;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Tests for passing the changes other nodes make on to the listeners - the events are built by hand,
+ * no change stream is opened
+ */
+public class PostChangeStreamTests {
+
+    private final List<Object> received = new ArrayList<>();
+
+    //records what it is told, in order
+    private final PostChangeListener listener = new PostChangeListener() {
+        @Override
+        public void postsChanged(List<PostChange> changes) {
+            received.add(changes.stream().map(change -> change.isDeleted() ? "-" + change.getId()
+                    : change.getId() + "@" + change.getPost().getVersion()).toList());
+        }
+
+        @Override
+        public void tagCountsChanged(Map<String, Long> counts) {
+            received.add(counts);
+        }
+
+        @Override
+        public void tagCountsReplaced() {
+            received.add("replaced");
+        }
+
+        @Override
+        public void contentVersionsChanged(List<Document> stamps) {
+            received.add(stamps.stream().map(stamp -> stamp.get("_id") + "@" + stamp.get("version")).toList());
+        }
+
+        @Override
+        public void reset() {
+            received.add("reset");
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    private PostChangeStream stream(PostChangeListener... listeners) {
+        MongoTemplate mongoTemplate = Mockito.mock(MongoTemplate.class);
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        Mockito.when(mongoTemplate.getConverter()).thenReturn(converter);
+        Mockito.when(mongoTemplate.getCollectionName(BlogPost.class)).thenReturn("blogPost");
+        ObjectProvider<PostChangeListener> provider = Mockito.mock(ObjectProvider.class);
+        Mockito.when(provider.orderedStream()).thenAnswer(invocation -> Stream.of(listeners));
+        return new PostChangeStream(mongoTemplate, provider, new SimpleMeterRegistry(), true, 500,
+                Duration.ofMillis(100), "test", Duration.ofSeconds(10));
+    }
+
+    private static ChangeStreamDocument<Document> event(String type, String collection, BsonValue id, Document full) {
+        BsonDocument namespace = new BsonDocument("db", new BsonString("blogdb")).append("coll", new BsonString(collection));
+        return new ChangeStreamDocument<>(type, new BsonDocument("_data", new BsonString(new ObjectId().toHexString())),
+                namespace, null, full, null, id == null ? null : new BsonDocument("_id", id),
+                null, null, null, null, null, null, null);
+    }
+
+    private static ChangeStreamDocument<Document> written(String type, ObjectId id, long version) {
+        Document post = new Document("_id", id).append("title", "title").append("author", "author")
+                .append("content", "content").append("version", version);
+        return event(type, "blogPost", new BsonObjectId(id), post);
+    }
+
+    private static ChangeStreamDocument<Document> tagCount(String tag, Long count) {
+        return event(count == null ? "delete" : "update", "tag_counts", new BsonString(tag),
+                count == null ? null : new Document("_id", tag).append("count", count));
+    }
+
+    @Test
+    public void onlyTheLastChangeOfEachPostIsPassedOn() {
+        ObjectId edited = new ObjectId();
+        ObjectId deleted = new ObjectId();
+        stream(listener).dispatch(List.of(
+                written("insert", edited, 0),
+                written("insert", deleted, 0),
+                written("update", edited, 1),
+                event("delete", "blogPost", new BsonObjectId(deleted), null),
+                written("update", edited, 2),
+                tagCount("java", 3L),
+                tagCount("spring", null)));
+
+        Assertions.assertThat(received).containsExactly(
+                List.of(edited.toHexString() + "@2", "-" + deleted.toHexString()),
+                Map.of("java", 3L, "spring", 0L));
+    }
+
+    @Test
+    public void stampsArePassedOnAfterWhatTheyStamp() {
+        ObjectId id = new ObjectId();
+        stream(listener).dispatch(List.of(
+                event("update", "content_versions", new BsonString("posts"), new Document("_id", "posts").append("version", 4L)),
+                written("update", id, 3),
+                event("update", "content_versions", new BsonString("posts"), new Document("_id", "posts").append("version", 5L))));
+
+        Assertions.assertThat(received).containsExactly(List.of(id.toHexString() + "@3"), List.of("posts@5"));
+    }
+
+    @Test
+    public void thisNodesOwnWritesAreSkipped() {
+        ObjectId local = new ObjectId();
+        ObjectId localDeleted = new ObjectId();
+        ObjectId remote = new ObjectId();
+        PostChangeStream stream = stream(listener);
+        BlogPost saved = new BlogPost("title", "author", "content", List.of());
+        saved.setId(local.toHexString());
+        saved.setVersion(1L);
+        stream.localWrites(List.of(saved));
+        stream.localDeletes(List.of(localDeleted.toHexString()));
+
+        stream.dispatch(List.of(written("update", local, 1), written("update", remote, 4),
+                event("delete", "blogPost", new BsonObjectId(localDeleted), null)));
+        //another node wrote the post after this one
+        stream.dispatch(List.of(written("update", local, 2)));
+
+        Assertions.assertThat(received).containsExactly(
+                List.of(remote.toHexString() + "@4"),
+                List.of(local.toHexString() + "@2"));
+    }
+
+    @Test
+    public void droppedPostsResetAndRebuiltCountsAreReloaded() {
+        PostChangeStream stream = stream(listener);
+        ChangeStreamDocument<Document> rename = new ChangeStreamDocument<>("rename", null,
+                new BsonDocument("db", new BsonString("blogdb")).append("coll", new BsonString("tag_counts_rebuild")),
+                new BsonDocument("db", new BsonString("blogdb")).append("coll", new BsonString("tag_counts")),
+                null, null, null, null, null, null, null, null, null, null);
+        stream.dispatch(List.of(tagCount("java", 1L), rename));
+        //a reset covers everything else in the batch
+        stream.dispatch(List.of(written("insert", new ObjectId(), 0), event("drop", "blogPost", null, null)));
+
+        Assertions.assertThat(received).containsExactly("replaced", "reset");
+    }
+
+    @Test
+    public void aFailingListenerDoesntStopTheOthers() {
+        PostChangeListener failing = Mockito.mock(PostChangeListener.class);
+        Mockito.doThrow(new IllegalStateException("failed")).when(failing).postsChanged(Mockito.anyList());
+        ObjectId id = new ObjectId();
+        stream(failing, listener).dispatch(List.of(written("insert", id, 0)));
+
+        Assertions.assertThat(received).containsExactly(List.of(id.toHexString() + "@0"));
+    }
+}
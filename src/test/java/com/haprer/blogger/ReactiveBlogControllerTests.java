@@ -0,0 +1,124 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BlogService;
+import com.jayway.jsonpath.JsonPath;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The API served by ReactiveBlogController in the reactive profile
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureWebTestClient
+@Testcontainers
+@ActiveProfiles({"test", "reactive"})
+class ReactiveBlogControllerTests {
+
+    @Container
+    private static MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:latest");
+
+    @DynamicPropertySource
+    static void setMongoDbProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.data.mongodb.uri", mongoDBContainer::getReplicaSetUrl);
+    }
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Autowired
+    private BlogService blogService;
+
+    @BeforeEach
+    void beforeEach() {
+        blogService.deleteAll();
+    }
+
+    @Test
+    void saveAndFind() {
+        BlogPost post = new BlogPost("Test Title", "Test Author", "Test content", List.of("Spring", "Test"));
+        webTestClient.post().uri("/save").contentType(MediaType.APPLICATION_JSON).bodyValue(post)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody().jsonPath("$.title").isEqualTo("Test Title");
+
+        String etag = webTestClient.get().uri("/find?title={title}&author={author}", "Test Title", "Test Author")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.FOUND)
+                .expectBody().jsonPath("$.content").isEqualTo("Test content")
+                .returnResult().getResponseHeaders().getETag();
+
+        webTestClient.get().uri("/find?title={title}&author={author}", "Test Title", "Test Author")
+                .header(HttpHeaders.IF_NONE_MATCH, etag)
+                .exchange()
+                .expectStatus().isNotModified();
+
+        webTestClient.get().uri("/find?title={title}&author={author}", "Missing", "Test Author")
+                .exchange()
+                .expectStatus().isNotFound();
+
+        webTestClient.get().uri("/populartags")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.length()").isEqualTo(2);
+    }
+
+    @Test
+    void cursorPagesAndStreamMatchTheFeed() {
+        List<BlogPost> posts = new ArrayList<>();
+        Instant now = Instant.now();
+        for (int i = 0; i < 25; i++) {
+            BlogPost post = new BlogPost("title " + i, "author", "content " + i, List.of("tag"));
+            post.setTimestamp(now.minusSeconds(i));
+            posts.add(post);
+        }
+        blogService.saveAll(posts);
+
+        List<String> paged = new ArrayList<>();
+        String cursor = "";
+        do {
+            String body = webTestClient.get().uri("/blogposts?cursor={cursor}&size=10", cursor)
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectBody(String.class).returnResult().getResponseBody();
+            paged.addAll(JsonPath.read(body, "$.content[*].title"));
+            cursor = JsonPath.read(body, "$.nextCursor");
+        } while (cursor != null);
+
+        List<String> streamed = webTestClient.get().uri("/blogposts/stream")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(BlogPost.class)     //summaries read fine as posts without content
+                .getResponseBody()
+                .map(BlogPost::getTitle)
+                .collectList()
+                .block();
+
+        List<String> expected = posts.stream().map(BlogPost::getTitle).toList();
+        Assertions.assertThat(paged).isEqualTo(expected);
+        Assertions.assertThat(streamed).isEqualTo(expected);
+
+        webTestClient.get().uri("/blogposts?cursor=not-a-cursor")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+}
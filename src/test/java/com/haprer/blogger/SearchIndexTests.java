@@ -0,0 +1,123 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.SearchResult;
+import com.haprer.blogger.services.SearchIndex;
+import com.haprer.blogger.services.SearchTokenizer;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests for the search index - no database needed
+ */
+public class SearchIndexTests {
+
+    private BlogPost post(String id, String title, String content, String... tags) {
+        BlogPost post = new BlogPost(title, "author", content, List.of(tags));
+        ReflectionTestUtils.setField(post, "id", id);
+        return post;
+    }
+
+    private List<String> ids(List<SearchResult> results) {
+        return results.stream().map(SearchResult::getId).toList();
+    }
+
+    private SearchIndex loaded(BlogPost... posts) {
+        SearchIndex index = new SearchIndex();
+        index.load(Stream.of(posts));
+        return index;
+    }
+
+    @Test
+    public void tokenizerStemsAndDropsStopWords() {
+        Assertions.assertThat(SearchTokenizer.tokenize("The Running of the Bulls, in 2024!"))
+                .containsExactly("run", "bull", "2024");
+        Assertions.assertThat(SearchTokenizer.tokenize("stories"))
+                .isEqualTo(SearchTokenizer.tokenize("story"));
+    }
+
+    @Test
+    public void titleMatchRanksAboveContentMatch() {
+        SearchIndex index = loaded(
+                post("1", "Cooking at home", "I mostly write about java here"),
+                post("2", "Java streams", "a post about collections"),
+                post("3", "Gardening", "nothing relevant"));
+
+        Assertions.assertThat(ids(index.search("java", 10))).containsExactly("2", "1");
+        Assertions.assertThat(ids(index.search("Streaming JAVA", 10))).startsWith("2");
+        Assertions.assertThat(index.search("kotlin", 10)).isEmpty();
+        Assertions.assertThat(index.search("the", 10)).isEmpty();
+    }
+
+    @Test
+    public void scoresAddUpAcrossTermsInALargeIndex() {
+        //every post has "garden", every 100th also "orchid" - the posts with both come first, each once
+        SearchIndex index = new SearchIndex();
+        index.load(IntStream.range(0, 5000).mapToObj(i ->
+                post(String.valueOf(i), "Post " + i, i % 100 == 0 ? "garden orchid" : "garden")));
+
+        List<SearchResult> rare = index.search("orchid", 100);
+        Assertions.assertThat(ids(rare)).hasSize(50).doesNotHaveDuplicates().allMatch(id -> Integer.parseInt(id) % 100 == 0);
+        List<SearchResult> both = index.search("orchid garden", 5000);
+        Assertions.assertThat(ids(both)).hasSize(5000).doesNotHaveDuplicates();
+        Assertions.assertThat(ids(both.subList(0, 50))).allMatch(id -> Integer.parseInt(id) % 100 == 0);
+        Assertions.assertThat(both.get(50).getScore()).isLessThan(both.get(49).getScore());
+    }
+
+    @Test
+    public void writesUpdateTheIndex() {
+        SearchIndex index = loaded(post("1", "Java", "content"), post("2", "Rust", "content"));
+
+        index.index(List.of(post("1", "Python", "content"), post("3", "More java", "content")));
+        Assertions.assertThat(ids(index.search("java", 10))).containsExactly("3");
+        Assertions.assertThat(ids(index.search("python", 10))).containsExactly("1");
+
+        index.remove(List.of("2"));
+        Assertions.assertThat(index.search("rust", 10)).isEmpty();
+        Assertions.assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void writesAreIgnoredUntilLoaded() {
+        SearchIndex index = new SearchIndex();
+        index.index(List.of(post("1", "Java", "content")));
+        Assertions.assertThat(index.isLoaded()).isFalse();
+        Assertions.assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        List<BlogPost> posts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            posts.add(post(String.valueOf(i), "title " + i, "some content about topic" + (i % 7), "tag" + (i % 3)));
+        }
+        SearchIndex index = new SearchIndex();
+        index.load(posts.stream());
+        index.remove(List.of("10", "20"));
+        index.index(List.of(post("30", "renamed", "other words", "tag9")));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeSnapshot(new DataOutputStream(bytes));
+        SearchIndex restored = new SearchIndex();
+        restored.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        Assertions.assertThat(restored.size()).isEqualTo(index.size());
+        for (String query : List.of("topic3 tag1", "renamed", "title 10", "tag9 content")) {
+            Assertions.assertThat(restored.search(query, 20)).isEqualTo(index.search(query, 20));
+        }
+
+        //the restored index can still be updated - it knows which terms each post has
+        restored.remove(List.of("30"));
+        Assertions.assertThat(restored.search("renamed", 10)).isEmpty();
+    }
+}
@@ -0,0 +1,171 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.configurations.SingleFlightProperties;
+import com.haprer.blogger.services.SingleFlight;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for collapsing identical reads - the reads are suppliers that wait on a latch, no database needed
+ */
+public class SingleFlightTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger leader = new AtomicInteger(-1);     //the request that ran the read
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private SingleFlight singleFlight(Duration timeout) {
+        SingleFlightProperties properties = new SingleFlightProperties();
+        properties.setDefaultTimeout(timeout);
+        return new SingleFlight(properties, registry);
+    }
+
+    //a read that doesn't finish until release is counted down
+    private String slowRead(String result) {
+        reads.incrementAndGet();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    private double requests(String result) {
+        return registry.counter("blogger.single-flight.requests", "group", "find", "result", result).count();
+    }
+
+    //starts the requests and waits until all but the one running the read are waiting on it
+    private List<Future<String>> start(ExecutorService executor, SingleFlight singleFlight, Object key, int requests)
+            throws InterruptedException {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            int request = i;
+            results.add(executor.submit(() -> singleFlight.execute("find", key, () -> {
+                leader.set(request);
+                return slowRead("post");
+            })));
+        }
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while ((requests("collapsed") < requests - 1 || reads.get() == 0) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return results;
+    }
+
+    @Test
+    public void identicalReadsShareOneQuery() throws Exception {
+        SingleFlight singleFlight = singleFlight(Duration.ofSeconds(10));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<String>> results = start(executor, singleFlight, List.of("title", "author", 1), 50);
+            //a different key is not held up
+            Assertions.assertThat(singleFlight.execute("find", List.of("title", "author", 2), () -> "other")).isEqualTo("other");
+            release.countDown();
+            for (Future<String> result : results) {
+                Assertions.assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("post");
+            }
+        }
+        Assertions.assertThat(reads.get()).isEqualTo(1);
+        Assertions.assertThat(requests("executed")).isEqualTo(2);
+        Assertions.assertThat(requests("collapsed")).isEqualTo(49);
+
+        //done - the next request reads again
+        singleFlight.execute("find", List.of("title", "author", 1), () -> slowRead("again"));
+        Assertions.assertThat(reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void aFailedReadFailsEveryRequestWaitingOnIt() throws Exception {
+        SingleFlight singleFlight = singleFlight(Duration.ofSeconds(10));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> first = executor.submit(() -> singleFlight.execute("find", "key", () -> {
+                slowRead("post");
+                throw new IllegalStateException("mongo is down");
+            }));
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (reads.get() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Future<String> second = executor.submit(() -> singleFlight.execute("find", "key", () -> "not run"));
+            while (requests("collapsed") < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<String> result : List.of(first, second)) {
+                Assertions.assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+                        .hasCauseInstanceOf(IllegalStateException.class)
+                        .hasRootCauseMessage("mongo is down");
+            }
+        }
+    }
+
+    @Test
+    public void requestsStopWaitingAfterTheTimeout() throws Exception {
+        SingleFlight singleFlight = singleFlight(Duration.ofMillis(500));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<String>> results = start(executor, singleFlight, "key", 3);
+            Assertions.assertThat(leader.get()).isBetween(0, 2);
+            for (int i = 0; i < results.size(); i++) {
+                if (i != leader.get()) {
+                    Future<String> waiting = results.get(i);
+                    Assertions.assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS))
+                            .hasCauseInstanceOf(QueryTimeoutException.class);
+                }
+            }
+            //the timed out read is given up on, a new request starts a new one
+            Assertions.assertThat(singleFlight.execute("find", "key", () -> "new")).isEqualTo("new");
+
+            //the request that ran the read still gets what it read
+            release.countDown();
+            Assertions.assertThat(results.get(leader.get()).get(5, TimeUnit.SECONDS)).isEqualTo("post");
+        }
+        Assertions.assertThat(requests("timed-out")).isEqualTo(2);
+    }
+
+    @Test
+    public void asynchronousReadsShareOneFutureAndCancelOnlyTheirCopy() throws Exception {
+        SingleFlight singleFlight = singleFlight(Duration.ofSeconds(10));
+        CompletableFuture<String> query = new CompletableFuture<>();
+        CompletableFuture<String> first = singleFlight.submit("find", "key", () -> {
+            reads.incrementAndGet();
+            return query;
+        });
+        CompletableFuture<String> second = singleFlight.submit("find", "key", () -> CompletableFuture.completedFuture("not run"));
+        CompletableFuture<String> third = singleFlight.submit("find", "key", () -> CompletableFuture.completedFuture("not run"));
+
+        first.cancel(true);
+        query.complete("post");
+
+        Assertions.assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("post");
+        Assertions.assertThat(third.get(5, TimeUnit.SECONDS)).isEqualTo("post");
+        Assertions.assertThat(reads.get()).isEqualTo(1);
+        Assertions.assertThat(requests("collapsed")).isEqualTo(2);
+    }
+
+    @Test
+    public void turnedOffEveryRequestReads() {
+        SingleFlightProperties properties = new SingleFlightProperties();
+        properties.setEnabled(false);
+        SingleFlight singleFlight = new SingleFlight(properties, registry);
+        release.countDown();
+        singleFlight.execute("find", "key", () -> slowRead("post"));
+        singleFlight.execute("find", "key", () -> slowRead("post"));
+
+        Assertions.assertThat(reads.get()).isEqualTo(2);
+    }
+}
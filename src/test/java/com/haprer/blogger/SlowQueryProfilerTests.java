@@ -0,0 +1,144 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.SlowQuery;
+import com.haprer.blogger.data.SlowQueryTotal;
+import com.haprer.blogger.services.SlowQueryProfiler;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.assertj.core.api.Assertions;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+/**
+ * Tests for the slow query profiler, fed with driver events - no database needed
+ */
+public class SlowQueryProfilerTests {
+
+    private static final ConnectionDescription CONNECTION = new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+    private static final BsonDocument REPLY = BsonDocument.parse("{cursor: {firstBatch: [{}, {}], id: 0}, ok: 1}");
+
+    //no explains, so the mongo client is never asked for
+    private final SlowQueryProfiler profiler = new SlowQueryProfiler(
+            new StaticListableBeanFactory().getBeanProvider(MongoClient.class),
+            Duration.ofMillis(100), 3, 0);
+
+    private int requestId = 0;
+
+    private void run(String command, long millis) {
+        run(profiler, command, millis);
+    }
+
+    private void run(SlowQueryProfiler profiler, String command, long millis) {
+        BsonDocument document = BsonDocument.parse(command);
+        String name = document.getFirstKey();
+        int id = ++requestId;
+        profiler.commandStarted(new CommandStartedEvent(null, 1, id, CONNECTION, "blogger", name, document));
+        profiler.commandSucceeded(new CommandSucceededEvent(null, 1, id, CONNECTION, "blogger", name,
+                REPLY, TimeUnit.MILLISECONDS.toNanos(millis)));
+    }
+
+    @Test
+    public void onlySlowCommandsAreKept() {
+        run("{find: 'blogPost', filter: {author: 'a'}}", 50);
+        run("{find: 'blogPost', filter: {author: 'b'}}", 150);
+
+        List<SlowQuery> recent = profiler.recent(10);
+        Assertions.assertThat(recent).hasSize(1);
+        Assertions.assertThat(recent.get(0).getCollection()).isEqualTo("blogPost");
+        Assertions.assertThat(recent.get(0).getDocumentsReturned()).isEqualTo(2);
+        Assertions.assertThat(recent.get(0).getMillis()).isEqualTo(150.0);
+    }
+
+    @Test
+    public void valuesAreRedacted() {
+        run("{find: 'blogPost', filter: {title: 'secret', tags: {$all: ['x', 'y']}}, sort: {timestamp: -1}}", 200);
+        run("{aggregate: 'blogPost', pipeline: [{$unwind: '$tags'}, {$match: {author: 'someone', title: '$money'}}]}", 200);
+
+        List<SlowQuery> recent = profiler.recent(10);
+        Assertions.assertThat(recent.get(1).getShape())
+                .doesNotContain("secret", "\"x\"")
+                .contains("\"title\": \"?\"", "\"$all\": [\"?\"]", "\"timestamp\": -1");
+        //a value that starts with $ is still a value
+        Assertions.assertThat(recent.get(0).getShape())
+                .doesNotContain("someone", "$money", "$tags")
+                .contains("\"$unwind\": \"?\"", "\"$match\"");
+    }
+
+    @Test
+    public void getMoreIsRecordedOnItsCollection() {
+        run("{getMore: {$numberLong: '123'}, collection: 'blogPost', batchSize: 100}", 200);
+
+        Assertions.assertThat(profiler.recent(10).get(0).getCollection()).isEqualTo("blogPost");
+    }
+
+    @Test
+    public void onlyTheNextRunOfASlowShapeIsCopiedAndExplained() throws InterruptedException {
+        List<BsonDocument> explained = new CopyOnWriteArrayList<>();
+        MongoClient client = Mockito.mock(MongoClient.class);
+        MongoDatabase db = Mockito.mock(MongoDatabase.class);
+        Mockito.when(client.getDatabase(anyString())).thenReturn(db);
+        Mockito.when(db.runCommand(any(Bson.class))).thenAnswer(invocation -> {
+            explained.add(invocation.getArgument(0, BsonDocument.class).getDocument("explain"));
+            return new Document("queryPlanner", new Document("winningPlan",
+                    new Document("stage", "IXSCAN").append("indexName", "author")));
+        });
+        @SuppressWarnings("unchecked")
+        ObjectProvider<MongoClient> provider = Mockito.mock(ObjectProvider.class);
+        Mockito.when(provider.getObject()).thenReturn(client);
+        SlowQueryProfiler explaining = new SlowQueryProfiler(provider, Duration.ofMillis(100), 10, 1);
+
+        run(explaining, "{find: 'blogPost', filter: {title: 'fast'}}", 50);
+        run(explaining, "{find: 'blogPost', filter: {author: 'first'}}", 200);       //slow - its shape is picked out
+        run(explaining, "{find: 'blogPost', filter: {author: 'second'}}", 200);      //copied, slow, explained
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (explaining.recent(1).get(0).getPlan() == null && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertThat(explaining.recent(1).get(0).getPlan()).isEqualTo("IXSCAN author");
+        Assertions.assertThat(explained).hasSize(1);
+        Assertions.assertThat(explained.get(0).getDocument("filter").getString("author").getValue()).isEqualTo("second");
+        explaining.shutdown();
+    }
+
+    @Test
+    public void ringBufferKeepsTheMostRecent() {
+        for (int i = 1; i <= 5; i++) {
+            run("{find: 'blogPost', filter: {n: " + i + "}}", 100 + i);
+        }
+
+        Assertions.assertThat(profiler.recent(10)).extracting(SlowQuery::getMillis).containsExactly(105.0, 104.0, 103.0);
+    }
+
+    @Test
+    public void topAddsUpTheSameShape() {
+        run("{find: 'blogPost', filter: {author: 'a'}}", 200);
+        run("{find: 'blogPost', filter: {author: 'b'}}", 200);
+        run("{find: 'blogPost', filter: {title: 'c'}}", 300);
+
+        List<SlowQueryTotal> top = profiler.top(10);
+        Assertions.assertThat(top).hasSize(2);
+        Assertions.assertThat(top.get(0).getCount()).isEqualTo(2);
+        Assertions.assertThat(top.get(0).getTotalMillis()).isEqualTo(400.0);
+        Assertions.assertThat(top.get(1).getMaxMillis()).isEqualTo(300.0);
+    }
+}
@@ -0,0 +1,109 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.data.FeedCursor;
+import com.haprer.blogger.services.TagBitmapIndex;
+import org.assertj.core.api.Assertions;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests for the tag filter index - no database needed
+ */
+public class TagBitmapIndexTests {
+
+    private final ObjectId[] ids = Stream.generate(ObjectId::new).limit(10).toArray(ObjectId[]::new);
+
+    //post n is saved at second n, so a higher n is more recent
+    private BlogPost post(int n, String... tags) {
+        BlogPost post = new BlogPost("title " + n, "author", "content", List.of(tags));
+        ReflectionTestUtils.setField(post, "id", ids[n].toHexString());
+        ReflectionTestUtils.setField(post, "timestamp", Instant.ofEpochSecond(n));
+        return post;
+    }
+
+    private List<ObjectId> posts(int... ns) {
+        return Arrays.stream(ns).mapToObj(n -> ids[n]).toList();
+    }
+
+    private TagBitmapIndex loaded(BlogPost... posts) {
+        TagBitmapIndex index = new TagBitmapIndex();
+        index.load(Stream.of(posts));
+        return index;
+    }
+
+    @Test
+    public void matchAllAndMatchAny() {
+        TagBitmapIndex index = loaded(post(0, "java"), post(1, "java", "spring"), post(2, "spring"), post(3, "go"));
+
+        Assertions.assertThat(index.find(List.of("java", "spring"), true, null, 10)).isEqualTo(posts(1));
+        Assertions.assertThat(index.find(List.of("java", "spring"), false, null, 10)).isEqualTo(posts(2, 1, 0));
+        Assertions.assertThat(index.find(List.of("java", "missing"), true, null, 10)).isEmpty();
+        Assertions.assertThat(index.find(List.of("java", "missing"), false, null, 10)).isEqualTo(posts(1, 0));
+    }
+
+    @Test
+    public void pagesFollowTheCursor() {
+        TagBitmapIndex index = loaded(post(0, "a"), post(1, "a"), post(2, "b"), post(3, "a"), post(4, "a"));
+
+        Assertions.assertThat(index.find(List.of("a"), true, null, 2)).isEqualTo(posts(4, 3));
+        FeedCursor after = new FeedCursor(Instant.ofEpochSecond(3), ids[3]);
+        Assertions.assertThat(index.find(List.of("a"), true, after, 2)).isEqualTo(posts(1, 0));
+    }
+
+    @Test
+    public void writesKeepFeedOrder() {
+        TagBitmapIndex index = loaded(post(2, "a"), post(5, "a"));
+
+        //older than everything in the index, like an import
+        index.index(List.of(post(1, "a"), post(3, "a", "b")));
+        Assertions.assertThat(index.find(List.of("a"), true, null, 10)).isEqualTo(posts(5, 3, 2, 1));
+
+        //retagging and removing
+        index.index(List.of(post(5, "b")));
+        index.remove(List.of(ids[2].toHexString()));
+        Assertions.assertThat(index.find(List.of("a"), true, null, 10)).isEqualTo(posts(3, 1));
+        Assertions.assertThat(index.find(List.of("b"), true, null, 10)).isEqualTo(posts(5, 3));
+    }
+
+    @Test
+    public void writesDuringLoadAreKept() {
+        TagBitmapIndex index = new TagBitmapIndex();
+        index.load(Stream.of(post(0, "a"), post(1, "a")).peek(post -> {
+            if (post.getTitle().equals("title 1")) {
+                index.index(List.of(post(2, "a")));
+                index.remove(List.of(ids[0].toHexString()));
+            }
+        }));
+
+        Assertions.assertThat(index.isLoaded()).isTrue();
+        Assertions.assertThat(index.find(List.of("a"), true, null, 10)).isEqualTo(posts(2, 1));
+    }
+
+    @Test
+    public void aFailedLoadIsNotUsed() {
+        TagBitmapIndex index = loaded(post(0, "a"));
+        Stream<BlogPost> failing = Stream.of(post(1, "a"), post(2, "a")).peek(post -> {
+            index.index(List.of(post(3, "a")));
+            if (post.getTitle().equals("title 2")) {
+                throw new IllegalStateException("cursor closed");
+            }
+        });
+
+        Assertions.assertThatThrownBy(() -> index.load(failing)).hasMessage("cursor closed");
+        Assertions.assertThat(index.isLoaded()).isFalse();
+        Assertions.assertThat(ReflectionTestUtils.getField(index, "pending")).asList().isEmpty();
+        //writes are not kept until the next load
+        index.index(List.of(post(4, "a")));
+        Assertions.assertThat(ReflectionTestUtils.getField(index, "pending")).asList().isEmpty();
+
+        index.load(Stream.of(post(1, "a")));
+        Assertions.assertThat(index.find(List.of("a"), true, null, 10)).isEqualTo(posts(1));
+    }
+}
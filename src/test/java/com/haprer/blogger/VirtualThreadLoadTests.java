@@ -0,0 +1,128 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BlogService;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of concurrent /find requests against a real server and mongo.
+ * Not part of the normal build - run with
+ *      mvn test -Pload-test                              (virtual threads)
+ *      mvn test -Pload-test -Dloadtest.virtual=false     (tomcat's platform thread pool)
+ * and compare the results written to target/load-test-*.json
+ * Mongo runs in Testcontainers, so this needs Docker - without it the test is skipped, not failed, and there are
+ * no results to compare.
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.threads.virtual.enabled=${loadtest.virtual:true}")
+@Testcontainers(disabledWithoutDocker = true)
+@ActiveProfiles({"test", "virtual"})
+public class VirtualThreadLoadTests {
+
+    @Container
+    private static MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:latest");
+
+    @DynamicPropertySource
+    static void setMongoDbProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.data.mongodb.uri", mongoDBContainer::getReplicaSetUrl);
+    }
+
+    private static final int POSTS = 1000;
+
+    @LocalServerPort
+    private int port;
+
+    @Value("${spring.threads.virtual.enabled}")
+    private boolean virtual;
+
+    @Value("${loadtest.clients:2000}")
+    private int clients;
+
+    @Value("${loadtest.requests-per-client:20}")
+    private int requestsPerClient;
+
+    @Autowired
+    private BlogService blogService;
+
+    @Test
+    void concurrentFinds() throws Exception {
+        blogService.deleteAll();
+        List<BlogPost> posts = new ArrayList<>();
+        for (int i = 0; i < POSTS; i++) {
+            posts.add(new BlogPost("title " + i, "author", "content ".repeat(200), List.of("tag" + i % 10)));
+        }
+        blogService.saveAll(posts);
+
+        HttpClient http = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger errors = new AtomicInteger();
+
+        long start = System.nanoTime();
+        try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                clientThreads.submit(() -> {
+                    for (int r = 0; r < requestsPerClient; r++) {
+                        //a miss every time would only measure mongo, so every title is asked for a few times
+                        String title = URLEncoder.encode("title " + ThreadLocalRandom.current().nextInt(POSTS), StandardCharsets.UTF_8);
+                        URI uri = URI.create("http://localhost:" + port + "/find?author=author&title=" + title);
+                        long sent = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = http.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() != 302) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies.add(System.nanoTime() - sent);
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        String result = String.format("{\"virtualThreads\": %b, \"clients\": %d, \"requests\": %d, \"errors\": %d, "
+                        + "\"requestsPerSecond\": %.0f, \"p50Millis\": %.2f, \"p99Millis\": %.2f, \"maxMillis\": %.2f}",
+                virtual, clients, sorted.size(), errors.get(), sorted.size() / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        Files.writeString(Path.of("target", "load-test-" + (virtual ? "virtual" : "platform") + ".json"), result);
+
+        Assertions.assertThat(errors.get()).isZero();
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1);
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+}
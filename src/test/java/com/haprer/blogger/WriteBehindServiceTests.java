@@ -0,0 +1,218 @@
+package com.haprer.blogger;
+
+import com.haprer.blogger.data.BatchItemResult;
+import com.haprer.blogger.data.BlogPost;
+import com.haprer.blogger.services.BlogService;
+import com.haprer.blogger.services.WriteBehindService;
+import com.mongodb.MongoTimeoutException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.IntStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+
+/**
+ * Tests for the write-behind queue of /save - the database is mocked out
+ */
+public class WriteBehindServiceTests {
+
+    @TempDir
+    private Path directory;
+
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+    //a blog service whose insertBatch records the ids of each batch
+    private BlogService recordingBlogService() {
+        BlogService blogService = Mockito.mock(BlogService.class);
+        Mockito.when(blogService.insertBatch(anyList(), anyInt(), any(), anyBoolean())).thenAnswer(invocation -> {
+            List<BlogPost> posts = invocation.getArgument(0);
+            batches.add(posts.stream().map(BlogPost::getId).toList());
+            return IntStream.range(0, posts.size()).mapToObj(i -> BatchItemResult.saved(i, posts.get(i).getId())).toList();
+        });
+        return blogService;
+    }
+
+    private WriteBehindService service(BlogService blogService, int capacity, int batchSize, Duration maxDelay) {
+        MongoTemplate mongoTemplate = Mockito.mock(MongoTemplate.class);
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        Mockito.when(mongoTemplate.getConverter()).thenReturn(converter);
+        return new WriteBehindService(blogService, mongoTemplate, new SimpleMeterRegistry(), capacity, batchSize,
+                maxDelay, Duration.ofMillis(20), Duration.ofMillis(200), "W1", directory.resolve("spill.jsonl"));
+    }
+
+    private static BlogPost post(int i) {
+        BlogPost post = new BlogPost("title " + i, "author", "content", List.of("tag"));
+        post.setTimestamp(Instant.now());
+        return post;
+    }
+
+    @Test
+    public void postsAreWrittenInBatchesWithTheirIds() throws Exception {
+        WriteBehindService service = service(recordingBlogService(), 100, 3, Duration.ofSeconds(10));
+        service.start();
+        List<BlogPost> posts = IntStream.range(0, 6).mapToObj(WriteBehindServiceTests::post).toList();
+        posts.forEach(post -> Assertions.assertThat(service.submit(post)).isTrue());
+
+        //two full batches don't wait for the 10s max delay
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (batches.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        service.stop();
+
+        Assertions.assertThat(batches).hasSize(2);
+        Assertions.assertThat(batches.stream().flatMap(List::stream).toList())
+                .containsExactlyElementsOf(posts.stream().map(BlogPost::getId).toList())
+                .doesNotContainNull();
+    }
+
+    @Test
+    public void partialBatchIsWrittenAfterMaxDelay() throws Exception {
+        WriteBehindService service = service(recordingBlogService(), 100, 100, Duration.ofMillis(20));
+        service.start();
+        service.submit(post(0));
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (batches.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertThat(batches).hasSize(1);
+        service.stop();
+    }
+
+    @Test
+    public void aRetryLooksForThePostsTheFailedTryWrote() throws Exception {
+        List<Boolean> retried = new CopyOnWriteArrayList<>();
+        BlogService flaky = Mockito.mock(BlogService.class);
+        Mockito.when(flaky.insertBatch(anyList(), anyInt(), any(), anyBoolean())).thenAnswer(invocation -> {
+            retried.add(invocation.getArgument(3));
+            if (retried.size() == 1) {
+                throw new MongoTimeoutException("the connection dropped after part of the batch was written");
+            }
+            List<BlogPost> posts = invocation.getArgument(0);
+            return IntStream.range(0, posts.size()).mapToObj(i -> BatchItemResult.saved(i, posts.get(i).getId())).toList();
+        });
+        WriteBehindService service = service(flaky, 100, 100, Duration.ofMillis(1));
+        service.start();
+        service.submit(post(0));
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (retried.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        service.stop();
+
+        Assertions.assertThat(retried).containsExactly(false, true);
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws Exception {
+        //the first batch blocks, so the queue fills up behind it
+        CountDownLatch release = new CountDownLatch(1);
+        BlogService blogService = Mockito.mock(BlogService.class);
+        Mockito.when(blogService.insertBatch(anyList(), anyInt(), any(), anyBoolean())).thenAnswer(invocation -> {
+            release.await();
+            return List.of();
+        });
+        WriteBehindService service = service(blogService, 4, 1, Duration.ofMillis(1));
+        service.start();
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (service.submit(post(i))) {
+                accepted++;
+            }
+        }
+        release.countDown();
+        service.stop();
+
+        //one taken by the blocked batch and the queue's capacity
+        Assertions.assertThat(accepted).isLessThan(20).isGreaterThanOrEqualTo(4);
+    }
+
+    @Test
+    public void shutdownWritesEverythingQueued() {
+        WriteBehindService service = service(recordingBlogService(), 1000, 1000, Duration.ofSeconds(10));
+        service.start();
+        IntStream.range(0, 50).forEach(i -> service.submit(post(i)));
+
+        service.stop();
+
+        Assertions.assertThat(batches.stream().mapToInt(List::size).sum()).isEqualTo(50);
+        Assertions.assertThat(service.submit(post(50))).isFalse();
+    }
+
+    @Test
+    public void unwrittenPostsAreSpilledAndSavedOnTheNextStart() throws Exception {
+        BlogService down = Mockito.mock(BlogService.class);
+        Mockito.when(down.insertBatch(anyList(), anyInt(), any(), anyBoolean())).thenThrow(new MongoTimeoutException("mongo is down"));
+        WriteBehindService first = service(down, 100, 100, Duration.ofSeconds(10));
+        first.start();
+        BlogPost post = post(0);
+        first.submit(post);
+        first.stop();
+        Assertions.assertThat(directory.resolve("spill.jsonl")).exists();
+
+        WriteBehindService second = service(recordingBlogService(), 100, 100, Duration.ofSeconds(10));
+        second.start();
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (Files.exists(directory.resolve("spill.jsonl")) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        second.stop();
+
+        Assertions.assertThat(directory.resolve("spill.jsonl")).doesNotExist();
+        Assertions.assertThat(batches).containsExactly(List.of(post.getId()));
+    }
+
+    @Test
+    public void aStuckWriteIsSpilledWithEverythingQueuedBehindIt() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlogService stuck = Mockito.mock(BlogService.class);
+        Mockito.when(stuck.insertBatch(anyList(), anyInt(), any(), anyBoolean())).thenAnswer(invocation -> {
+            writing.countDown();
+            release.await();
+            throw new MongoTimeoutException("mongo is down");
+        });
+        WriteBehindService service = service(stuck, 100, 5, Duration.ofMillis(10));
+        service.start();
+        List<BlogPost> posts = IntStream.range(0, 25).mapToObj(WriteBehindServiceTests::post).toList();
+        posts.subList(0, 5).forEach(service::submit);
+        writing.await();
+        posts.subList(5, 25).forEach(service::submit);
+
+        service.stop();
+        release.countDown();
+
+        List<String> spilled = Files.readAllLines(directory.resolve("spill.jsonl")).stream()
+                .map(line -> Document.parse(line).get("_id").toString()).toList();
+        Assertions.assertThat(spilled).containsExactlyInAnyOrderElementsOf(posts.stream().map(BlogPost::getId).toList());
+    }
+}